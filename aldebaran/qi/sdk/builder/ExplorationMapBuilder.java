@@ -4,8 +4,11 @@ import com.aldebaran.qi.Future;
 import com.aldebaran.qi.sdk.QiContext;
 import com.aldebaran.qi.sdk.object.actuation.ExplorationMap;
 import com.aldebaran.qi.sdk.object.streamablebuffer.StreamableBuffer;
+import com.aldebaran.qi.sdk.object.streamablebuffer.StreamableBufferFactory;
 import com.aldebaran.qi.sdk.util.FutureUtils;
 
+import java.io.File;
+
 /**
  * Build a new {@link ExplorationMap}
  */
@@ -52,6 +55,17 @@ public class ExplorationMapBuilder {
         return this;
     }
 
+    /**
+     * Configure the data used by the ExplorationMap from a file, mapped in memory and streamed
+     * without copy
+     *
+     * @param mapFile the file containing the serialized map
+     * @return the builder
+     */
+    public ExplorationMapBuilder withMapFile(File mapFile) {
+        return withStreamableBuffer(StreamableBufferFactory.fromFile(mapFile));
+    }
+
     /**
      * Return a configured instance of ExplorationMap
      *
@@ -0,0 +1,77 @@
+package com.aldebaran.qi.sdk.`object`.streamablebuffer
+
+import com.aldebaran.qi.sdk.QiThreadPool
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import kotlin.math.min
+
+private const val PAGE_SIZE = 4096
+
+/**
+ * Serves chunks of a memory-mapped file as slices of the mapping, without copying them.
+ * When chunks are requested sequentially, the next chunk is paged in on the [QiThreadPool]
+ * while the current one is being transferred.
+ */
+internal class MappedFileReader(
+        file: File,
+        private val readAhead: Boolean,
+        private val statistics: StreamableBufferStatistics?
+) {
+
+    private val mapping: MappedByteBuffer = RandomAccessFile(file, "r").use { randomAccessFile ->
+        val length = randomAccessFile.length()
+        require(length <= Int.MAX_VALUE) { "File too large to be mapped: ${file.path} ($length bytes)" }
+        randomAccessFile.channel.map(FileChannel.MapMode.READ_ONLY, 0L, length)
+    }
+
+    val size: Long = mapping.capacity().toLong()
+
+    @Volatile
+    private var nextSequentialOffset = 0L
+
+    @Volatile
+    private var readAheadUntil = 0L
+
+    fun read(offset: Long, size: Long): ByteBuffer {
+        val startNanos = System.nanoTime()
+        require(offset in 0..this.size) { "Offset out of bounds: $offset" }
+        val end = min(offset + size, this.size)
+
+        val chunk = mapping.duplicate()
+        chunk.position(offset.toInt())
+        chunk.limit(end.toInt())
+        val slice = chunk.slice()
+
+        val sequential = offset == nextSequentialOffset
+        nextSequentialOffset = end
+        if (readAhead && sequential) {
+            scheduleReadAhead(end, min(end + (end - offset), this.size))
+        }
+
+        statistics?.onRead(end - offset, sequential, System.nanoTime() - startNanos)
+        return slice
+    }
+
+    private fun scheduleReadAhead(from: Long, to: Long) {
+        val start = maxOf(from, readAheadUntil)
+        if (start >= to) {
+            return
+        }
+        readAheadUntil = to
+
+        QiThreadPool.execute {
+            // Touching one byte per page is enough to fault the whole page in.
+            var position = start.toInt()
+            var checksum = 0
+            while (position < to) {
+                checksum += mapping.get(position)
+                position += PAGE_SIZE
+            }
+            statistics?.onReadAhead(to - start)
+            checksum
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.aldebaran.qi.sdk.`object`.streamablebuffer
 
 import com.aldebaran.qi.DynamicObjectBuilder
 import com.aldebaran.qi.sdk.QiSDK
+import java.io.File
 import java.nio.ByteBuffer
 
 /**
@@ -32,4 +33,19 @@ object StreamableBufferFactory {
 
         return deserialized as StreamableBuffer
     }
+
+    /**
+     * Create a [StreamableBuffer] backed by a file mapped in memory.
+     * Chunks are served as slices of the mapping, without being copied on the heap.
+     * @param [file] the file providing the data of the [StreamableBuffer].
+     * @param [readAhead] whether the chunk following a sequential read is paged in ahead of time.
+     * @param [statistics] the statistics updated on each read, if any.
+     * @since 7
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun fromFile(file: File, readAhead: Boolean = true, statistics: StreamableBufferStatistics? = null): StreamableBuffer {
+        val mappedFileReader = MappedFileReader(file, readAhead, statistics)
+        return fromFunction(mappedFileReader.size, mappedFileReader::read)
+    }
 }
@@ -0,0 +1,55 @@
+package com.aldebaran.qi.sdk.`object`.streamablebuffer
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Transfer statistics of a [StreamableBuffer] created by [StreamableBufferFactory.fromFile].
+ * The counters are updated concurrently with the reads and can be queried at any time.
+ */
+class StreamableBufferStatistics {
+
+    private val reads = AtomicLong()
+    private val sequentialReads = AtomicLong()
+    private val bytesServed = AtomicLong()
+    private val bytesReadAhead = AtomicLong()
+    private val readNanos = AtomicLong()
+
+    /** The number of chunks served. */
+    val readCount: Long
+        get() = reads.get()
+
+    /** The number of chunks that started where the previous one ended. */
+    val sequentialReadCount: Long
+        get() = sequentialReads.get()
+
+    /** The number of bytes served to readers. */
+    val bytesTransferred: Long
+        get() = bytesServed.get()
+
+    /** The number of bytes paged in ahead of the reader. */
+    val readAheadBytes: Long
+        get() = bytesReadAhead.get()
+
+    /** The cumulated time spent serving chunks, in microseconds. */
+    val totalReadMicros: Long
+        get() = TimeUnit.NANOSECONDS.toMicros(readNanos.get())
+
+    internal fun onRead(bytes: Long, sequential: Boolean, elapsedNanos: Long) {
+        reads.incrementAndGet()
+        if (sequential) {
+            sequentialReads.incrementAndGet()
+        }
+        bytesServed.addAndGet(bytes)
+        readNanos.addAndGet(elapsedNanos)
+    }
+
+    internal fun onReadAhead(bytes: Long) {
+        bytesReadAhead.addAndGet(bytes)
+    }
+
+    override fun toString(): String {
+        return "StreamableBufferStatistics(reads=$readCount, sequential=$sequentialReadCount, " +
+                "bytes=$bytesTransferred, readAhead=$readAheadBytes, readTime=${totalReadMicros}us)"
+    }
+}
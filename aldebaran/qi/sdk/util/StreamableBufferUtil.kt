@@ -5,8 +5,10 @@ package com.aldebaran.qi.sdk.util
 import com.aldebaran.qi.Consumer
 import com.aldebaran.qi.Future
 import com.aldebaran.qi.sdk.`object`.streamablebuffer.StreamableBuffer
+import java.io.EOFException
 import java.io.OutputStream
 import java.nio.ByteBuffer
+import java.nio.channels.Channels
 import kotlin.math.min
 
 private const val DEFAULT_CHUNK_SIZE = 1024L * 1024L * 4L
@@ -32,14 +34,16 @@ fun StreamableBuffer.readAll(chunkSize: Long = DEFAULT_CHUNK_SIZE): ByteBuffer {
  */
 @JvmOverloads
 fun StreamableBuffer.Async.readAll(chunkSize: Long = DEFAULT_CHUNK_SIZE): Future<ByteBuffer> {
-    var byteArray = byteArrayOf()
+    lateinit var result: ByteBuffer
 
     return size.andThenCompose { totalSize: Long ->
+        result = ByteBuffer.allocate(totalSize.toInt())
         readAllFrom(0L, chunkSize, totalSize) { byteBuffer: ByteBuffer ->
-            byteArray += byteBuffer.array()
+            result.put(byteBuffer)
         }
     }.andThenApply {
-        return@andThenApply ByteBuffer.wrap(byteArray)
+        result.flip()
+        return@andThenApply result
     }
 }
 
@@ -115,7 +119,12 @@ fun StreamableBuffer.copyToStream(outputStream: OutputStream, chunkSize: Long =
  */
 @JvmOverloads
 fun StreamableBuffer.Async.copyToStream(outputStream: OutputStream, chunkSize: Long = DEFAULT_CHUNK_SIZE): Future<Void> {
-    return readAll(chunkSize) { byteBuffer: ByteBuffer -> outputStream.write(byteBuffer.array()) }
+    val channel = Channels.newChannel(outputStream)
+    return readAll(chunkSize) { byteBuffer: ByteBuffer ->
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer)
+        }
+    }
 }
 
 private fun StreamableBuffer.Async.readAllFrom(
@@ -127,8 +136,13 @@ private fun StreamableBuffer.Async.readAllFrom(
     val nofBytesToRead = min(chunkSize, totalSize - offset)
 
     return read(offset, nofBytesToRead).andThenCompose { byteBuffer: ByteBuffer ->
+        // Chunks may be direct buffers (e.g. slices of a mapped file), so rely on remaining() rather than array()
+        val nextOffset = offset + byteBuffer.remaining()
+        // An empty chunk before the end would make this read the same offset forever
+        if (nextOffset == offset && nofBytesToRead > 0) {
+            throw EOFException("Empty chunk at offset $offset of $totalSize bytes")
+        }
         onReadChunkFunction(byteBuffer)
-        val nextOffset = offset + byteBuffer.array().size
         if (nextOffset < totalSize) {
             return@andThenCompose readAllFrom(nextOffset, chunkSize, totalSize, onReadChunkFunction)
         } else {
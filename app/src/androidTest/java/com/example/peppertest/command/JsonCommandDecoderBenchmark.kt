@@ -0,0 +1,72 @@
+package com.example.peppertest.command
+
+import android.os.Debug
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.json.JSONObject
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+
+/**
+ * Microbenchmark of the streaming command decoder against the JSONObject path it replaces.
+ *
+ * Runs on a device, as both parsers come from the Android framework. Results are logged
+ * under the JsonCommandDecoderBenchmark tag.
+ */
+@RunWith(AndroidJUnit4::class)
+class JsonCommandDecoderBenchmark {
+    companion object {
+        private const val TAG = "JsonCommandDecoderBenchmark"
+        private const val WARMUP_ITERATIONS = 2_000
+        private const val ITERATIONS = 20_000
+
+        private val MESSAGES = listOf(
+            """{"type": "command", "action": "goto", "x": 0.5, "y": 0.0, "theta": -0.12, "face": {"x": 120, "y": 80, "width": 64, "height": 64}}""",
+            """{"type": "command", "action": "say", "text": "Hello there! I see you.", "with_animation": false}""",
+            """{"type": "speech", "action": "say", "text": "It is sunny today."}""",
+            """{"type": "frame_ack", "processing_ms": 12, "seq": 42, "capture_time": 1700000000000, "send_time": 1700000000005}"""
+        )
+    }
+
+    @Test
+    fun decodesLikeJsonObject() {
+        val decoder = JsonCommandDecoder()
+        for (text in MESSAGES) {
+            assertEquals(Command.fromJson(JSONObject(text)), decoder.decode(text).toCommand())
+        }
+    }
+
+    @Test
+    fun skipsUnknownFields() {
+        val text = """{"meta": {"nested": [1, {"a": "b"}]}, "type": "command", "extra": null, "action": "animate", "animation": "dance"}"""
+        assertEquals(Command.Animate("dance"), JsonCommandDecoder().decode(text).toCommand())
+    }
+
+    @Test
+    fun streamingDecoderVersusJsonObject() {
+        val decoder = JsonCommandDecoder()
+        val jsonObjectResult = measure { text -> Command.fromJson(JSONObject(text)) }
+        val streamingResult = measure { text -> decoder.decode(text).toCommand() }
+
+        Log.i(TAG, "JSONObject: $jsonObjectResult")
+        Log.i(TAG, "JsonCommandDecoder: $streamingResult")
+    }
+
+    private fun measure(decode: (String) -> Command?): String {
+        repeat(WARMUP_ITERATIONS) { decode(MESSAGES[it % MESSAGES.size]) }
+
+        Debug.startAllocCounting()
+        val startTime = System.nanoTime()
+        repeat(ITERATIONS) { decode(MESSAGES[it % MESSAGES.size]) }
+        val elapsedNs = System.nanoTime() - startTime
+        Debug.stopAllocCounting()
+        val allocations = Debug.getGlobalAllocCount()
+        Debug.resetAllCounts()
+
+        return "%.2f us/message, %d allocations/message".format(
+            elapsedNs / 1000.0 / ITERATIONS, allocations / ITERATIONS
+        )
+    }
+}
@@ -23,6 +23,7 @@ import com.aldebaran.qi.sdk.builder.SayBuilder
 import com.aldebaran.qi.sdk.`object`.actuation.Animate
 import com.aldebaran.qi.sdk.`object`.actuation.Animation
 import com.aldebaran.qi.sdk.`object`.conversation.Phrase
+import com.aldebaran.qi.sdk.`object`.conversation.Say
 import com.aldebaran.qi.sdk.`object`.holder.AutonomousAbilitiesType
 import com.aldebaran.qi.sdk.`object`.holder.Holder
 import com.aldebaran.qi.sdk.`object`.human.EngagementIntentionState
@@ -33,8 +34,16 @@ import com.aldebaran.qi.sdk.`object`.human.ExcitementState
 import com.aldebaran.qi.sdk.`object`.human.AttentionState
 import com.aldebaran.qi.sdk.`object`.humanawareness.EngagementPolicy
 import com.aldebaran.qi.sdk.design.activity.RobotActivity
+import com.example.peppertest.camera.FrameBuffer
 import com.example.peppertest.camera.PepperCameraManager
+import com.example.peppertest.command.Command
 import com.example.peppertest.command.CommandDispatcher
+import com.example.peppertest.command.CommandLatency
+import com.example.peppertest.command.CommandRouter
+import com.example.peppertest.command.CommandTrace
+import com.example.peppertest.command.SpeechQueue
+import com.example.peppertest.logging.AsyncLog
+import com.example.peppertest.logging.LogPolicy
 import com.example.peppertest.websocket.PepperWebSocketClient // Uncommented WebSocket import
 import kotlinx.android.synthetic.main.activity_main.*
 import org.json.JSONArray
@@ -52,6 +61,8 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
                      PepperWebSocketClient.ConnectionStateListener {
     companion object {
         private const val TAG = "PepperHumanAwareness"
+        // Humans-around updates come several times a second, they get their own sampled tag
+        private const val HUMANS_TAG = "PepperHumans"
         private const val DEFAULT_WEBSOCKET_URL = "ws://10.22.25.94:5003/pepper" // Default WebSocket URL
         private const val SPEAKER_SWITCH_DELAY_MS = 1000 // Delay before switching speakers
         private const val SPEECH_TIMEOUT_MS = 5000 // Time after speech stops to return to soft engagement
@@ -80,7 +91,23 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
     // WebSocket client
     private var webSocketClient: PepperWebSocketClient? = null
     private var websocketServerUrl = DEFAULT_WEBSOCKET_URL
+    // Standby endpoints to fail over to, in order of preference, the current one included
+    private var websocketEndpoints = emptyList<String>()
     private var isSpeaking = AtomicBoolean(false)
+    // Utterances waiting while the robot speaks, and what is being said
+    private val speechQueue = SpeechQueue()
+    private val speechLock = Any()
+    private var currentSpeech: Future<Void>? = null
+    // Say built ahead for the next utterance
+    private var prebuiltSay: Pair<SpeechQueue.Utterance, Future<Say>>? = null
+    // Runs gestures and base motion, on lanes of their own, while the robot has the focus
+    private var commandDispatcher: CommandDispatcher? = null
+    // Streams frames to the server while connected, paced by the client's backlog and the frame acks
+    private var cameraManager: PepperCameraManager? = null
+    // Hands commands from the socket reader thread to their handlers
+    private val commandRouter = CommandRouter()
+    // Latency percentiles of the commands completed, per action
+    private val commandLatency = CommandLatency()
     private var isWebSocketEnabled = false  // Disabled by default
 
     // Add timer for speech detection timeout
@@ -94,9 +121,23 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
         // Register the RobotLifecycleCallbacks
         QiSDK.register(this, this)
         
+        // Debug logging stays on, the hot paths are sampled and rate limited instead
+        AsyncLog.setPolicy(TAG, LogPolicy(maxPerSecond = 20))
+        AsyncLog.setPolicy(HUMANS_TAG, LogPolicy(sampleEvery = 10, maxPerSecond = 2))
+        AsyncLog.setPolicy(PepperWebSocketClient.TAG, LogPolicy(maxPerSecond = 20))
+        AsyncLog.setPolicy(PepperCameraManager.TAG, LogPolicy(maxPerSecond = 5))
+        
         // Initialize WebSocket URL from preferences if available
         websocketServerUrl = getPreferences(Context.MODE_PRIVATE)
             .getString("websocket_url", DEFAULT_WEBSOCKET_URL) ?: DEFAULT_WEBSOCKET_URL
+        websocketEndpoints = getPreferences(Context.MODE_PRIVATE)
+            .getString("websocket_endpoints", null)
+            ?.split('\n')?.filter { it.isNotEmpty() } ?: emptyList()
+        getPreferences(Context.MODE_PRIVATE).getString("speech_policy", null)?.let { policy ->
+            SpeechQueue.Policy.values().firstOrNull { it.name == policy }?.let { speechQueue.policy = it }
+        }
+        
+        registerCommandHandlers()
         
         // Setup WebSocket toggle
         setupWebSocketToggle()
@@ -111,6 +152,8 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
         
         // Unregister the RobotLifecycleCallbacks
         QiSDK.unregister(this, this)
+        commandRouter.release()
+        AsyncLog.flush()
         super.onDestroy()
     }
     
@@ -124,6 +167,15 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
         // Initialize human awareness
         initializeHumanAwareness(qiContext)
         
+        commandDispatcher = CommandDispatcher(qiContext) { command, status, trace ->
+            sendActionStatus(command, status, trace)
+        }.apply {
+            // Build the animations now rather than in front of the user on the first animate command
+            preloadAnimations { preload -> reportAnimationPreload(preload) }
+        }
+        
+        initializeCamera(qiContext)
+        
         // Only connect to WebSocket if enabled
         if (isWebSocketEnabled) {
             connectWebSocket()
@@ -145,6 +197,12 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
         
         // Release autonomous abilities (re-enable autonomous life)
         releaseAutonomousAbilities()
+        
+        commandDispatcher?.release()
+        commandDispatcher = null
+        cameraManager?.release()
+        cameraManager = null
+        clearSpeech()
 
         // Reset QiContext and human awareness
         humanAwareness = null
@@ -170,6 +228,10 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
                 this,  // CommandListener
                 this   // ConnectionStateListener
             )
+            if (websocketEndpoints.isNotEmpty()) {
+                webSocketClient?.setEndpoints(listOf(websocketServerUrl) + websocketEndpoints)
+            }
+            webSocketClient?.frameAckListener = cameraManager
             
             webSocketClient?.connect()
             Log.i(TAG, "Connecting to WebSocket server: $websocketServerUrl")
@@ -177,143 +239,96 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
         }
     }
     
+    /**
+     * Build the camera manager, sending each frame through the current client
+     */
+    private fun initializeCamera(qiContext: QiContext) {
+        val manager = PepperCameraManager(
+            object : PepperCameraManager.FrameListener {
+                override fun onFrameCaptured(frame: FrameBuffer, timestamp: Long, sequence: Int) {
+                    webSocketClient?.sendCameraFrame(frame.view(), timestamp, sequence)
+                }
+            },
+            // The client is replaced on each connection, so look it up on every capture
+            { webSocketClient?.queueSize() ?: 0L }
+        )
+        manager.initialize(qiContext)
+        cameraManager = manager
+        webSocketClient?.frameAckListener = manager
+    }
+    
     /**
      * Disconnect WebSocket connection
      */
     private fun disconnectWebSocket() {
-        webSocketClient?.disconnect()
+        cameraManager?.stopCapture()
+        // A new client is built on the next connection, this one's threads must not outlive it
+        webSocketClient?.release()
         webSocketClient = null
         Log.i(TAG, "Disconnected from WebSocket server")
     }
     
     /**
-     * Handle WebSocket Command events
+     * Declare which thread handles each command, so that none runs on the socket reader thread
      */
-    override fun onCommandReceived(command: JSONObject) {
-        Log.d(TAG, "Command received: $command")
-        
-        try {
-            val type = command.getString("type")
-            
-            when (type) {
-                "command" -> {
-                    // Process command with action field
-                    if (command.has("action")) {
-                        val action = command.getString("action")
-                        
-                        when (action) {
-                            "say" -> {
-                                // Handle text-to-speech command
-                                if (command.has("text")) {
-                                    val text = command.getString("text")
-                                    if (text.isNotEmpty()) {
-                                        Log.i(TAG, "Speaking text: $text")
-                                        runOnUiThread {
-                                            updateStatus("Speaking: $text")
-                                        }
-                                        
-                                        // Check for animation flag in command
-                                        val withAnimation = command.optBoolean("with_animation", false)
-                                        
-                                        if (withAnimation) {
-                                            sayTextWithAnimation(text)
-                                        } else {
-                                            sayText(text)
-                                        }
-                                    }
-                                }
-                            }
-                            else -> {
-                                Log.d(TAG, "Unhandled action type: $action")
-                            }
-                        }
-                    }
-                }
-                "speech" -> {
-                    // Handle speech messages (direct from server)
-                    if (command.has("action")) {
-                        val action = command.getString("action")
-                        
-                        when (action) {
-                            "say" -> {
-                                // Handle text-to-speech command
-                                if (command.has("text")) {
-                                    val text = command.getString("text")
-                                    if (text.isNotEmpty()) {
-                                        Log.i(TAG, "Speaking text from speech message: $text")
-                                        runOnUiThread {
-                                            updateStatus("Speaking: $text")
-                                        }
-                                        
-                                        // Use animation for server-generated responses to make them more engaging
-                                        sayTextWithAnimation(text)
-                                    }
-                                }
-                            }
-                            else -> {
-                                Log.d(TAG, "Unhandled speech action: $action")
-                            }
-                        }
-                    }
-                }
-                "speak" -> {
-                    // Original format for backward compatibility
-                    if (command.has("text")) {
-                        val text = command.getString("text")
-                        if (text.isNotEmpty()) {
-                            Log.i(TAG, "Speaking text: $text")
-                            runOnUiThread {
-                                updateStatus("Speaking: $text")
-                            }
-                            
-                            // Check for additional parameters
-                            val withAnimation = command.optBoolean("with_animation", false)
-                            
-                            // If animation requested, perform animated speech
-                            if (withAnimation) {
-                                sayTextWithAnimation(text)
-                            } else {
-                                sayText(text)
-                            }
-                        }
-                    }
-                }
-                "config" -> {
-                    // Handle configuration commands
-                    if (command.has("websocket_url")) {
-                        val newUrl = command.getString("websocket_url")
-                        configureWebSocketUrl(newUrl)
-                    }
-                }
-                else -> {
-                    Log.d(TAG, "Unhandled command type: $type")
-                }
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "Error processing command: ${e.message}", e)
+    private fun registerCommandHandlers() {
+        val speech = commandRouter.executor("speech")
+        val motion = commandRouter.executor("motion")
+        val control = commandRouter.executor("control")
+        commandRouter.register(Command.Say::class.java, speech) { command, trace ->
+            AsyncLog.i(TAG) { "Speaking text: ${command.text}" }
+            enqueueSpeech(command, trace)
+        }
+        // Gestures and base motion run alongside speech
+        commandRouter.register(Command.Animate::class.java, motion) { command, trace ->
+            commandDispatcher?.dispatch(command, trace = trace)
+        }
+        commandRouter.register(Command.GoTo::class.java, motion) { command, trace ->
+            commandDispatcher?.dispatch(command, trace = trace)
         }
+        commandRouter.register(Command.Config::class.java, control) { command, _ ->
+            configureWebSocketUrl(command.websocketUrl, command.endpoints)
+        }
+        commandRouter.register(Command.ReportLatency::class.java, control) { _, _ -> sendLatencyReport() }
+        // Nothing to do, but a known command all the same
+        commandRouter.register(Command.None::class.java, motion) { _, _ -> }
+    }
+    
+    /**
+     * Handle WebSocket Command events
+     */
+    override fun onCommandReceived(command: Command, trace: CommandTrace) {
+        commandRouter.route(command, trace)
     }
     
     /**
-     * Configure WebSocket server URL
+     * Configure WebSocket server URL, and optionally the endpoints to fail over to
      */
-    fun configureWebSocketUrl(url: String) {
-        if (url.isEmpty() || url == websocketServerUrl) {
+    fun configureWebSocketUrl(url: String, endpoints: List<String> = emptyList()) {
+        if (url.isEmpty() || (url == websocketServerUrl && endpoints.isEmpty())) {
             return
         }
         
         // Save the new URL to preferences
-        getPreferences(Context.MODE_PRIVATE).edit()
+        val editor = getPreferences(Context.MODE_PRIVATE).edit()
             .putString("websocket_url", url)
-            .apply()
+        if (endpoints.isNotEmpty()) {
+            editor.putString("websocket_endpoints", endpoints.joinToString("\n"))
+        }
+        editor.apply()
         
         websocketServerUrl = url
+        if (endpoints.isNotEmpty()) {
+            websocketEndpoints = endpoints
+        }
         Log.i(TAG, "WebSocket URL updated: $url")
         
-        // Reconnect with new URL if connected
-        if (webSocketClient != null) {
-            disconnectWebSocket()
-            connectWebSocket()
+        // Switch without dropping the current connection: the new one replaces it once healthy
+        webSocketClient?.let {
+            if (websocketEndpoints.isNotEmpty()) {
+                it.setEndpoints(listOf(url) + websocketEndpoints)
+            }
+            it.setServerUrl(url)
         }
     }
     
@@ -333,13 +348,34 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
                 put("timestamp", System.currentTimeMillis())
             }
             
-            webSocketClient?.sendMessage(infoJson.toString())
-            Log.d(TAG, "Sent robot info to server")
+            webSocketClient?.sendMessage(infoJson)
+            AsyncLog.d(TAG) { "Sent robot info to server" }
         } catch (e: Exception) {
             Log.e(TAG, "Error sending robot info: ${e.message}", e)
         }
     }
     
+    /**
+     * Log how long preloading animations took and what it cost, and tell the server
+     */
+    private fun reportAnimationPreload(preload: CommandDispatcher.AnimationPreload) {
+        Log.i(TAG, "Preloaded ${preload.loaded} animations in ${preload.elapsedMs} ms, " +
+            "${preload.fileBytes / 1024} KB of files, heap +${preload.heapBytes / 1024} KB, ${preload.failed} failed")
+        try {
+            val preloadJson = JSONObject().apply {
+                put("type", "animation_preload")
+                put("loaded", preload.loaded)
+                put("failed", preload.failed)
+                put("elapsed_ms", preload.elapsedMs)
+                put("file_bytes", preload.fileBytes)
+                put("heap_bytes", preload.heapBytes)
+            }
+            webSocketClient?.sendMessage(preloadJson)
+        } catch (e: Exception) {
+            Log.e(TAG, "Error sending animation preload report: ${e.message}", e)
+        }
+    }
+    
     /**
      * Handle WebSocket Connection events
      */
@@ -351,10 +387,13 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
         
         // Send robot information
         sendRobotInfo()
+        
+        cameraManager?.startCapture()
     }
     
     override fun onDisconnected() {
         Log.i(TAG, "Disconnected from WebSocket server")
+        cameraManager?.stopCapture()
         runOnUiThread {
             updateStatus("Disconnected from WebSocket server")
         }
@@ -456,10 +495,10 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
                 // When robot is speaking, we should maintain focus on the human we're talking to
                 if (phrase.text.isNotEmpty()) {
                     // Robot is speaking, maintain current focus
-                    Log.d(TAG, "Robot is speaking: ${phrase.text}")
+                    AsyncLog.d(TAG) { "Robot is speaking: ${phrase.text}" }
                 } else {
                     // Robot finished speaking
-                    Log.d(TAG, "Robot finished speaking")
+                    AsyncLog.d(TAG) { "Robot finished speaking" }
                 }
             }
             
@@ -477,7 +516,7 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
      */
     private fun onSpeechDetected(phrase: Phrase) {
         val currentTimestamp = System.currentTimeMillis()
-        Log.d(TAG, "Speech detected: ${phrase.text}")
+        AsyncLog.d(TAG) { "Speech detected: ${phrase.text}" }
         
         // Get current list of humans around
         val humans = humanAwareness?.humansAround ?: return
@@ -583,7 +622,7 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
                 put("timestamp", System.currentTimeMillis())
             }
             
-            webSocketClient?.sendMessage(statusJson.toString())
+            webSocketClient?.sendMessage(statusJson)
         } catch (e: Exception) {
             Log.e(TAG, "Error sending speaker change event: ${e.message}", e)
         }
@@ -612,7 +651,7 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
      */
     private fun processHumansAround(humans: List<Human>) {
         // Debug output showing number of humans detected
-        Log.d(TAG, "Humans detected: ${humans.size}")
+        AsyncLog.d(HUMANS_TAG) { "Humans detected: ${humans.size}" }
         
         if (humans.isEmpty()) {
             return
@@ -636,7 +675,7 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
             currentEngagedHuman = human
             
             // Debug additional information about the human
-            Log.d(TAG, "Engaging with human: attention=${human.attention}, excitement=${human.emotion?.excitement}")
+            AsyncLog.d(HUMANS_TAG) { "Engaging with human: attention=${human.attention}, excitement=${human.emotion?.excitement}" }
             
             // Build the engage human action with specified policy
             engageHumanAction = EngageHumanBuilder.with(ctx)
@@ -703,108 +742,215 @@ class MainActivity : RobotActivity(), RobotLifecycleCallbacks,
     }
     
     /**
-     * Say text using the robot's speech synthesis
+     * Queue text to say, and start speaking if the robot is silent
+     *
+     * An urgent utterance cuts the current one short. While the robot speaks, the Say for the
+     * next utterance is built ahead so that it starts without waiting for the build.
      */
-    private fun sayText(text: String) {
-        val ctx = qiContext ?: return
-        
-        // Check if already speaking
-        if (isSpeaking.getAndSet(true)) {
-            Log.d(TAG, "Already speaking, queueing text: $text")
-            // Queue the text for later (not implemented in this simple example)
+    private fun enqueueSpeech(command: Command.Say, trace: CommandTrace) {
+        trace.mark(CommandTrace.Stage.QUEUED)
+        val utterance = SpeechQueue.Utterance(
+            command.text, command.withAnimation, command.isUrgent, System.currentTimeMillis(), traces = listOf(trace)
+        )
+        val interrupt = speechQueue.offer(utterance) { dropped ->
+            sendSpeakingStatus("dropped", dropped, System.currentTimeMillis() - dropped.queuedAtMs)
+        }
+        val start = synchronized(speechLock) { !isSpeaking.getAndSet(true) }
+        if (start) {
+            playNextUtterance()
             return
         }
+        AsyncLog.d(TAG) { "Already speaking, ${speechQueue.size} utterances waiting" }
+        sendSpeakingStatus("queued", utterance, 0L)
+        if (interrupt) {
+            AsyncLog.i(TAG) { "Interrupting speech for: ${utterance.text}" }
+            synchronized(speechLock) { currentSpeech }?.requestCancellation()
+        }
+        qiContext?.let { prebuildNextSay(it) }
+    }
+    
+    /**
+     * Say the next queued utterance, or mark the robot silent if there is none
+     */
+    private fun playNextUtterance() {
+        val ctx = qiContext
+        val utterance = synchronized(speechLock) {
+            speechQueue.poll().also {
+                if (it == null || ctx == null) {
+                    currentSpeech = null
+                    isSpeaking.set(false)
+                }
+            }
+        }
+        if (utterance == null || ctx == null) {
+            // Nothing left to say, or the robot focus is gone
+            return
+        }
+        val waitMs = System.currentTimeMillis() - utterance.queuedAtMs
+        val text = utterance.text
         
         try {
-            // Send speaking started status to server
-            sendSpeakingStatus("started", text)
+            runOnUiThread {
+                updateStatus("Speaking: $text")
+            }
+            sendSpeakingStatus("started", utterance, waitMs)
             
-            // Build and run the say action
-            val say = SayBuilder.with(ctx)
-                .withText(text)
-                .build()
+            // Build, unless built ahead, and run the say action
+            val say = takePrebuiltSay(utterance) ?: buildSay(ctx, utterance)
+            val speech = say.andThenCompose {
+                utterance.traces.forEach { trace -> trace.mark(CommandTrace.Stage.RUN_STARTED) }
+                it.async().run()
+            }
+            synchronized(speechLock) { currentSpeech = speech }
+            prebuildNextSay(ctx)
             
-            // Run the say action and handle completion
-            say.async().run().thenConsume { future ->
-                isSpeaking.set(false) // Reset speaking state
-                
+            // Report the outcome, then go on with the queue
+            speech.thenConsume { future ->
+                utterance.traces.forEach { it.mark(CommandTrace.Stage.RUN_ENDED) }
                 if (future.isSuccess) {
-                    Log.d(TAG, "Speech completed successfully: $text")
-                    sendSpeakingStatus("completed", text)
+                    AsyncLog.d(TAG) { "Speech completed successfully: $text" }
+                    sendSpeakingStatus("completed", utterance, waitMs)
                 } else if (future.isCancelled) {
-                    Log.d(TAG, "Speech was cancelled: $text")
-                    sendSpeakingStatus("cancelled", text)
+                    AsyncLog.d(TAG) { "Speech was cancelled: $text" }
+                    sendSpeakingStatus("cancelled", utterance, waitMs)
                 } else {
                     Log.e(TAG, "Speech error: ${future.error.message}")
-                    sendSpeakingStatus("error", text)
+                    sendSpeakingStatus("error", utterance, waitMs)
                 }
+                playNextUtterance()
             }
         } catch (e: Exception) {
             Log.e(TAG, "Error saying text: ${e.message}", e)
-            isSpeaking.set(false) // Reset speaking state on error
-            sendSpeakingStatus("error", text)
+            sendSpeakingStatus("error", utterance, waitMs)
+            playNextUtterance()
         }
     }
     
     /**
-     * Send speaking status back to the WebSocket server
+     * Start building the Say for the next queued utterance, if not built already
      */
-    private fun sendSpeakingStatus(status: String, text: String) {
-        try {
-            val statusJson = JSONObject().apply {
-                put("type", "command_status")
-                put("action", "say")
-                put("status", status)
-                put("text", text)
-                put("timestamp", System.currentTimeMillis())
+    private fun prebuildNextSay(ctx: QiContext) {
+        val next = speechQueue.peek() ?: return
+        synchronized(speechLock) {
+            if (prebuiltSay?.first == next) {
+                return
             }
-            
-            webSocketClient?.sendMessage(statusJson.toString())
-        } catch (e: Exception) {
-            Log.e(TAG, "Error sending speaking status: ${e.message}", e)
+            prebuiltSay?.second?.requestCancellation()
+            prebuiltSay = next to buildSay(ctx, next)
         }
     }
     
     /**
-     * Say text with accompanying animation
+     * Start building the Say for an utterance, marking the build in the traces of its commands
      */
-    private fun sayTextWithAnimation(text: String) {
-        val ctx = qiContext ?: return
-        
-        // Check if already speaking
-        if (isSpeaking.getAndSet(true)) {
-            Log.d(TAG, "Already speaking, queueing text: $text")
-            return
+    private fun buildSay(ctx: QiContext, utterance: SpeechQueue.Utterance): Future<Say> {
+        utterance.traces.forEach { it.mark(CommandTrace.Stage.BUILD_STARTED) }
+        return SayBuilder.with(ctx).withText(utterance.text).buildAsync().also { say ->
+            say.thenConsume {
+                if (it.isSuccess) {
+                    utterance.traces.forEach { trace -> trace.mark(CommandTrace.Stage.BUILT) }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Take the Say built ahead for an utterance, null if it was built for another one
+     */
+    private fun takePrebuiltSay(utterance: SpeechQueue.Utterance): Future<Say>? {
+        val prebuilt = synchronized(speechLock) {
+            prebuiltSay.also { prebuiltSay = null }
+        } ?: return null
+        if (prebuilt.first != utterance) {
+            prebuilt.second.requestCancellation()
+            return null
+        }
+        return prebuilt.second
+    }
+    
+    /**
+     * Stop speaking and drop everything queued, e.g. when the robot focus is lost
+     */
+    private fun clearSpeech() {
+        speechQueue.clear()
+        synchronized(speechLock) {
+            prebuiltSay?.second?.requestCancellation()
+            prebuiltSay = null
+            currentSpeech
+        }?.requestCancellation()
+    }
+    
+    /**
+     * Send speaking status back to the WebSocket server, with the state of the speech queue
+     *
+     * An utterance merged from several commands reports its status once for each of them.
+     */
+    private fun sendSpeakingStatus(status: String, utterance: SpeechQueue.Utterance, waitMs: Long) {
+        val depth = speechQueue.size
+        if (utterance.traces.isEmpty()) {
+            sendCommandStatus("say", status, utterance.text, null, depth, waitMs)
+        }
+        utterance.traces.forEach { sendCommandStatus("say", status, utterance.text, it, depth, waitMs) }
+    }
+    
+    /**
+     * Send the status of a gesture or a move back to the WebSocket server
+     */
+    private fun sendActionStatus(command: Command, status: String, trace: CommandTrace?) {
+        when (command) {
+            is Command.Animate -> sendCommandStatus("animate", status, command.animation, trace)
+            is Command.GoTo -> sendCommandStatus("goto", status, "x=${command.x}, y=${command.y}, theta=${command.theta}", trace)
+            is Command.Say -> sendCommandStatus("say", status, command.text, trace)
+            else -> {}
+        }
+    }
+    
+    /**
+     * Send a command status with its trace, counting completed commands in the latency percentiles
+     */
+    private fun sendCommandStatus(
+        action: String,
+        status: String,
+        text: String,
+        trace: CommandTrace?,
+        queueDepth: Int = -1,
+        queueWaitMs: Long = 0L
+    ) {
+        if (trace != null && status == "completed") {
+            commandLatency.record(action, trace)
         }
-        
         try {
-            // Send speaking started status to server
-            sendSpeakingStatus("started", text)
-            
-            // Build the say action
-            val say = SayBuilder.with(ctx)
-                .withText(text)
-                .build()
-            
-            // Run the speech
-            say.async().run().thenConsume { sayFuture ->
-                isSpeaking.set(false)
-                
-                if (sayFuture.isSuccess) {
-                    Log.d(TAG, "Animated speech completed successfully")
-                    sendSpeakingStatus("completed", text)
-                } else if (sayFuture.isCancelled) {
-                    Log.d(TAG, "Animated speech was cancelled")
-                    sendSpeakingStatus("cancelled", text)
-                } else {
-                    Log.e(TAG, "Animated speech error: ${sayFuture.error.message}")
-                    sendSpeakingStatus("error", text)
-                }
+            webSocketClient?.sendCommandStatus(action, status, text, queueDepth = queueDepth, queueWaitMs = queueWaitMs, trace = trace)
+        } catch (e: Exception) {
+            Log.e(TAG, "Error sending $action status: ${e.message}", e)
+        }
+    }
+    
+    /**
+     * Send the latency percentiles of the commands completed so far, per action and span
+     */
+    private fun sendLatencyReport() {
+        try {
+            val actions = JSONObject()
+            commandLatency.snapshot().forEach { (action, spans) ->
+                actions.put(action, JSONObject().apply {
+                    spans.forEach { (span, percentiles) ->
+                        put(span.key, JSONObject().apply {
+                            put("count", percentiles.count)
+                            put("p50_ms", percentiles.p50Ms)
+                            put("p95_ms", percentiles.p95Ms)
+                            put("p99_ms", percentiles.p99Ms)
+                        })
+                    }
+                })
+            }
+            val report = JSONObject().apply {
+                put("type", "latency_stats")
+                put("actions", actions)
             }
+            webSocketClient?.sendMessage(report)
         } catch (e: Exception) {
-            Log.e(TAG, "Error with animated speech: ${e.message}", e)
-            isSpeaking.set(false)
-            sendSpeakingStatus("error", text)
+            Log.e(TAG, "Error sending latency report: ${e.message}", e)
         }
     }
 
@@ -0,0 +1,26 @@
+package com.example.peppertest.camera
+
+import java.io.InputStream
+import java.nio.ByteBuffer
+
+/**
+ * Stream over a ByteBuffer, to decode frames without copying them to an array
+ *
+ * Reading advances the buffer's position, so pass it a view of the frame.
+ */
+internal class ByteBufferInputStream(private val buffer: ByteBuffer) : InputStream() {
+    override fun read(): Int {
+        return if (buffer.hasRemaining()) buffer.get().toInt() and 0xff else -1
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (!buffer.hasRemaining()) {
+            return -1
+        }
+        val count = minOf(len, buffer.remaining())
+        buffer.get(b, off, count)
+        return count
+    }
+
+    override fun available(): Int = buffer.remaining()
+}
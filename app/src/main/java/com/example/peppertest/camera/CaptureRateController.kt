@@ -0,0 +1,132 @@
+package com.example.peppertest.camera
+
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Closed-loop controller for the camera capture interval.
+ *
+ * Feeds on capture latency, the WebSocket send backlog and the server processing time
+ * reported in frame acknowledgements, and converges to the fastest rate the whole
+ * chain can sustain:
+ * - the interval never goes below the smoothed server processing time, nor below the
+ *   smoothed capture latency divided by the number of captures allowed in flight
+ * - a growing send backlog backs off multiplicatively
+ * - an empty backlog probes for a higher rate additively
+ */
+class CaptureRateController(
+    minFps: Double = DEFAULT_MIN_FPS,
+    maxFps: Double = DEFAULT_MAX_FPS
+) {
+    companion object {
+        const val DEFAULT_MIN_FPS = 2.0
+        const val DEFAULT_MAX_FPS = 30.0
+
+        private const val SMOOTHING = 0.2
+        private const val BACKLOG_HIGH_BYTES = 256L * 1024L
+        private const val BACKLOG_LOW_BYTES = 32L * 1024L
+        private const val BACKOFF_FACTOR = 1.25
+        private const val PROBE_STEP_FPS = 0.5
+    }
+
+    /**
+     * Lowest capture rate, used even when the chain is congested
+     */
+    @Volatile
+    var minFps: Double = minFps
+        private set
+
+    /**
+     * Highest capture rate, never exceeded even when the chain is idle
+     */
+    @Volatile
+    var maxFps: Double = maxFps
+        private set
+
+    /**
+     * Number of captures allowed in flight at once
+     */
+    @Volatile
+    var pipelineDepth: Int = 1
+
+    private var intervalMs = 1000.0 / maxFps
+    private var smoothedCaptureLatencyMs = 0.0
+    private var serverProcessingMs = 0.0
+    private var frameSpacingMs = 0.0
+    private var lastFrameTimeMs = 0L
+
+    init {
+        setFpsBounds(minFps, maxFps)
+    }
+
+    /**
+     * Set the capture rate bounds
+     */
+    @Synchronized
+    fun setFpsBounds(minFps: Double, maxFps: Double) {
+        require(minFps > 0 && minFps <= maxFps) { "Invalid FPS bounds: [$minFps, $maxFps]" }
+        this.minFps = minFps
+        this.maxFps = maxFps
+        intervalMs = clamp(intervalMs)
+    }
+
+    /**
+     * Interval to wait between the start of two captures, in milliseconds
+     */
+    val captureIntervalMs: Long
+        @Synchronized get() = intervalMs.toLong()
+
+    /**
+     * Smoothed duration of a single capture, in milliseconds
+     */
+    val captureLatencyMs: Double
+        @Synchronized get() = smoothedCaptureLatencyMs
+
+    /**
+     * Rate the controller is currently aiming for
+     */
+    val targetFps: Double
+        @Synchronized get() = 1000.0 / intervalMs
+
+    /**
+     * Rate at which frames are actually produced, smoothed
+     */
+    val effectiveFps: Double
+        @Synchronized get() = if (frameSpacingMs > 0) 1000.0 / frameSpacingMs else 0.0
+
+    /**
+     * Report a completed capture and the current send backlog
+     */
+    @Synchronized
+    fun onCaptureCompleted(latencyMs: Long, sendBacklogBytes: Long, nowMs: Long = System.currentTimeMillis()) {
+        smoothedCaptureLatencyMs = smooth(smoothedCaptureLatencyMs, latencyMs.toDouble())
+        if (lastFrameTimeMs > 0) {
+            frameSpacingMs = smooth(frameSpacingMs, (nowMs - lastFrameTimeMs).toDouble())
+        }
+        lastFrameTimeMs = nowMs
+
+        intervalMs = when {
+            sendBacklogBytes > BACKLOG_HIGH_BYTES -> intervalMs * BACKOFF_FACTOR
+            sendBacklogBytes < BACKLOG_LOW_BYTES -> 1000.0 / (1000.0 / intervalMs + PROBE_STEP_FPS)
+            else -> intervalMs
+        }
+        intervalMs = clamp(max(intervalMs, max(smoothedCaptureLatencyMs / pipelineDepth, serverProcessingMs)))
+    }
+
+    /**
+     * Report the processing time of a frame on the server
+     */
+    @Synchronized
+    fun onFrameAcknowledged(processingTimeMs: Long) {
+        serverProcessingMs = smooth(serverProcessingMs, processingTimeMs.toDouble())
+        intervalMs = clamp(max(intervalMs, serverProcessingMs))
+    }
+
+    private fun smooth(current: Double, sample: Double): Double {
+        return if (current == 0.0) sample else current + SMOOTHING * (sample - current)
+    }
+
+    private fun clamp(value: Double): Double {
+        return min(max(value, 1000.0 / maxFps), 1000.0 / minFps)
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.peppertest.camera
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Reference-counted lease on the bytes of an encoded frame
+ *
+ * A frame starts with one reference, owned by whoever produced it. Consumers that keep
+ * the frame beyond the call that handed it to them must [retain] it and [release] it
+ * once done; the backing array goes back to its pool when the last reference is released.
+ */
+class FrameBuffer internal constructor(
+    private val data: ByteBuffer,
+    private val backingArray: ByteArray?,
+    private val pool: FrameBufferPool?
+) {
+    private val refCount = AtomicInteger(1)
+    
+    /**
+     * Number of bytes in the frame
+     */
+    val size: Int
+        get() = data.remaining()
+    
+    /**
+     * Independent read-only view of the frame bytes, no copy involved
+     */
+    fun view(): ByteBuffer {
+        check(refCount.get() > 0) { "Frame buffer already released" }
+        return data.asReadOnlyBuffer()
+    }
+    
+    /**
+     * Take an additional reference on the frame
+     */
+    fun retain(): FrameBuffer {
+        while (true) {
+            val count = refCount.get()
+            check(count > 0) { "Frame buffer already released" }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return this
+            }
+        }
+    }
+    
+    /**
+     * Drop a reference on the frame
+     */
+    fun release() {
+        val count = refCount.decrementAndGet()
+        check(count >= 0) { "Frame buffer released too many times" }
+        if (count == 0 && backingArray != null) {
+            pool?.recycle(backingArray)
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.peppertest.camera
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Pool of byte arrays backing [FrameBuffer]s
+ *
+ * Arrays are bucketed by power-of-two capacity so that frames of slightly different
+ * sizes share the same arrays.
+ */
+class FrameBufferPool(private val maxPooledPerBucket: Int = DEFAULT_MAX_POOLED_PER_BUCKET) {
+    companion object {
+        private const val DEFAULT_MAX_POOLED_PER_BUCKET = 8
+        private const val MIN_CAPACITY_SHIFT = 12
+        private const val BUCKET_COUNT = 19
+        
+        /**
+         * Lease on bytes that are not owned by any pool, without copying them
+         */
+        fun wrap(data: ByteBuffer): FrameBuffer {
+            return FrameBuffer(data.duplicate(), null, null)
+        }
+    }
+    
+    private val buckets = Array(BUCKET_COUNT) { ConcurrentLinkedQueue<ByteArray>() }
+    private val bucketSizes = Array(BUCKET_COUNT) { AtomicInteger(0) }
+    private val allocations = AtomicLong(0)
+    private val reuses = AtomicLong(0)
+    
+    /**
+     * Number of arrays allocated because none was available
+     */
+    val allocationCount: Long
+        get() = allocations.get()
+    
+    /**
+     * Number of arrays served from the pool
+     */
+    val reuseCount: Long
+        get() = reuses.get()
+    
+    /**
+     * Copy bytes into a pooled frame buffer
+     */
+    fun copyOf(source: ByteBuffer): FrameBuffer {
+        val input = source.duplicate()
+        val size = input.remaining()
+        val array = obtain(size)
+        input.get(array, 0, size)
+        return FrameBuffer(ByteBuffer.wrap(array, 0, size), array, this)
+    }
+    
+    /**
+     * Lease a pooled array of at least the given capacity, to be filled by the caller
+     * and turned into a frame with [seal]
+     */
+    fun obtain(capacity: Int): ByteArray {
+        val bucket = bucketOf(capacity)
+        val pooled = buckets[bucket].poll()
+        if (pooled != null) {
+            bucketSizes[bucket].decrementAndGet()
+            reuses.incrementAndGet()
+            return pooled
+        }
+        allocations.incrementAndGet()
+        return ByteArray(1 shl (bucket + MIN_CAPACITY_SHIFT))
+    }
+    
+    /**
+     * Turn an array obtained from [obtain] into a frame holding its first [size] bytes
+     */
+    fun seal(array: ByteArray, size: Int): FrameBuffer {
+        return FrameBuffer(ByteBuffer.wrap(array, 0, size), array, this)
+    }
+    
+    internal fun recycle(array: ByteArray) {
+        val bucket = bucketOf(array.size)
+        if (array.size != 1 shl (bucket + MIN_CAPACITY_SHIFT)) {
+            return
+        }
+        if (bucketSizes[bucket].incrementAndGet() <= maxPooledPerBucket) {
+            buckets[bucket].offer(array)
+        } else {
+            bucketSizes[bucket].decrementAndGet()
+        }
+    }
+    
+    private fun bucketOf(capacity: Int): Int {
+        require(capacity <= 1 shl (BUCKET_COUNT - 1 + MIN_CAPACITY_SHIFT)) { "Frame too large: $capacity bytes" }
+        var bucket = 0
+        while ((1 shl (bucket + MIN_CAPACITY_SHIFT)) < capacity) {
+            bucket++
+        }
+        return bucket
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.peppertest.camera
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import java.nio.ByteBuffer
+import java.util.Arrays
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.abs
+
+/**
+ * Suppresses frames that look like the last frame sent
+ *
+ * Each frame is reduced to a small grid of average luminance values, decoded at 1/8 scale
+ * so the JPEG decoder can skip most of the work. A frame whose mean difference with the
+ * last sent frame is below [threshold] is suppressed, unless no frame was sent for
+ * [keyframeIntervalMs].
+ */
+class FrameDeduplicator(
+    @Volatile var threshold: Double = DEFAULT_THRESHOLD,
+    @Volatile var keyframeIntervalMs: Long = DEFAULT_KEYFRAME_INTERVAL_MS
+) {
+    companion object {
+        const val DEFAULT_THRESHOLD = 4.0
+        const val DEFAULT_KEYFRAME_INTERVAL_MS = 1000L
+
+        private const val GRID_WIDTH = 16
+        private const val GRID_HEIGHT = 12
+        private const val SAMPLE_SIZE = 8
+    }
+
+    /**
+     * Whether frames are deduplicated at all
+     */
+    @Volatile
+    var isEnabled = true
+
+    private val suppressed = AtomicLong(0)
+    private val bytesSaved = AtomicLong(0)
+
+    // Scratch state, only used under the lock
+    private val lock = Any()
+    private var decodeBitmap: Bitmap? = null
+    private var pixels = IntArray(0)
+    private var lastSignature: IntArray? = null
+    private var currentSignature = IntArray(GRID_WIDTH * GRID_HEIGHT)
+    private val cellCounts = IntArray(GRID_WIDTH * GRID_HEIGHT)
+    private var lastSentTime = 0L
+
+    /**
+     * Number of frames suppressed so far
+     */
+    val suppressedFrames: Long
+        get() = suppressed.get()
+
+    /**
+     * Number of bytes not sent thanks to suppressed frames
+     */
+    val bandwidthSavedBytes: Long
+        get() = bytesSaved.get()
+
+    /**
+     * Decide whether a frame must be sent, and if so remember it as the last sent frame
+     */
+    fun shouldSend(frame: FrameBuffer, nowMs: Long = System.currentTimeMillis()): Boolean {
+        if (!isEnabled) {
+            return true
+        }
+
+        synchronized(lock) {
+            if (!computeSignature(frame.view())) {
+                // Not decodable, let the server decide
+                return true
+            }
+
+            val previous = lastSignature
+            val isKeyframeDue = nowMs - lastSentTime >= keyframeIntervalMs
+            if (previous != null && !isKeyframeDue && difference(previous, currentSignature) < threshold) {
+                suppressed.incrementAndGet()
+                bytesSaved.addAndGet(frame.size.toLong())
+                return false
+            }
+
+            // Swap the signatures rather than copying them
+            lastSignature = currentSignature
+            currentSignature = previous ?: IntArray(GRID_WIDTH * GRID_HEIGHT)
+            lastSentTime = nowMs
+            return true
+        }
+    }
+
+    /**
+     * Forget the last sent frame, so that the next one is always sent
+     */
+    fun reset() {
+        synchronized(lock) {
+            lastSignature = null
+        }
+    }
+
+    private fun computeSignature(jpeg: ByteBuffer): Boolean {
+        val options = BitmapFactory.Options().apply {
+            inSampleSize = SAMPLE_SIZE
+            inMutable = true
+            inBitmap = decodeBitmap
+        }
+        val bitmap = try {
+            BitmapFactory.decodeStream(ByteBufferInputStream(jpeg.duplicate()), null, options)
+        } catch (e: IllegalArgumentException) {
+            // The frame size changed and the previous bitmap cannot be reused
+            options.inBitmap = null
+            BitmapFactory.decodeStream(ByteBufferInputStream(jpeg.duplicate()), null, options)
+        } ?: return false
+        decodeBitmap = bitmap
+
+        val width = bitmap.width
+        val height = bitmap.height
+        if (pixels.size < width * height) {
+            pixels = IntArray(width * height)
+        }
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height)
+
+        // Average the luminance over each cell of the grid
+        Arrays.fill(currentSignature, 0)
+        Arrays.fill(cellCounts, 0)
+        for (y in 0 until height) {
+            val cellRow = y * GRID_HEIGHT / height * GRID_WIDTH
+            for (x in 0 until width) {
+                val pixel = pixels[y * width + x]
+                val luma = (299 * (pixel shr 16 and 0xff) + 587 * (pixel shr 8 and 0xff) + 114 * (pixel and 0xff)) / 1000
+                val cell = cellRow + x * GRID_WIDTH / width
+                currentSignature[cell] += luma
+                cellCounts[cell]++
+            }
+        }
+        for (cell in currentSignature.indices) {
+            if (cellCounts[cell] > 0) {
+                currentSignature[cell] /= cellCounts[cell]
+            }
+        }
+        return true
+    }
+
+    private fun difference(a: IntArray, b: IntArray): Double {
+        var total = 0L
+        for (i in a.indices) {
+            total += abs(a[i] - b[i])
+        }
+        return total.toDouble() / a.size
+    }
+}
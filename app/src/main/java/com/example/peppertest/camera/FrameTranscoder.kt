@@ -0,0 +1,284 @@
+package com.example.peppertest.camera
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Rect
+import com.example.peppertest.logging.AsyncLog
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Re-encodes outgoing frames on a dedicated worker
+ *
+ * Each frame is decoded, optionally cropped around the last face reported by the server,
+ * scaled down to fit [maxWidth] x [maxHeight] and compressed again at a quality taken from
+ * [qualityLadder]. The quality steps down while the send backlog is high and back up once
+ * it drains. Only the most recent frame waits for the worker, older ones are dropped.
+ */
+class FrameTranscoder(
+    private val pool: FrameBufferPool,
+    private val sendBacklogProvider: () -> Long = { 0L }
+) {
+    companion object {
+        private const val TAG = "FrameTranscoder"
+        private const val BACKLOG_HIGH_BYTES = 128L * 1024L
+        private const val BACKLOG_LOW_BYTES = 16L * 1024L
+        private const val ROI_MARGIN = 1.0f
+        private const val ROI_TIMEOUT_MS = 2000L
+        private const val SMOOTHING = 0.2
+        // Frames whose crop is remembered, enough to cover those the server has yet to answer
+        private const val TRACKED_FRAMES = 32
+    }
+
+    /**
+     * Whether frames are transcoded at all
+     */
+    @Volatile
+    var isEnabled = false
+
+    @Volatile
+    var maxWidth = 320
+
+    @Volatile
+    var maxHeight = 240
+
+    /**
+     * JPEG qualities to use, from best to worst
+     */
+    @Volatile
+    var qualityLadder = intArrayOf(85, 70, 55, 40)
+        set(value) {
+            require(value.isNotEmpty()) { "Quality ladder must not be empty" }
+            field = value
+            qualityStep = min(qualityStep, value.size - 1)
+        }
+
+    /**
+     * Whether frames are cropped around the last face box
+     */
+    @Volatile
+    var isRegionOfInterestEnabled = true
+
+    private val worker: ExecutorService = Executors.newSingleThreadExecutor()
+    private val pending = AtomicReference<PendingFrame?>()
+    private val isScheduled = AtomicBoolean(false)
+
+    @Volatile private var qualityStep = 0
+    @Volatile private var smoothedEncodeMs = 0.0
+    @Volatile private var lastEncodeMs = 0L
+
+    // Geometry of the latest transcoded frames by sequence number, to map face boxes back to
+    // the camera frame they were found in
+    private val geometryLock = Any()
+    private val frameGeometry = object : LinkedHashMap<Int, Geometry>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Int, Geometry>?): Boolean {
+            return size > TRACKED_FRAMES
+        }
+    }
+    private val regionOfInterest = Rect()
+    private var regionOfInterestTime = 0L
+
+    // Reusable bitmaps, only used on the worker
+    private var scaledBitmap: Bitmap? = null
+    private val paint = Paint(Paint.FILTER_BITMAP_FLAG)
+
+    /**
+     * JPEG quality currently used
+     */
+    val currentQuality: Int
+        get() = qualityLadder[qualityStep]
+
+    /**
+     * Duration of the last transcode, in milliseconds
+     */
+    val lastEncodeTimeMs: Long
+        get() = lastEncodeMs
+
+    /**
+     * Smoothed duration of a transcode, in milliseconds
+     */
+    val averageEncodeTimeMs: Double
+        get() = smoothedEncodeMs
+
+    /**
+     * Queue a frame for transcoding; [onTranscoded] is called on the worker with a frame
+     * that it owns and must release
+     *
+     * @param sequence number the frame is sent with, that the server echoes with its faces
+     */
+    fun submit(frame: FrameBuffer, timestamp: Long, sequence: Int, onTranscoded: (FrameBuffer, Long) -> Unit) {
+        pending.getAndSet(PendingFrame(frame.retain(), timestamp, sequence, onTranscoded))?.frame?.release()
+        if (!isScheduled.getAndSet(true)) {
+            worker.execute { transcodePending() }
+        }
+    }
+
+    /**
+     * Report a face box found by the server, in the coordinates of the frame it received
+     *
+     * Faces found in frames this transcoder did not produce, or too long ago, are ignored.
+     *
+     * @param frameSequence sequence number the frame was submitted with
+     */
+    fun onFaceDetected(frameSequence: Int, x: Int, y: Int, width: Int, height: Int) {
+        synchronized(geometryLock) {
+            val geometry = frameGeometry[frameSequence] ?: return
+            // Back to camera frame coordinates
+            val left = geometry.crop.left + (x / geometry.scale).toInt()
+            val top = geometry.crop.top + (y / geometry.scale).toInt()
+            val right = left + (width / geometry.scale).toInt()
+            val bottom = top + (height / geometry.scale).toInt()
+            val marginX = ((right - left) * ROI_MARGIN).toInt()
+            val marginY = ((bottom - top) * ROI_MARGIN).toInt()
+            regionOfInterest.set(left - marginX, top - marginY, right + marginX, bottom + marginY)
+            regionOfInterestTime = System.currentTimeMillis()
+        }
+    }
+
+    /**
+     * Stop the worker and drop the pending frame
+     */
+    fun release() {
+        worker.shutdownNow()
+        pending.getAndSet(null)?.frame?.release()
+    }
+
+    private fun transcodePending() {
+        isScheduled.set(false)
+        val next = pending.getAndSet(null) ?: return
+        try {
+            val startTime = System.currentTimeMillis()
+            val transcoded = transcode(next.frame.view(), next.sequence)
+            lastEncodeMs = System.currentTimeMillis() - startTime
+            smoothedEncodeMs = if (smoothedEncodeMs == 0.0) lastEncodeMs.toDouble()
+                else smoothedEncodeMs + SMOOTHING * (lastEncodeMs - smoothedEncodeMs)
+            if (transcoded != null) {
+                next.onTranscoded(transcoded, next.timestamp)
+            }
+        } catch (e: Exception) {
+            AsyncLog.e(TAG, e) { "Error transcoding frame" }
+        } finally {
+            next.frame.release()
+        }
+    }
+
+    private fun transcode(jpeg: ByteBuffer, sequence: Int): FrameBuffer? {
+        val decoder = BitmapRegionDecoder.newInstance(ByteBufferInputStream(jpeg), false) ?: return null
+        try {
+            val crop = cropRect(decoder.width, decoder.height)
+
+            // Let the decoder do most of the downscaling
+            var sampleSize = 1
+            while (crop.width() / (sampleSize * 2) >= maxWidth && crop.height() / (sampleSize * 2) >= maxHeight) {
+                sampleSize *= 2
+            }
+            val options = BitmapFactory.Options().apply { inSampleSize = sampleSize }
+            val decoded = decoder.decodeRegion(crop, options) ?: return null
+
+            // Finish the scaling into a reused bitmap
+            val scale = min(1f, min(maxWidth.toFloat() / crop.width(), maxHeight.toFloat() / crop.height()))
+            val width = max(1, (crop.width() * scale).toInt())
+            val height = max(1, (crop.height() * scale).toInt())
+            val output = if (decoded.width == width && decoded.height == height) decoded else {
+                val target = scaledBitmap?.takeIf { it.width == width && it.height == height }
+                    ?: Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888).also {
+                        scaledBitmap?.recycle()
+                        scaledBitmap = it
+                    }
+                Canvas(target).drawBitmap(decoded, null, Rect(0, 0, width, height), paint)
+                decoded.recycle()
+                target
+            }
+
+            synchronized(geometryLock) {
+                frameGeometry[sequence] = Geometry(crop, scale)
+            }
+
+            val stream = PooledOutputStream(pool, jpeg.remaining())
+            output.compress(Bitmap.CompressFormat.JPEG, nextQuality(), stream)
+            if (output !== scaledBitmap) {
+                output.recycle()
+            }
+            return stream.toFrameBuffer()
+        } finally {
+            decoder.recycle()
+        }
+    }
+
+    private fun cropRect(frameWidth: Int, frameHeight: Int): Rect {
+        val crop = Rect(0, 0, frameWidth, frameHeight)
+        if (!isRegionOfInterestEnabled) {
+            return crop
+        }
+        synchronized(geometryLock) {
+            val isFresh = System.currentTimeMillis() - regionOfInterestTime < ROI_TIMEOUT_MS
+            if (isFresh && !regionOfInterest.isEmpty && crop.intersect(regionOfInterest)) {
+                return crop
+            }
+        }
+        // No recent face: send the whole frame so the server can find one
+        return Rect(0, 0, frameWidth, frameHeight)
+    }
+
+    private fun nextQuality(): Int {
+        val backlog = sendBacklogProvider()
+        val ladder = qualityLadder
+        qualityStep = when {
+            backlog > BACKLOG_HIGH_BYTES -> min(qualityStep + 1, ladder.size - 1)
+            backlog < BACKLOG_LOW_BYTES -> max(qualityStep - 1, 0)
+            else -> min(qualityStep, ladder.size - 1)
+        }
+        return ladder[qualityStep]
+    }
+
+    private class PendingFrame(
+        val frame: FrameBuffer,
+        val timestamp: Long,
+        val sequence: Int,
+        val onTranscoded: (FrameBuffer, Long) -> Unit
+    )
+
+    /**
+     * Region of the camera frame a transcoded frame shows, and the scale it was shown at
+     */
+    private class Geometry(val crop: Rect, val scale: Float)
+
+    /**
+     * Output stream writing into pooled arrays, growing by swapping for a larger one
+     */
+    private class PooledOutputStream(private val pool: FrameBufferPool, initialCapacity: Int) : OutputStream() {
+        private var array = pool.obtain(initialCapacity)
+        private var size = 0
+
+        override fun write(b: Int) {
+            ensureCapacity(size + 1)
+            array[size++] = b.toByte()
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            ensureCapacity(size + len)
+            System.arraycopy(b, off, array, size, len)
+            size += len
+        }
+
+        fun toFrameBuffer(): FrameBuffer = pool.seal(array, size)
+
+        private fun ensureCapacity(capacity: Int) {
+            if (capacity > array.size) {
+                val larger = pool.obtain(max(capacity, array.size * 2))
+                System.arraycopy(array, 0, larger, 0, size)
+                pool.seal(array, 0).release()
+                array = larger
+            }
+        }
+    }
+}
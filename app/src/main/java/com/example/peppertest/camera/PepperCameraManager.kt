@@ -2,50 +2,194 @@ package com.example.peppertest.camera
 
 //import android.graphics.Bitmap
 //import android.graphics.BitmapFactory
-import android.util.Log
 //import com.aldebaran.qi.Future
 import com.aldebaran.qi.sdk.QiContext
 import com.aldebaran.qi.sdk.`object`.camera.TakePicture
 import com.aldebaran.qi.sdk.builder.TakePictureBuilder
 import com.aldebaran.qi.sdk.`object`.image.TimestampedImageHandle
 //import java.io.ByteArrayOutputStream
-//import java.nio.ByteBuffer
+import com.example.peppertest.logging.AsyncLog
+import com.example.peppertest.websocket.PepperWebSocketClient
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Manages camera capture for Pepper robot
+ *
+ * Captures are paced by a [CaptureRateController], at the interval it deems sustainable.
+ * Up to [pipelineDepth] captures may be in flight at once, each on its own TakePicture
+ * action, built as the pipeline deepens. Frames are delivered in timestamp order and a
+ * frame completing after a more recent one is dropped.
+ *
+ * Registered as the client's [PepperWebSocketClient.FrameAckListener], the manager receives
+ * the server processing times and face boxes that steer the capture rate and the crop.
  */
-class PepperCameraManager(private val frameListener: FrameListener) {
+class PepperCameraManager(
+    private val frameListener: FrameListener,
+    private val sendBacklogProvider: () -> Long = { 0L }
+) : PepperWebSocketClient.FrameAckListener {
     companion object {
-        private const val TAG = "PepperCameraManager"
-        private const val TARGET_FPS = 30
-        private const val FRAME_INTERVAL_MS = 1000L / TARGET_FPS
+        const val TAG = "PepperCameraManager"
     }
     
-    private var takePicture: TakePicture? = null
+    @Volatile private var qiContext: QiContext? = null
+    // A TakePicture action runs one capture at a time, so each capture in flight has its own
+    private val idlePictures = ConcurrentLinkedQueue<TakePicture>()
+    private val picturesBuilt = AtomicInteger(0)
     private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
     private var captureTask: ScheduledFuture<*>? = null
     private val isCapturing = AtomicBoolean(false)
     private val isPaused = AtomicBoolean(false)
-    private val isCapturingFrame = AtomicBoolean(false)
+    private val rateController = CaptureRateController()
+    private val capturesInFlight = AtomicInteger(0)
+    private val isWaitingForSlot = AtomicBoolean(false)
+    @Volatile private var lastCaptureStartTime = 0L
+    private val deliveryLock = Any()
+    private var lastDeliveredTimestamp = Long.MIN_VALUE
+    private val droppedFrameCount = AtomicLong(0)
+    // Numbers frames in the order they are handed to the listener
+    private val frameSequence = AtomicInteger(0)
+    @Volatile private var smoothedFrameLatencyMs = 0.0
+    
+    /**
+     * Stage suppressing frames identical to the last one sent
+     */
+    val deduplicator = FrameDeduplicator()
+    
+    /**
+     * Stage downscaling and re-encoding frames on its own worker, disabled by default
+     */
+    val transcoder = FrameTranscoder(FrameBufferPool(), sendBacklogProvider)
+    
+    /**
+     * Maximum number of captures in flight at once, 1 disables pipelining
+     */
+    @Volatile
+    var pipelineDepth: Int = 1
+        set(value) {
+            require(value >= 1) { "Pipeline depth must be at least 1" }
+            field = value
+            rateController.pipelineDepth = value
+        }
+    // Incremented on each start, so that a capture completing after a restart does not fork the loop
+    private val captureGeneration = AtomicInteger(0)
+    
+    /**
+     * Lowest capture rate
+     */
+    val minFps: Double
+        get() = rateController.minFps
+    
+    /**
+     * Highest capture rate
+     */
+    val maxFps: Double
+        get() = rateController.maxFps
+    
+    /**
+     * Rate at which frames are currently captured
+     */
+    val effectiveFps: Double
+        get() = rateController.effectiveFps
+    
+    /**
+     * Smoothed duration of a single capture, in milliseconds
+     */
+    val captureLatencyMs: Double
+        get() = rateController.captureLatencyMs
+    
+    /**
+     * Number of frames dropped because they completed after a more recent one
+     */
+    val droppedFrames: Long
+        get() = droppedFrameCount.get()
+    
+    /**
+     * Smoothed time from the capture of a frame to its acknowledgement, in milliseconds
+     */
+    val frameLatencyMs: Double
+        get() = smoothedFrameLatencyMs
+    
+    /**
+     * Set the bounds of the adaptive capture rate
+     */
+    fun setFpsBounds(minFps: Double, maxFps: Double) {
+        rateController.setFpsBounds(minFps, maxFps)
+    }
+    
+    /**
+     * Report the server processing time of a frame, from a frame acknowledgement
+     */
+    override fun onFrameAcknowledged(processingTimeMs: Long) {
+        rateController.onFrameAcknowledged(processingTimeMs)
+    }
+    
+    /**
+     * Report a face box found by the server, so that the next frames can be cropped around it
+     */
+    override fun onFaceDetected(frameSequence: Int, x: Int, y: Int, width: Int, height: Int) {
+        transcoder.onFaceDetected(frameSequence, x, y, width, height)
+    }
+    
+    /**
+     * Report the end-to-end latency of a frame sent in an envelope
+     */
+    override fun onFrameLatency(sequence: Int, endToEndMs: Long, sendToAckMs: Long) {
+        val previous = smoothedFrameLatencyMs
+        smoothedFrameLatencyMs = if (previous == 0.0) endToEndMs.toDouble() else previous + 0.2 * (endToEndMs - previous)
+    }
     
     /**
      * Initialize the camera with QiContext
      */
     fun initialize(qiContext: QiContext) {
-        Log.d(TAG, "Initializing camera")
+        AsyncLog.d(TAG) { "Initializing camera" }
+        this.qiContext = qiContext
         
-        // Build the take picture action
+        // Build the take picture action of the first pipeline slot, the others on demand
+        buildPicture(qiContext)
+    }
+    
+    /**
+     * Build a take picture action for one more pipeline slot
+     */
+    private fun buildPicture(qiContext: QiContext) {
+        picturesBuilt.incrementAndGet()
         TakePictureBuilder.with(qiContext)
             .buildAsync()
-            .andThenConsume { takePicture ->
-                this.takePicture = takePicture
-                Log.d(TAG, "Camera initialized successfully")
+            .thenConsume { future ->
+                if (future.isSuccess && this.qiContext === qiContext) {
+                    returnPicture(future.get())
+                    val count = picturesBuilt.get()
+                    AsyncLog.d(TAG) { "Camera initialized successfully, $count capture slots" }
+                } else {
+                    // Failed, cancelled, or built for a camera released meanwhile: the slot is free again
+                    picturesBuilt.decrementAndGet()
+                    if (future.hasError()) {
+                        AsyncLog.e(TAG) { "Error building take picture: ${future.error.message}" }
+                    }
+                }
+            }
+    }
+    
+    /**
+     * Put a take picture action back in the pool, or forget it if the camera was released
+     */
+    private fun returnPicture(picture: TakePicture) {
+        if (qiContext != null) {
+            idlePictures.add(picture)
+            // Released in between, after the pool was cleared
+            if (qiContext != null || !idlePictures.remove(picture)) {
+                return
             }
+        }
+        picturesBuilt.decrementAndGet()
     }
     
     /**
@@ -53,44 +197,40 @@ class PepperCameraManager(private val frameListener: FrameListener) {
      */
     fun startCapture() {
         if (isCapturing.getAndSet(true)) {
-            Log.d(TAG, "Capture already running")
+            AsyncLog.d(TAG) { "Capture already running" }
             return
         }
         
-        if (takePicture == null) {
-            Log.e(TAG, "Cannot start capture: camera not initialized")
+        if (qiContext == null) {
+            AsyncLog.e(TAG) { "Cannot start capture: camera not initialized" }
             isCapturing.set(false)
             return
         }
         
         isPaused.set(false)
-        isCapturingFrame.set(false)
+        isWaitingForSlot.set(false)
+        deduplicator.reset()
         
-        Log.d(TAG, "Starting camera capture at $TARGET_FPS FPS")
-        captureTask = executor.scheduleAtFixedRate(
-            { captureFrame() },
-            0,
-            FRAME_INTERVAL_MS,
-            TimeUnit.MILLISECONDS
-        )
+        AsyncLog.d(TAG) { "Starting camera capture between $minFps and $maxFps FPS" }
+        scheduleCapture(captureGeneration.incrementAndGet(), 0)
     }
     
     /**
      * Stop capturing frames
      */
     fun stopCapture() {
-        Log.d(TAG, "Stopping camera capture")
+        AsyncLog.d(TAG) { "Stopping camera capture" }
         captureTask?.cancel(false)
         captureTask = null
         isCapturing.set(false)
-        isCapturingFrame.set(false)
+        isWaitingForSlot.set(false)
     }
     
     /**
      * Pause capturing frames (without canceling the scheduled task)
      */
     fun pauseCapture() {
-        Log.d(TAG, "Pausing camera capture")
+        AsyncLog.d(TAG) { "Pausing camera capture" }
         isPaused.set(true)
     }
     
@@ -98,7 +238,7 @@ class PepperCameraManager(private val frameListener: FrameListener) {
      * Resume capturing frames
      */
     fun resumeCapture() {
-        Log.d(TAG, "Resuming camera capture")
+        AsyncLog.d(TAG) { "Resuming camera capture" }
         isPaused.set(false)
     }
     
@@ -106,40 +246,104 @@ class PepperCameraManager(private val frameListener: FrameListener) {
      * Release resources
      */
     fun release() {
-        Log.d(TAG, "Releasing camera resources")
+        AsyncLog.d(TAG) { "Releasing camera resources" }
         stopCapture()
         executor.shutdown()
-        takePicture = null
+        transcoder.release()
+        qiContext = null
+        // The actions still running are forgotten as they complete
+        while (idlePictures.poll() != null) {
+            picturesBuilt.decrementAndGet()
+        }
+    }
+    
+    /**
+     * Schedule the next capture
+     */
+    private fun scheduleCapture(generation: Int, delayMs: Long) {
+        if (!isCapturing.get() || generation != captureGeneration.get() || executor.isShutdown) {
+            return
+        }
+        captureTask = executor.schedule({ captureFrame(generation) }, delayMs, TimeUnit.MILLISECONDS)
     }
     
     /**
-     * Capture a single frame
+     * Start a capture if the pipeline has room, then schedule the next one
      */
-    private fun captureFrame() {
-        if (isPaused.get() || takePicture == null) {
+    private fun captureFrame(generation: Int) {
+        if (isPaused.get()) {
+            scheduleCapture(generation, rateController.captureIntervalMs)
             return
         }
         
-        if (isCapturingFrame.getAndSet(true)) {
-            Log.d(TAG, "Skipping frame capture - previous capture still in progress")
+        if (capturesInFlight.get() >= pipelineDepth) {
+            // The next capture is scheduled when a slot frees up
+            isWaitingForSlot.set(true)
+            // Unless a capture completed in between and left the scheduling to us
+            if (capturesInFlight.get() >= pipelineDepth || !isWaitingForSlot.getAndSet(false)) {
+                return
+            }
+        }
+        
+        val picture = idlePictures.poll()
+        if (picture == null) {
+            // Every action built is busy or still being built; the pipeline allows one more
+            val ctx = qiContext
+            if (ctx != null && picturesBuilt.get() < pipelineDepth) {
+                buildPicture(ctx)
+            }
+            scheduleCapture(generation, rateController.captureIntervalMs)
             return
         }
         
+        capturesInFlight.incrementAndGet()
+        val startTime = System.currentTimeMillis()
+        lastCaptureStartTime = startTime
         try {
-            takePicture?.async()?.run()?.thenConsume { future ->
-                isCapturingFrame.set(false)
+            picture.async().run().thenConsume { future ->
+                // Back in the pool before the slot frees up, for the capture waiting on it
+                returnPicture(picture)
+                capturesInFlight.decrementAndGet()
+                val latencyMs = System.currentTimeMillis() - startTime
                 
                 if (!future.isCancelled) {
                     if (!future.hasError()) {
-                        processImage(future.get())
+                        rateController.onCaptureCompleted(latencyMs, sendBacklogProvider())
+                        deliverInOrder(future.get())
                     } else {
-                        Log.e(TAG, "Error taking picture: ${future.error.message}")
+                        AsyncLog.e(TAG) { "Error taking picture: ${future.error.message}" }
                     }
                 }
+                
+                if (isWaitingForSlot.getAndSet(false)) {
+                    val sinceLastStart = System.currentTimeMillis() - lastCaptureStartTime
+                    scheduleCapture(generation, maxOf(0L, rateController.captureIntervalMs - sinceLastStart))
+                }
             }
         } catch (e: Exception) {
-            isCapturingFrame.set(false)
-            Log.e(TAG, "Exception during frame capture", e)
+            returnPicture(picture)
+            capturesInFlight.decrementAndGet()
+            AsyncLog.e(TAG, e) { "Exception during frame capture" }
+        }
+        
+        scheduleCapture(generation, rateController.captureIntervalMs)
+    }
+    
+    /**
+     * Deliver a frame unless a more recent one was already delivered
+     *
+     * Frames are processed under the lock, so that they are numbered and reach the listener
+     * strictly in timestamp order. Transcoding, when enabled, runs on its own worker.
+     */
+    private fun deliverInOrder(timestampedImageHandle: TimestampedImageHandle) {
+        synchronized(deliveryLock) {
+            val timestamp = timestampedImageHandle.time
+            if (timestamp <= lastDeliveredTimestamp) {
+                droppedFrameCount.incrementAndGet()
+                return
+            }
+            lastDeliveredTimestamp = timestamp
+            processImage(timestampedImageHandle)
         }
     }
     
@@ -149,22 +353,37 @@ class PepperCameraManager(private val frameListener: FrameListener) {
     private fun processImage(timestampedImageHandle: TimestampedImageHandle) {
         try {
             val encodedImage = timestampedImageHandle.image.value
-            val buffer = encodedImage.data
             
-            // Extract the JPEG data
-            buffer.rewind()
-            val size = buffer.remaining()
-            val imageData = ByteArray(size)
-            buffer.get(imageData)
+            // Lease the JPEG data in place, without copying it
+            val frame = FrameBufferPool.wrap(encodedImage.data.apply { rewind() })
             
             // Get image timestamp
             val timestamp = timestampedImageHandle.time
             
-            // Notify the listener
-            frameListener.onFrameCaptured(imageData, timestamp)
+            // Notify the listener, which retains the frame if it keeps it
+            try {
+                if (!deduplicator.shouldSend(frame)) {
+                    return
+                }
+                val sequence = frameSequence.incrementAndGet()
+                if (transcoder.isEnabled) {
+                    // Re-encoded off the capture thread, the transcoder retains the frame meanwhile
+                    transcoder.submit(frame, timestamp, sequence) { transcoded, transcodedTimestamp ->
+                        try {
+                            frameListener.onFrameCaptured(transcoded, transcodedTimestamp, sequence)
+                        } finally {
+                            transcoded.release()
+                        }
+                    }
+                } else {
+                    frameListener.onFrameCaptured(frame, timestamp, sequence)
+                }
+            } finally {
+                frame.release()
+            }
             
         } catch (e: Exception) {
-            Log.e(TAG, "Error processing image", e)
+            AsyncLog.e(TAG, e) { "Error processing image" }
         }
     }
     
@@ -172,6 +391,13 @@ class PepperCameraManager(private val frameListener: FrameListener) {
      * Interface for frame listeners
      */
     interface FrameListener {
-        fun onFrameCaptured(imageData: ByteArray, timestamp: Long = System.currentTimeMillis())
+        /**
+         * Called with the encoded frame; the frame is only valid during the call unless
+         * the listener retains it
+         *
+         * @param sequence number to send the frame with, so that the faces the server finds
+         * in it can be traced back to it
+         */
+        fun onFrameCaptured(frame: FrameBuffer, timestamp: Long, sequence: Int)
     }
-} 
\ No newline at end of file
+}
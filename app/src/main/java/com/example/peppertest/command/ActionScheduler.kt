@@ -0,0 +1,261 @@
+package com.example.peppertest.command
+
+import com.example.peppertest.logging.AsyncLog
+import java.util.ArrayDeque
+import java.util.EnumMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs robot actions on independent lanes, one per robot resource
+ *
+ * Each lane runs one action at a time on its own thread: gestures and base motion go on
+ * concurrently while two actions needing the same resource never overlap. An action
+ * submitted to a busy lane waits, replaces the waiting ones or preempts the running one,
+ * depending on its [Policy]. Time spent waiting and running is measured per lane.
+ */
+class ActionScheduler {
+    companion object {
+        private const val TAG = "ActionScheduler"
+        private const val SMOOTHING = 0.2
+        private const val CANCEL_POLL_MS = 10L
+    }
+
+    /**
+     * Robot resource an action occupies while it runs
+     */
+    enum class Lane {
+        BODY,
+        BASE
+    }
+
+    /**
+     * What happens to an action submitted while its lane is busy
+     */
+    enum class Policy {
+        // Wait behind the running and waiting actions
+        QUEUE,
+        // Drop the waiting actions, let the running one finish
+        REPLACE,
+        // Drop the waiting actions and cancel the running one
+        PREEMPT
+    }
+
+    /**
+     * Why an action was dropped before it started
+     */
+    enum class DropReason {
+        // A later action with the REPLACE or PREEMPT policy took its place
+        REPLACED,
+        // Its lane was cancelled
+        CANCELLED
+    }
+
+    /**
+     * Action run on a lane thread, which [run] may block until the action is over
+     */
+    abstract class Action(val name: String) {
+        @Volatile
+        var isCancelled = false
+            private set
+
+        abstract fun run()
+
+        /**
+         * Stop the running action, called from another thread; [run] should return soon after
+         */
+        protected open fun onCancel() {}
+
+        /**
+         * Called once if the action is dropped while waiting, so [run] will never be called;
+         * from the thread that dropped it, outside the lane lock
+         */
+        protected open fun onDropped(reason: DropReason) {}
+
+        /**
+         * Wait on the lane thread, unless the action gets cancelled meanwhile
+         *
+         * @return false if the action was cancelled
+         */
+        protected fun sleepUnlessCancelled(durationMs: Long): Boolean {
+            val deadline = System.currentTimeMillis() + durationMs
+            while (!isCancelled) {
+                val remainingMs = deadline - System.currentTimeMillis()
+                if (remainingMs <= 0) {
+                    return true
+                }
+                Thread.sleep(minOf(remainingMs, CANCEL_POLL_MS))
+            }
+            return false
+        }
+
+        internal fun cancel() {
+            isCancelled = true
+            onCancel()
+        }
+
+        internal fun drop(reason: DropReason) {
+            isCancelled = true
+            onDropped(reason)
+        }
+    }
+
+    /**
+     * Counters and timings of a lane
+     *
+     * @param queueWaitMs smoothed time actions wait before running, in milliseconds
+     * @param runMs smoothed time actions take to run, in milliseconds
+     */
+    data class LaneStats(
+        val submitted: Long,
+        val completed: Long,
+        val failed: Long,
+        val replaced: Long,
+        val preempted: Long,
+        val waiting: Int,
+        val isBusy: Boolean,
+        val queueWaitMs: Double,
+        val runMs: Double
+    )
+
+    private val workers = EnumMap<Lane, Worker>(Lane::class.java).apply {
+        Lane.values().forEach { put(it, Worker(it)) }
+    }
+
+    /**
+     * Submit an action to a lane, applying [policy] to what the lane already holds
+     */
+    fun submit(lane: Lane, policy: Policy, action: Action) {
+        workers.getValue(lane).submit(action, policy)
+    }
+
+    /**
+     * Cancel the running action of a lane and drop the waiting ones
+     */
+    fun cancel(lane: Lane) {
+        workers.getValue(lane).cancelAll()
+    }
+
+    /**
+     * Whether an action is running on a lane
+     */
+    fun isBusy(lane: Lane): Boolean {
+        return workers.getValue(lane).isBusy
+    }
+
+    fun stats(lane: Lane): LaneStats {
+        return workers.getValue(lane).stats()
+    }
+
+    /**
+     * Cancel everything and stop the lane threads
+     */
+    fun release() {
+        workers.values.forEach {
+            it.cancelAll()
+            it.executor.shutdown()
+        }
+    }
+
+    private class Queued(val action: Action, val queuedAt: Long)
+
+    private class Worker(private val lane: Lane) {
+        val executor: ExecutorService = Executors.newSingleThreadExecutor { Thread(it, "${TAG}-${lane.name.toLowerCase()}") }
+        private val lock = Any()
+        private val waiting = ArrayDeque<Queued>()
+        private var running: Action? = null
+        private var submitted = 0L
+        private var completed = 0L
+        private var failed = 0L
+        private var replaced = 0L
+        private var preempted = 0L
+        private var queueWaitMs = 0.0
+        private var runMs = 0.0
+
+        fun submit(action: Action, policy: Policy) {
+            var dropped: List<Action> = emptyList()
+            val cancelled = synchronized(lock) {
+                val cancelled = if (policy == Policy.PREEMPT) running else null
+                if (policy != Policy.QUEUE) {
+                    dropped = drainWaiting()
+                }
+                if (cancelled != null) {
+                    preempted++
+                }
+                waiting.addLast(Queued(action, System.nanoTime()))
+                submitted++
+                cancelled
+            }
+            // Callbacks may take time or call back into the scheduler, so never under the lock
+            dropped.forEach { it.drop(DropReason.REPLACED) }
+            cancelled?.let {
+                AsyncLog.d(TAG) { "${lane.name}: ${action.name} preempts ${it.name}" }
+                it.cancel()
+            }
+            // One task per submission; those finding their action dropped do nothing
+            executor.execute { runNext() }
+        }
+
+        fun cancelAll() {
+            var dropped: List<Action> = emptyList()
+            val cancelled = synchronized(lock) {
+                dropped = drainWaiting()
+                running?.also { preempted++ }
+            }
+            dropped.forEach { it.drop(DropReason.CANCELLED) }
+            cancelled?.cancel()
+        }
+
+        // Called with the lock held
+        private fun drainWaiting(): List<Action> {
+            if (waiting.isEmpty()) {
+                return emptyList()
+            }
+            val dropped = waiting.map { it.action }
+            replaced += dropped.size
+            waiting.clear()
+            return dropped
+        }
+
+        val isBusy: Boolean
+            get() = synchronized(lock) { running != null }
+
+        fun stats(): LaneStats {
+            synchronized(lock) {
+                return LaneStats(submitted, completed, failed, replaced, preempted, waiting.size, running != null, queueWaitMs, runMs)
+            }
+        }
+
+        private fun runNext() {
+            val queued = synchronized(lock) {
+                waiting.pollFirst()?.also { running = it.action }
+            } ?: return
+            val action = queued.action
+            val startedAt = System.nanoTime()
+            val waitMs = TimeUnit.NANOSECONDS.toMillis(startedAt - queued.queuedAt)
+            var succeeded = false
+            try {
+                action.run()
+                succeeded = !action.isCancelled
+            } catch (e: Exception) {
+                if (!action.isCancelled) {
+                    AsyncLog.e(TAG, e) { "${lane.name}: ${action.name} failed" }
+                }
+            } finally {
+                val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)
+                synchronized(lock) {
+                    running = null
+                    if (succeeded) {
+                        completed++
+                    } else if (!action.isCancelled) {
+                        failed++
+                    }
+                    queueWaitMs += SMOOTHING * (waitMs - queueWaitMs)
+                    runMs += SMOOTHING * (elapsedMs - runMs)
+                }
+                AsyncLog.d(TAG) { "${lane.name}: ${action.name} waited $waitMs ms, ran $elapsedMs ms" }
+            }
+        }
+    }
+}
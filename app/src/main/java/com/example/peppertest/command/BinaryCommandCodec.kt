@@ -0,0 +1,255 @@
+package com.example.peppertest.command
+
+import okio.Buffer
+import okio.ByteString
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+
+/**
+ * Compact binary encoding of commands and command status, used instead of JSON when the
+ * server accepts the [SUBPROTOCOL] offered at connection time
+ *
+ * Every message starts with a 5-byte header: the "PC" magic, a version, a kind and flags.
+ * When [FLAG_SEQUENCE] is set the header is followed by the unsigned 32-bit session sequence
+ * number of the message, then when [FLAG_FACE] is set by a face box, four unsigned 16-bit values,
+ * then when [FLAG_FACE_SEQUENCE] is set by the unsigned 32-bit envelope sequence number of the
+ * frame the face was found in, then when [FLAG_POLICY] is set by the command's
+ * [ActionScheduler.Policy], one byte.
+ * Strings are UTF-8 prefixed with an unsigned 16-bit length, numbers are big-endian.
+ * The magic never starts a JPEG (0xFFD8) nor a frame envelope ("PF").
+ */
+object BinaryCommandCodec {
+    const val SUBPROTOCOL = "pepper-bin"
+
+    private const val MAGIC = 0x5043 // "PC"
+    private const val VERSION = 1
+    private const val HEADER_SIZE = 5
+
+    const val FLAG_FACE = 0x01
+    const val FLAG_SEQUENCE = 0x02
+    // Command status only: the command's trace follows its timestamp
+    const val FLAG_TRACE = 0x04
+    // Animate and goto only: the policy overriding the dispatcher's default follows the face
+    const val FLAG_POLICY = 0x08
+    const val FLAG_FACE_SEQUENCE = 0x10
+    private const val SAY_WITH_ANIMATION = 0x01
+    private const val SAY_URGENT = 0x02
+
+    // Policies on the wire, any other value leaves the default
+    private const val POLICY_QUEUE = 1
+    private const val POLICY_REPLACE = 2
+    private const val POLICY_PREEMPT = 3
+
+    // Server to robot
+    private const val KIND_SAY = 1
+    private const val KIND_ANIMATE = 2
+    private const val KIND_GO_TO = 3
+    private const val KIND_NONE = 4
+    private const val KIND_CONFIG = 5
+
+    // Robot to server
+    private const val KIND_COMMAND_STATUS = 0x81
+
+    /**
+     * Whether a binary message is in this encoding rather than a camera frame
+     */
+    fun isCommandMessage(data: ByteBuffer): Boolean {
+        return data.remaining() >= HEADER_SIZE &&
+            (data.getShort(data.position()).toInt() and 0xffff) == MAGIC &&
+            data.get(data.position() + 2).toInt() == VERSION
+    }
+
+    /**
+     * Session sequence number of a message, or 0 if it carries none
+     */
+    fun sequenceOf(data: ByteBuffer): Int {
+        if (!isCommandMessage(data)) {
+            return 0
+        }
+        val flags = data.get(data.position() + 4).toInt() and 0xff
+        return if (flags and FLAG_SEQUENCE != 0 && data.remaining() >= HEADER_SIZE + 4) {
+            data.getInt(data.position() + HEADER_SIZE)
+        } else 0
+    }
+
+    /**
+     * Decode a command straight into its typed form
+     *
+     * @param onFace called with the face box carried by the message, if any, after the
+     * sequence number of the frame it was found in, 0 if the message does not say
+     * @return the command, or null if the message is not a known command
+     */
+    fun decode(data: ByteBuffer, onFace: ((Int, Int, Int, Int, Int) -> Unit)? = null): Command? {
+        val input = data.duplicate()
+        if (!isCommandMessage(input)) {
+            return null
+        }
+        input.position(input.position() + 3)
+        val kind = input.get().toInt() and 0xff
+        val flags = input.get().toInt() and 0xff
+        if (flags and FLAG_SEQUENCE != 0) {
+            input.position(input.position() + 4)
+        }
+        if (flags and FLAG_FACE != 0) {
+            val x = readUnsignedShort(input)
+            val y = readUnsignedShort(input)
+            val width = readUnsignedShort(input)
+            val height = readUnsignedShort(input)
+            val frameSequence = if (flags and FLAG_FACE_SEQUENCE != 0) input.int else 0
+            onFace?.invoke(frameSequence, x, y, width, height)
+        }
+        val policy = if (flags and FLAG_POLICY != 0) policyOf(input.get().toInt() and 0xff) else null
+        return when (kind) {
+            KIND_SAY -> {
+                val sayFlags = input.get().toInt()
+                Command.Say(readString(input), sayFlags and SAY_WITH_ANIMATION != 0, sayFlags and SAY_URGENT != 0)
+            }
+            KIND_ANIMATE -> Command.Animate(readString(input), policy)
+            KIND_GO_TO -> Command.GoTo(input.float.toDouble(), input.float.toDouble(), input.float.toDouble(), policy)
+            KIND_NONE -> Command.None
+            KIND_CONFIG -> {
+                val url = readString(input)
+                // Candidate endpoints follow, count first, when the server sent any
+                val count = if (input.hasRemaining()) input.get().toInt() and 0xff else 0
+                Command.Config(url, List(count) { readString(input) })
+            }
+            else -> null
+        }
+    }
+
+    /**
+     * Encode a command, the way the server does
+     */
+    fun encode(command: Command, sequence: Int = 0): ByteString {
+        val buffer = Buffer()
+        when (command) {
+            is Command.Say -> {
+                writeHeader(buffer, KIND_SAY, sequence)
+                buffer.writeByte((if (command.withAnimation) SAY_WITH_ANIMATION else 0) or (if (command.isUrgent) SAY_URGENT else 0))
+                writeString(buffer, command.text)
+            }
+            is Command.Animate -> {
+                writePolicyHeader(buffer, KIND_ANIMATE, sequence, command.policy)
+                writeString(buffer, command.animation)
+            }
+            is Command.GoTo -> {
+                writePolicyHeader(buffer, KIND_GO_TO, sequence, command.policy)
+                buffer.writeInt(java.lang.Float.floatToIntBits(command.x.toFloat()))
+                buffer.writeInt(java.lang.Float.floatToIntBits(command.y.toFloat()))
+                buffer.writeInt(java.lang.Float.floatToIntBits(command.theta.toFloat()))
+            }
+            is Command.Config -> {
+                writeHeader(buffer, KIND_CONFIG, sequence)
+                writeString(buffer, command.websocketUrl)
+                if (command.endpoints.isNotEmpty()) {
+                    require(command.endpoints.size <= 0xff) { "Too many endpoints: ${command.endpoints.size}" }
+                    buffer.writeByte(command.endpoints.size)
+                    command.endpoints.forEach { writeString(buffer, it) }
+                }
+            }
+            Command.None -> writeHeader(buffer, KIND_NONE, sequence)
+        }
+        return buffer.readByteString()
+    }
+
+    /**
+     * Encode the status of a command sent back to the server
+     *
+     * With [FLAG_TRACE], the timestamp is followed by the command's trace: its identifier, the
+     * wall-clock time of its receipt, then for each [CommandTrace.Stage] in order the signed
+     * 32-bit time from the receipt to the stage in microseconds, -1 if it was not reached.
+     * The depth of the queue the command waited in and the time it waited come last, an
+     * unsigned 16-bit and an unsigned 32-bit value, when the command was queued.
+     *
+     * @param sequence session sequence number, 0 for none
+     * @param queueDepth commands still waiting in the queue, negative if the command was not queued
+     */
+    fun encodeStatus(
+        action: String,
+        status: String,
+        text: String,
+        timestampMs: Long,
+        sequence: Int = 0,
+        queueDepth: Int = -1,
+        queueWaitMs: Long = 0L,
+        trace: CommandTrace? = null
+    ): ByteString {
+        val buffer = Buffer()
+        writeHeader(buffer, KIND_COMMAND_STATUS, sequence, if (trace != null) FLAG_TRACE else 0)
+        writeString(buffer, action)
+        writeString(buffer, status)
+        writeString(buffer, text)
+        buffer.writeLong(timestampMs)
+        if (trace != null) {
+            writeString(buffer, trace.id)
+            buffer.writeLong(trace.receivedAtMs)
+            CommandTrace.Stage.values().forEach {
+                buffer.writeInt(minOf(trace.elapsedMicros(it), Int.MAX_VALUE.toLong()).toInt())
+            }
+        }
+        if (queueDepth >= 0) {
+            buffer.writeShort(minOf(queueDepth, 0xffff))
+            buffer.writeInt(queueWaitMs.coerceIn(0L, 0xffffffffL).toInt())
+        }
+        return buffer.readByteString()
+    }
+
+    private fun writeHeader(buffer: Buffer, kind: Int, sequence: Int, flags: Int = 0) {
+        buffer.writeShort(MAGIC)
+        buffer.writeByte(VERSION)
+        buffer.writeByte(kind)
+        if (sequence != 0) {
+            buffer.writeByte(flags or FLAG_SEQUENCE)
+            buffer.writeInt(sequence)
+        } else {
+            buffer.writeByte(flags)
+        }
+    }
+
+    private fun writePolicyHeader(buffer: Buffer, kind: Int, sequence: Int, policy: ActionScheduler.Policy?) {
+        if (policy == null) {
+            writeHeader(buffer, kind, sequence)
+            return
+        }
+        writeHeader(buffer, kind, sequence, FLAG_POLICY)
+        buffer.writeByte(when (policy) {
+            ActionScheduler.Policy.QUEUE -> POLICY_QUEUE
+            ActionScheduler.Policy.REPLACE -> POLICY_REPLACE
+            ActionScheduler.Policy.PREEMPT -> POLICY_PREEMPT
+        })
+    }
+
+    private fun policyOf(code: Int): ActionScheduler.Policy? {
+        return when (code) {
+            POLICY_QUEUE -> ActionScheduler.Policy.QUEUE
+            POLICY_REPLACE -> ActionScheduler.Policy.REPLACE
+            POLICY_PREEMPT -> ActionScheduler.Policy.PREEMPT
+            else -> null
+        }
+    }
+
+    private fun writeString(buffer: Buffer, value: String) {
+        val bytes = value.toByteArray(StandardCharsets.UTF_8)
+        require(bytes.size <= 0xffff) { "String too long: ${bytes.size} bytes" }
+        buffer.writeShort(bytes.size)
+        buffer.write(bytes)
+    }
+
+    private fun readUnsignedShort(input: ByteBuffer): Int {
+        return input.short.toInt() and 0xffff
+    }
+
+    private fun readString(input: ByteBuffer): String {
+        val length = readUnsignedShort(input)
+        // Decode in place when possible, without copying the bytes out first
+        val value = if (input.hasArray()) {
+            String(input.array(), input.arrayOffset() + input.position(), length, StandardCharsets.UTF_8)
+        } else {
+            val bytes = ByteArray(length)
+            input.duplicate().get(bytes)
+            String(bytes, StandardCharsets.UTF_8)
+        }
+        input.position(input.position() + length)
+        return value
+    }
+}
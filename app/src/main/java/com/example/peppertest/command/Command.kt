@@ -0,0 +1,118 @@
+package com.example.peppertest.command
+
+import org.json.JSONObject
+
+/**
+ * Typed command received from the server, whatever its wire encoding
+ */
+sealed class Command {
+    /**
+     * Say a text, optionally with an animation
+     *
+     * @param isUrgent said before anything waiting, interrupting the current utterance
+     */
+    data class Say(val text: String, val withAnimation: Boolean, val isUrgent: Boolean = false) : Command()
+
+    /**
+     * Run a named animation
+     *
+     * @param policy what to do if a gesture is already running, the dispatcher's default when null
+     */
+    data class Animate(val animation: String, val policy: ActionScheduler.Policy? = null) : Command()
+
+    /**
+     * Move relative to the robot, in meters and radians
+     *
+     * @param policy what to do if a move is already running, the dispatcher's default when null
+     */
+    data class GoTo(
+        val x: Double,
+        val y: Double,
+        val theta: Double,
+        val policy: ActionScheduler.Policy? = null
+    ) : Command()
+
+    /**
+     * Change the server URL, optionally with the list of candidate endpoints to fail over to
+     */
+    data class Config(val websocketUrl: String, val endpoints: List<String> = emptyList()) : Command()
+
+    /**
+     * Send the latency percentiles of the commands handled so far back to the server
+     */
+    object ReportLatency : Command()
+
+    /**
+     * Nothing to do
+     */
+    object None : Command()
+
+    companion object {
+        /**
+         * Value of the optional `priority` field of speech commands marking them urgent
+         */
+        const val PRIORITY_HIGH = "high"
+
+        /**
+         * Policy named by the optional `policy` field of a command, "queue", "replace" or "preempt"
+         *
+         * @return the policy, or null for a missing or unknown name so that the default applies
+         */
+        fun policyOf(name: String?): ActionScheduler.Policy? {
+            return ActionScheduler.Policy.values().firstOrNull { it.name.equals(name, ignoreCase = true) }
+        }
+
+        /**
+         * Convert a JSON command, in any of the formats the server sends, to a typed command
+         *
+         * Messages are decoded by [JsonCommandDecoder]; this tree-based decoding is the reference
+         * its output and speed are checked against.
+         *
+         * @return the command, or null if the message is not a known command
+         */
+        fun fromJson(json: JSONObject): Command? {
+            return when (json.optString("type")) {
+                "command" -> fromAction(json)
+                // Server-generated responses are always animated to make them more engaging
+                "speech" -> if (json.optString("action") == "say") {
+                    json.optString("text").takeIf { it.isNotEmpty() }?.let { Say(it, true, isUrgent(json)) }
+                } else null
+                // Original format for backward compatibility
+                "speak" -> json.optString("text").takeIf { it.isNotEmpty() }?.let {
+                    Say(it, json.optBoolean("with_animation", false), isUrgent(json))
+                }
+                "config" -> json.optString("websocket_url").takeIf { it.isNotEmpty() }?.let { url ->
+                    val endpoints = json.optJSONArray("websocket_urls")
+                    Config(url, if (endpoints == null) emptyList() else List(endpoints.length()) { endpoints.getString(it) })
+                }
+                "latency_stats" -> ReportLatency
+                else -> null
+            }
+        }
+
+        /**
+         * Convert the action of a JSON command to a typed command, ignoring its type
+         *
+         * @return the command, or null if the action is unknown or incomplete
+         */
+        private fun fromAction(json: JSONObject): Command? {
+            return when (json.optString("action")) {
+                "say" -> json.optString("text").takeIf { it.isNotEmpty() }?.let {
+                    Say(it, json.optBoolean("with_animation", false), isUrgent(json))
+                }
+                "animate" -> json.optString("animation").takeIf { it.isNotEmpty() }?.let {
+                    Animate(it, policyOf(json.optString("policy")))
+                }
+                "goto" -> if (json.has("x") && json.has("y") && json.has("theta")) {
+                    GoTo(json.getDouble("x"), json.getDouble("y"), json.getDouble("theta"), policyOf(json.optString("policy")))
+                } else null
+                "none" -> None
+                else -> null
+            }
+        }
+
+        private fun isUrgent(json: JSONObject): Boolean {
+            return json.optString("priority") == PRIORITY_HIGH
+        }
+    }
+}
@@ -1,214 +1,335 @@
 package com.example.peppertest.command
 
-import android.util.Log
+import android.os.SystemClock
 import com.aldebaran.qi.Future
 import com.aldebaran.qi.sdk.QiContext
 import com.aldebaran.qi.sdk.builder.AnimateBuilder
 import com.aldebaran.qi.sdk.builder.AnimationBuilder
 import com.aldebaran.qi.sdk.builder.GoToBuilder
-import com.aldebaran.qi.sdk.builder.SayBuilder
 import com.aldebaran.qi.sdk.builder.TransformBuilder
 import com.aldebaran.qi.sdk.`object`.actuation.Animate
 import com.aldebaran.qi.sdk.`object`.actuation.Animation
 import com.aldebaran.qi.sdk.`object`.actuation.GoTo
 import com.aldebaran.qi.sdk.`object`.actuation.Frame
-import com.aldebaran.qi.sdk.`object`.conversation.Phrase
-import com.aldebaran.qi.sdk.`object`.conversation.Say
+import com.aldebaran.qi.sdk.`object`.actuation.FreeFrame
 import com.aldebaran.qi.sdk.`object`.geometry.Transform
-import org.json.JSONObject
+import com.example.peppertest.logging.AsyncLog
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Dispatches commands to appropriate QiSDK actions
+ *
+ * Actions run on the lanes of an [ActionScheduler]: gestures and base motion proceed
+ * concurrently, while commands for the same resource follow their policy, the default one
+ * of the command or the one it was sent with. Speech does not go through the dispatcher,
+ * it has its own [SpeechQueue].
+ *
+ * @param onStatus called on the lane thread when an action starts and when it ends, with
+ * "started", "completed", "cancelled" or "error", and the trace of its command if it had one;
+ * an action dropped before it started ends with "replaced" or "cancelled", reported from the
+ * thread that dropped it
  */
-class CommandDispatcher(private val qiContext: QiContext) {
+class CommandDispatcher(
+    private val qiContext: QiContext,
+    private val onStatus: (Command, String, CommandTrace?) -> Unit = { _, _, _ -> }
+) {
     companion object {
         private const val TAG = "CommandDispatcher"
-        
-        // Command types
-        private const val CMD_SAY = "say"
-        private const val CMD_ANIMATE = "animate"
-        private const val CMD_GO_TO = "goto"
+        // Targets this close to the one being reached do not start a new move
+        private const val GOTO_POSITION_TOLERANCE_M = 0.1
+        private const val GOTO_ANGLE_TOLERANCE_RAD = 0.1
+        // Moves start at most this often, the vision server sends targets at frame rate
+        private const val GOTO_MIN_INTERVAL_MS = 500L
+        // Names the server used before animations were indexed by file name
+        private val LEGACY_ANIMATION_NAMES = mapOf("raiseHands" to "raise_both_hands_b001")
     }
     
-    private val executor: ExecutorService = Executors.newSingleThreadExecutor()
-    private val animationCache = ConcurrentHashMap<String, Animation>()
+    /**
+     * Outcome of [preloadAnimations]
+     *
+     * @param fileBytes size of the animation files built
+     * @param heapBytes growth of the Java heap meanwhile; animations live mostly in the robot
+     * services, and other threads allocate too, so this is only a rough figure
+     */
+    data class AnimationPreload(
+        val loaded: Int,
+        val failed: Int,
+        val elapsedMs: Long,
+        val fileBytes: Long,
+        val heapBytes: Long
+    )
+    
+    private val scheduler = ActionScheduler()
+    // Animations of this robot focus, by file name, built or being built
+    private val animationCache = ConcurrentHashMap<String, Future<Animation>>()
+    
+    // Robot frame and the target frame reused by every move, only touched on the base lane
+    private var goToFrames: Pair<Frame, FreeFrame>? = null
+    // Target of the last move submitted
+    @Volatile private var latestGoTo: Command.GoTo? = null
+    @Volatile private var lastGoToStartMs = 0L
+    private val coalescedGoToCount = AtomicLong(0)
     
     /**
-     * Dispatch a command to the appropriate handler
+     * Number of goto commands ignored as too close to the target being reached
      */
-    fun dispatch(command: JSONObject) {
-        try {
-            if (!command.has("action")) {
-                Log.e(TAG, "Command missing 'action' field: $command")
-                return
-            }
-            
-            val action = command.getString("action")
-            Log.d(TAG, "Dispatching command: $action")
-            
-            executor.submit {
-                try {
-                    when (action) {
-                        CMD_SAY -> handleSayCommand(command)
-                        CMD_ANIMATE -> handleAnimateCommand(command)
-                        CMD_GO_TO -> handleGoToCommand(command)
-                        "none" -> Log.d(TAG, "Received 'none' command, no action needed")
-                        else -> Log.w(TAG, "Unknown command action: $action")
-                    }
-                } catch (e: Exception) {
-                    Log.e(TAG, "Error executing command: $action", e)
-                }
+    val coalescedGoTos: Long
+        get() = coalescedGoToCount.get()
+    
+    /**
+     * Dispatch a typed command to the lane of the resource it uses, with the policy it was
+     * sent with or else its default one
+     *
+     * @param trace trace of the command, marked as the action goes through its stages
+     */
+    fun dispatch(command: Command, trace: CommandTrace? = null) {
+        AsyncLog.d(TAG) { "Dispatching command: $command" }
+        
+        when (command) {
+            // Only the latest gesture still makes sense once the current one is over
+            is Command.Animate -> submit(
+                ActionScheduler.Lane.BODY, command.policy ?: ActionScheduler.Policy.REPLACE, AnimateAction(command, trace)
+            )
+            // A new target supersedes the one being reached, unless it is the same
+            is Command.GoTo -> if (isCoalesced(command)) {
+                coalescedGoToCount.incrementAndGet()
+                AsyncLog.d(TAG) { "Goto within tolerance of the current target, ignored: $command" }
+            } else {
+                latestGoTo = command
+                submit(ActionScheduler.Lane.BASE, command.policy ?: ActionScheduler.Policy.PREEMPT, GoToAction(command, trace))
             }
-        } catch (e: Exception) {
-            Log.e(TAG, "Error dispatching command", e)
+            Command.None -> AsyncLog.d(TAG) { "Received 'none' command, no action needed" }
+            else -> AsyncLog.w(TAG) { "Command not handled by the dispatcher: $command" }
         }
     }
     
+    private fun submit(lane: ActionScheduler.Lane, policy: ActionScheduler.Policy, action: QiAction) {
+        action.trace?.mark(CommandTrace.Stage.QUEUED)
+        scheduler.submit(lane, policy, action)
+    }
+    
     /**
-     * Handle a say command
+     * Counters and timings of each lane
      */
-    private fun handleSayCommand(command: JSONObject) {
-        if (!command.has("text")) {
-            Log.e(TAG, "Say command missing 'text' field")
-            return
+    fun laneStats(): Map<ActionScheduler.Lane, ActionScheduler.LaneStats> {
+        return ActionScheduler.Lane.values().associate { it to scheduler.stats(it) }
+    }
+    
+    /**
+     * QiSDK action started asynchronously, so that it can be cancelled while it runs
+     *
+     * The build and run stages of the command's trace are marked along the way, and its
+     * status reported when the action starts and ends.
+     */
+    private abstract inner class QiAction(
+        name: String,
+        private val command: Command,
+        val trace: CommandTrace?
+    ) : ActionScheduler.Action(name) {
+        @Volatile private var future: Future<*>? = null
+        
+        /**
+         * Build the action and start it, or return null if there is nothing to run
+         */
+        abstract fun start(): Future<*>?
+        
+        override fun run() {
+            val future = start()
+            if (future == null) {
+                onStatus(command, if (isCancelled) "cancelled" else "error", trace)
+                return
+            }
+            this.future = future
+            if (isCancelled) {
+                future.requestCancellation()
+            }
+            trace?.mark(CommandTrace.Stage.RUN_STARTED)
+            onStatus(command, "started", trace)
+            try {
+                future.get()
+            } finally {
+                trace?.mark(CommandTrace.Stage.RUN_ENDED)
+                val status = when {
+                    future.isSuccess && !isCancelled -> "completed"
+                    isCancelled || future.isCancelled -> "cancelled"
+                    else -> "error"
+                }
+                onStatus(command, status, trace)
+            }
         }
         
-        val text = command.getString("text")
-        Log.d(TAG, "Executing say command: $text")
+        /**
+         * Build an action, marking the build in the command's trace
+         */
+        protected fun <T> build(builder: () -> T): T {
+            trace?.mark(CommandTrace.Stage.BUILD_STARTED)
+            return builder().also {
+                trace?.mark(CommandTrace.Stage.BUILT)
+            }
+        }
         
-        try {
-            val phrase = Phrase(text)
-            val say = SayBuilder.with(qiContext)
-                .withPhrase(phrase)
-                .build()
-                
-            say.run()
-        } catch (e: Exception) {
-            Log.e(TAG, "Error executing say command", e)
+        override fun onCancel() {
+            future?.requestCancellation()
+        }
+        
+        override fun onDropped(reason: ActionScheduler.DropReason) {
+            val status = if (reason == ActionScheduler.DropReason.REPLACED) "replaced" else "cancelled"
+            onStatus(command, status, trace)
         }
     }
     
     /**
-     * Handle an animate command
+     * Run a command's animation
      */
-    private fun handleAnimateCommand(command: JSONObject) {
-        if (!command.has("animation")) {
-            Log.e(TAG, "Animate command missing 'animation' field")
-            return
-        }
-        
-        val animationName = command.getString("animation")
-        Log.d(TAG, "Executing animate command: $animationName")
-        
-        try {
-            // Get or create the animation
-            val animation = getOrCreateAnimation(animationName)
-            if (animation == null) {
-                Log.e(TAG, "Animation not found: $animationName")
-                return
+    private inner class AnimateAction(private val command: Command.Animate, trace: CommandTrace?) : QiAction("animate", command, trace) {
+        override fun start(): Future<*>? {
+            val animationName = command.animation
+            AsyncLog.d(TAG) { "Executing animate command: $animationName" }
+            
+            // Get or create the animation, then the animate action
+            val animate = build {
+                getOrCreateAnimation(animationName)?.let {
+                    AnimateBuilder.with(qiContext)
+                        .withAnimation(it)
+                        .build()
+                }
+            }
+            if (animate == null) {
+                AsyncLog.e(TAG) { "Animation not found: $animationName" }
+                return null
             }
             
-            // Create and run the animate action
-            val animate = AnimateBuilder.with(qiContext)
-                .withAnimation(animation)
-                .build()
-                
-            animate.run()
-        } catch (e: Exception) {
-            Log.e(TAG, "Error executing animate command", e)
+            return animate.async().run()
         }
     }
     
     /**
-     * Handle a go to command
+     * Move the robot to a command's position
+     *
+     * Every move targets the same FreeFrame, updated in place. A move starts no sooner than
+     * [GOTO_MIN_INTERVAL_MS] after the previous one; a newer target arriving meanwhile
+     * preempts this one, so that a burst of targets only builds a GoTo for its latest.
      */
-    private fun handleGoToCommand(command: JSONObject) {
-        try {
-            if (!command.has("x") || !command.has("y") || !command.has("theta")) {
-                Log.e(TAG, "GoTo command missing coordinates")
-                return
-            }
+    private inner class GoToAction(private val command: Command.GoTo, trace: CommandTrace?) : QiAction("goto", command, trace) {
+        override fun start(): Future<*>? {
+            val x = command.x
+            val y = command.y
+            val theta = command.theta
             
-            val x = command.getDouble("x")
-            val y = command.getDouble("y")
-            val theta = command.getDouble("theta")
+            val holdMs = lastGoToStartMs + GOTO_MIN_INTERVAL_MS - System.currentTimeMillis()
+            if (holdMs > 0 && !sleepUnlessCancelled(holdMs)) {
+                return null
+            }
+            lastGoToStartMs = System.currentTimeMillis()
+            AsyncLog.d(TAG) { "Executing goto command: x=$x, y=$y, theta=$theta" }
             
-            Log.d(TAG, "Executing goto command: x=$x, y=$y, theta=$theta")
-
-            // TODO: Implement
-            // Create the transform
-//            val transform = TransformBuilder.create()
-//                .from2DTransform(x, y, theta)
-//                .build()
-//
-//            // Create the frame
-//            val mapping = qiContext.mapping
-//            val robotFrame = qiContext.actuation.robotFrame()
-//            val targetFrame = mapping.makeFreeFrame()
-//            targetFrame.update(robotFrame, transform, 0L)
-//
-//            // Create and run the go to action
-//            val goTo = GoToBuilder.with(qiContext)
-//                .withFrame(targetFrame.frame())
-//                .build()
-//
-//            goTo.run()
-        } catch (e: Exception) {
-            Log.e(TAG, "Error executing goto command", e)
+            val goTo = build {
+                // Place the target relative to where the robot stands now
+                val transform = TransformBuilder.create().from2DTransform(x, y, theta)
+                val frames = goToFrames ?: (qiContext.actuation.robotFrame() to qiContext.mapping.makeFreeFrame()).also {
+                    goToFrames = it
+                }
+                frames.second.update(frames.first, transform, 0L)
+                
+                GoToBuilder.with(qiContext)
+                    .withFrame(frames.second.frame())
+                    .build()
+            }
+            return goTo.async().run()
         }
     }
     
     /**
-     * Get or create an animation from the cache
+     * Whether a target is close enough to the one being reached to be the same
      */
-    private fun getOrCreateAnimation(animationName: String): Animation? {
-        // Check if the animation is already cached
-        if (animationCache.containsKey(animationName)) {
-            return animationCache[animationName]
+    private fun isCoalesced(command: Command.GoTo): Boolean {
+        val current = latestGoTo ?: return false
+        return scheduler.isBusy(ActionScheduler.Lane.BASE) &&
+            Math.hypot(command.x - current.x, command.y - current.y) < GOTO_POSITION_TOLERANCE_M &&
+            Math.abs(command.theta - current.theta) < GOTO_ANGLE_TOLERANCE_RAD
+    }
+    
+    /**
+     * Build animations ahead of their first animate command, all of them concurrently
+     *
+     * @param names names or aliases of the animations, all the packaged ones by default
+     * @param onDone called once every animation is built or failed, on a QiSDK thread
+     */
+    fun preloadAnimations(names: Collection<String> = AnimationIndex.NAMES, onDone: (AnimationPreload) -> Unit = {}) {
+        val files = names.mapNotNull { resolveAnimation(it) }.distinct()
+        if (files.isEmpty()) {
+            onDone(AnimationPreload(0, 0, 0L, 0L, 0L))
+            return
         }
-        
-        // Try to load the animation from resources
-        try {
-            val resourceId = getAnimationResourceId(animationName)
-            if (resourceId != 0) {
-                val animation = AnimationBuilder.with(qiContext)
-                    .withResources(resourceId)
-                    .build()
-                    
-                animationCache[animationName] = animation
-                return animation
+        val startMs = SystemClock.elapsedRealtime()
+        val heapBefore = usedHeapBytes()
+        val remaining = AtomicInteger(files.size)
+        val failed = AtomicInteger(0)
+        files.forEach { file ->
+            val future = loadAnimation(file)
+            future.thenConsume {
+                if (!it.isSuccess) {
+                    AsyncLog.w(TAG, it.error) { "Could not preload animation $file" }
+                    animationCache.remove(file, future)
+                    failed.incrementAndGet()
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    onDone(AnimationPreload(
+                        files.size - failed.get(), failed.get(), SystemClock.elapsedRealtime() - startMs,
+                        files.map { name -> AnimationIndex.sizeBytes(name) }.sum(), usedHeapBytes() - heapBefore
+                    ))
+                }
             }
+        }
+    }
+    
+    /**
+     * Get an animation from the cache, waiting for it if it is being built
+     */
+    private fun getOrCreateAnimation(animationName: String): Animation? {
+        val file = resolveAnimation(animationName) ?: return null
+        val future = loadAnimation(file)
+        return try {
+            future.get()
         } catch (e: Exception) {
-            Log.e(TAG, "Error loading animation: $animationName", e)
+            // Built again by the next command
+            animationCache.remove(file, future)
+            AsyncLog.e(TAG, e) { "Error loading animation: $animationName" }
+            null
         }
-        
-        return null
     }
     
     /**
-     * Get the resource ID for an animation name
+     * Build of an animation given by file name, started once per dispatcher
      */
-    private fun getAnimationResourceId(animationName: String): Int {
-        // This would be implemented to map animation names to resource IDs
-        // For example, "dance" -> R.raw.dance_b001
-        
-        // This is a placeholder implementation
-        return when (animationName) {
-            "dance" -> com.example.peppertest.R.raw.dance_b001
-            "raiseHands" -> com.example.peppertest.R.raw.raise_both_hands_b001
-            // Add more animations as needed
-            else -> 0
+    private fun loadAnimation(file: String): Future<Animation> {
+        return animationCache.getOrPut(file) {
+            AnimationBuilder.with(qiContext)
+                .withResources(AnimationIndex.resourceId(file))
+                .buildAsync()
         }
     }
     
+    /**
+     * File name of the animation a command names, from the index generated from res/raw
+     */
+    private fun resolveAnimation(animationName: String): String? {
+        return AnimationIndex.resolve(LEGACY_ANIMATION_NAMES[animationName] ?: animationName)
+    }
+    
+    private fun usedHeapBytes(): Long {
+        val runtime = Runtime.getRuntime()
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+    
     /**
      * Release resources
      */
     fun release() {
-        executor.shutdown()
+        scheduler.release()
         animationCache.clear()
+        goToFrames = null
     }
 } 
\ No newline at end of file
@@ -0,0 +1,100 @@
+package com.example.peppertest.command
+
+import com.example.peppertest.command.CommandTrace.Stage
+
+/**
+ * Rolling latency percentiles per action, over the last [window] completed commands
+ *
+ * Recording a trace copies a few numbers into fixed rings; sorting happens only when the
+ * percentiles are queried.
+ */
+class CommandLatency(private val window: Int = DEFAULT_WINDOW) {
+    companion object {
+        const val DEFAULT_WINDOW = 256
+    }
+
+    /**
+     * Part of a command's life that is measured
+     *
+     * @param from stage the span starts at, the receipt when null
+     * @param key name of the span in the reports sent to the server
+     */
+    enum class Span(val key: String, val from: Stage?, val to: Stage) {
+        DECODE("decode", null, Stage.DECODED),
+        // Waiting behind other commands for the resource to free up
+        WAIT("wait", Stage.QUEUED, Stage.RUN_STARTED),
+        BUILD("build", Stage.BUILD_STARTED, Stage.BUILT),
+        // What the user perceives: from the command to the robot acting on it
+        TO_START("to_start", null, Stage.RUN_STARTED),
+        RUN("run", Stage.RUN_STARTED, Stage.RUN_ENDED),
+        TOTAL("total", null, Stage.RUN_ENDED)
+    }
+
+    /**
+     * Latency percentiles of a span, in milliseconds
+     *
+     * @param count samples the percentiles are computed from, at most the window
+     */
+    data class Percentiles(val count: Int, val p50Ms: Double, val p95Ms: Double, val p99Ms: Double)
+
+    private class Ring(capacity: Int) {
+        val samples = LongArray(capacity)
+        var count = 0L
+
+        fun add(value: Long) {
+            samples[(count % samples.size).toInt()] = value
+            count++
+        }
+
+        fun percentiles(): Percentiles? {
+            val size = minOf(count, samples.size.toLong()).toInt()
+            if (size == 0) {
+                return null
+            }
+            val sorted = samples.copyOf(size).apply { sort() }
+            return Percentiles(size, rank(sorted, 50.0), rank(sorted, 95.0), rank(sorted, 99.0))
+        }
+
+        private fun rank(sorted: LongArray, percent: Double): Double {
+            val rank = Math.ceil(percent / 100.0 * sorted.size).toInt()
+            return sorted[(rank - 1).coerceIn(0, sorted.size - 1)] / 1000.0
+        }
+    }
+
+    private val rings = HashMap<String, Array<Ring>>()
+
+    /**
+     * Add the spans of a command to the rings of its action, skipping the stages it did not reach
+     */
+    fun record(action: String, trace: CommandTrace) {
+        synchronized(rings) {
+            val actionRings = rings.getOrPut(action) { Array(Span.values().size) { Ring(window) } }
+            Span.values().forEach { span ->
+                val micros = trace.spanMicros(span.from, span.to)
+                if (micros >= 0) {
+                    actionRings[span.ordinal].add(micros)
+                }
+            }
+        }
+    }
+
+    /**
+     * Percentiles of a span for an action, null if no command recorded it
+     */
+    fun percentiles(action: String, span: Span): Percentiles? {
+        synchronized(rings) {
+            return rings[action]?.get(span.ordinal)?.percentiles()
+        }
+    }
+
+    /**
+     * Percentiles of every span recorded, by action
+     */
+    fun snapshot(): Map<String, Map<Span, Percentiles>> {
+        synchronized(rings) {
+            return rings.mapValues { (_, actionRings) ->
+                Span.values().mapNotNull { span -> actionRings[span.ordinal].percentiles()?.let { span to it } }.toMap()
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.peppertest.command
+
+import com.example.peppertest.logging.AsyncLog
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Routes typed commands to their handlers, each on the executor it was registered with
+ *
+ * Handlers are looked up by command class, so routing costs one map lookup whatever the
+ * number of commands. The thread calling [route], such as the socket reader, only hands the
+ * command over: what the handler does, however long it takes, happens on its executor.
+ */
+class CommandRouter {
+    companion object {
+        private const val TAG = "CommandRouter"
+    }
+
+    private class Route<T : Command>(val executor: Executor, val handler: (T, CommandTrace) -> Unit) {
+        fun post(command: Command, trace: CommandTrace, onFailure: (Exception) -> Unit) {
+            @Suppress("UNCHECKED_CAST")
+            val typed = command as T
+            executor.execute {
+                try {
+                    handler(typed, trace)
+                } catch (e: Exception) {
+                    onFailure(e)
+                }
+            }
+        }
+    }
+
+    private val routes = ConcurrentHashMap<Class<out Command>, Route<*>>()
+    private val executors = ConcurrentHashMap<String, ExecutorService>()
+    private val unroutedCount = AtomicLong(0)
+    private val failedCount = AtomicLong(0)
+
+    /**
+     * Number of commands without a handler, or whose executor was shut down
+     */
+    val unrouted: Long
+        get() = unroutedCount.get()
+
+    /**
+     * Number of commands whose handler threw
+     */
+    val failed: Long
+        get() = failedCount.get()
+
+    /**
+     * Handle every command of a class with [handler], run on [executor]
+     *
+     * Registering a class again replaces its handler.
+     */
+    fun <T : Command> register(type: Class<T>, executor: Executor, handler: (T, CommandTrace) -> Unit) {
+        routes[type] = Route(executor, handler)
+    }
+
+    /**
+     * Single thread named after [name], shared by the handlers declaring the same name
+     *
+     * Commands handled on one such executor run one at a time, in the order they were routed.
+     */
+    fun executor(name: String): Executor {
+        return executors.getOrPut(name) {
+            Executors.newSingleThreadExecutor { Thread(it, "$TAG-$name") }
+        }
+    }
+
+    /**
+     * Hand a command to its handler, with its trace
+     *
+     * @return false if no handler takes the command
+     */
+    fun route(command: Command, trace: CommandTrace): Boolean {
+        val route = routes[command.javaClass]
+        if (route == null) {
+            unroutedCount.incrementAndGet()
+            AsyncLog.d(TAG) { "No handler for command: $command" }
+            return false
+        }
+        return try {
+            route.post(command, trace) { e ->
+                failedCount.incrementAndGet()
+                AsyncLog.e(TAG, e) { "Error handling command: $command" }
+            }
+            true
+        } catch (e: RejectedExecutionException) {
+            unroutedCount.incrementAndGet()
+            AsyncLog.w(TAG) { "Handler executor stopped, command dropped: $command" }
+            false
+        }
+    }
+
+    /**
+     * Stop the executors created by [executor], letting the commands already routed finish
+     */
+    fun release() {
+        executors.values.forEach { it.shutdown() }
+        executors.clear()
+    }
+}
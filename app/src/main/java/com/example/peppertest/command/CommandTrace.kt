@@ -0,0 +1,82 @@
+package com.example.peppertest.command
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Times a command reached each stage, from its receipt on the socket to the end of its action
+ *
+ * Stages are marked from whichever thread the command is on at the time. Each stage keeps the
+ * first time it is marked, so that an utterance built ahead and built again keeps its
+ * earliest build. Times are measured on the monotonic clock, relative to the receipt.
+ *
+ * @param id identifier of the command, the one the server gave it when it did
+ * @param receivedAtMs wall-clock time of the receipt
+ */
+class CommandTrace(
+    val id: String,
+    val receivedAtMs: Long = System.currentTimeMillis(),
+    private val receivedNanos: Long = System.nanoTime()
+) {
+    companion object {
+        private val nextLocalId = AtomicLong(0)
+
+        /**
+         * Identifier for a command the server sent without one
+         */
+        fun localId(): String {
+            return "local-${nextLocalId.incrementAndGet()}"
+        }
+    }
+
+    /**
+     * Stages of a command, in the order it goes through them
+     *
+     * @param key name of the stage in the command status sent to the server
+     */
+    enum class Stage(val key: String) {
+        DECODED("decoded"),
+        // Handed to the speech queue or to a scheduler lane
+        QUEUED("queued"),
+        BUILD_STARTED("build_start"),
+        BUILT("built"),
+        RUN_STARTED("run_start"),
+        RUN_ENDED("run_end")
+    }
+
+    private val elapsedNanos = AtomicLongArray(Stage.values().size).apply {
+        for (i in 0 until length()) {
+            set(i, -1L)
+        }
+    }
+
+    /**
+     * Record that the command reached a stage, unless it already did
+     */
+    fun mark(stage: Stage, nanos: Long = System.nanoTime()) {
+        elapsedNanos.compareAndSet(stage.ordinal, -1L, maxOf(nanos - receivedNanos, 0L))
+    }
+
+    fun hasReached(stage: Stage): Boolean {
+        return elapsedNanos.get(stage.ordinal) >= 0
+    }
+
+    /**
+     * Time from the receipt to a stage in microseconds, -1 if the stage was not reached
+     */
+    fun elapsedMicros(stage: Stage): Long {
+        val nanos = elapsedNanos.get(stage.ordinal)
+        return if (nanos < 0) -1L else TimeUnit.NANOSECONDS.toMicros(nanos)
+    }
+
+    /**
+     * Time between two stages in microseconds, or between the receipt and [to] when [from]
+     * is null; -1 if either stage was not reached
+     */
+    fun spanMicros(from: Stage?, to: Stage): Long {
+        val end = elapsedMicros(to)
+        val start = if (from == null) 0L else elapsedMicros(from)
+        return if (end < 0 || start < 0) -1L else maxOf(end - start, 0L)
+    }
+}
@@ -0,0 +1,227 @@
+package com.example.peppertest.command
+
+import android.util.JsonReader
+import android.util.JsonToken
+import java.io.Reader
+
+/**
+ * Streaming decoder for JSON messages from the server
+ *
+ * Reads a message in a single pass into a reused [InboundMessage], keeping only the fields
+ * commands and acknowledgements need and skipping everything else, so that no JSON tree is
+ * built. A decoder is not thread-safe; use one per socket.
+ */
+class JsonCommandDecoder {
+    private val reader = ReusableStringReader()
+    private val message = InboundMessage()
+
+    /**
+     * Decode a message
+     *
+     * The returned message is reused by the next call, it must not be kept.
+     */
+    fun decode(text: String): InboundMessage {
+        message.reset()
+        reader.reset(text)
+        val json = JsonReader(reader)
+        json.beginObject()
+        while (json.hasNext()) {
+            when (json.nextName()) {
+                "type" -> message.type = json.nextString()
+                "id" -> message.commandId = json.nextString()
+                "action" -> message.action = json.nextString()
+                "text" -> message.text = json.nextString()
+                "with_animation" -> message.withAnimation = json.nextBoolean()
+                "priority" -> message.isUrgent = json.nextString() == Command.PRIORITY_HIGH
+                "animation" -> message.animation = json.nextString()
+                "policy" -> message.policy = Command.policyOf(json.nextString())
+                "x" -> { message.x = json.nextDouble(); message.fields = message.fields or InboundMessage.HAS_X }
+                "y" -> { message.y = json.nextDouble(); message.fields = message.fields or InboundMessage.HAS_Y }
+                "theta" -> { message.theta = json.nextDouble(); message.fields = message.fields or InboundMessage.HAS_THETA }
+                "websocket_url" -> message.websocketUrl = json.nextString()
+                "websocket_urls" -> readStrings(json, message.websocketUrls)
+                "face" -> readFace(json)
+                "processing_ms" -> message.processingMs = json.nextLong()
+                "seq" -> { message.sequence = json.nextInt(); message.fields = message.fields or InboundMessage.HAS_SEQUENCE }
+                "capture_time" -> message.captureTime = json.nextLong()
+                "send_time" -> message.sendTime = json.nextLong()
+                "frame_envelope" -> message.frameEnvelope = json.nextInt()
+                "timestamp" -> message.timestamp = json.nextLong()
+                "server_receive" -> message.serverReceiveTime = json.nextLong()
+                "server_send" -> message.serverSendTime = json.nextLong()
+                "session_seq" -> { message.sessionSequence = json.nextInt(); message.fields = message.fields or InboundMessage.HAS_SESSION_SEQUENCE }
+                "ack" -> { message.ack = json.nextInt(); message.fields = message.fields or InboundMessage.HAS_ACK }
+                "resumed" -> message.resumed = json.nextBoolean()
+                else -> json.skipValue()
+            }
+        }
+        json.endObject()
+        return message
+    }
+
+    private fun readStrings(json: JsonReader, into: MutableList<String>) {
+        if (json.peek() != JsonToken.BEGIN_ARRAY) {
+            json.skipValue()
+            return
+        }
+        json.beginArray()
+        while (json.hasNext()) {
+            into.add(json.nextString())
+        }
+        json.endArray()
+    }
+
+    private fun readFace(json: JsonReader) {
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            json.skipValue()
+            return
+        }
+        json.beginObject()
+        while (json.hasNext()) {
+            when (json.nextName()) {
+                "x" -> message.faceX = json.nextInt()
+                "y" -> message.faceY = json.nextInt()
+                "width" -> message.faceWidth = json.nextInt()
+                "height" -> message.faceHeight = json.nextInt()
+                "seq" -> message.faceSequence = json.nextInt()
+                else -> json.skipValue()
+            }
+        }
+        json.endObject()
+        message.fields = message.fields or InboundMessage.HAS_FACE
+    }
+
+    /**
+     * Fields of a server message, reset before each decode
+     */
+    class InboundMessage {
+        companion object {
+            internal const val HAS_X = 0x01
+            internal const val HAS_Y = 0x02
+            internal const val HAS_THETA = 0x04
+            internal const val HAS_FACE = 0x08
+            internal const val HAS_SEQUENCE = 0x10
+            internal const val HAS_SESSION_SEQUENCE = 0x20
+            internal const val HAS_ACK = 0x40
+            private const val HAS_POSITION = HAS_X or HAS_Y or HAS_THETA
+        }
+
+        var type = ""
+        // Identifier the server gave the command, if any
+        var commandId = ""
+        var action = ""
+        var text = ""
+        var withAnimation = false
+        var isUrgent = false
+        var animation = ""
+        // Null when the command has none, or one this robot does not know
+        var policy: ActionScheduler.Policy? = null
+        var x = 0.0
+        var y = 0.0
+        var theta = 0.0
+        var websocketUrl = ""
+        val websocketUrls = ArrayList<String>()
+        var faceX = 0
+        var faceY = 0
+        var faceWidth = 0
+        var faceHeight = 0
+        // Envelope sequence number of the frame the face was found in, 0 if unknown
+        var faceSequence = 0
+        var processingMs = 0L
+        var sequence = 0
+        var captureTime = 0L
+        var sendTime = 0L
+        var frameEnvelope = 0
+        var timestamp = 0L
+        var serverReceiveTime = 0L
+        var serverSendTime = 0L
+        var sessionSequence = 0
+        var ack = 0
+        var resumed = false
+        internal var fields = 0
+
+        val hasFace: Boolean
+            get() = fields and HAS_FACE != 0
+
+        val hasSequence: Boolean
+            get() = fields and HAS_SEQUENCE != 0
+
+        val hasSessionSequence: Boolean
+            get() = fields and HAS_SESSION_SEQUENCE != 0
+
+        val hasAck: Boolean
+            get() = fields and HAS_ACK != 0
+
+        /**
+         * The typed command this message carries, with the same rules as [Command.fromJson]
+         *
+         * @return the command, or null if the message is not a known command
+         */
+        fun toCommand(): Command? {
+            return when (type) {
+                "command" -> when (action) {
+                    "say" -> if (text.isNotEmpty()) Command.Say(text, withAnimation, isUrgent) else null
+                    "animate" -> if (animation.isNotEmpty()) Command.Animate(animation, policy) else null
+                    "goto" -> if ((fields and HAS_POSITION) == HAS_POSITION) {
+                        Command.GoTo(x, y, theta, policy)
+                    } else null
+                    "none" -> Command.None
+                    else -> null
+                }
+                "speech" -> if (action == "say" && text.isNotEmpty()) Command.Say(text, true, isUrgent) else null
+                "speak" -> if (text.isNotEmpty()) Command.Say(text, withAnimation, isUrgent) else null
+                "config" -> if (websocketUrl.isNotEmpty()) Command.Config(websocketUrl, websocketUrls.toList()) else null
+                "latency_stats" -> Command.ReportLatency
+                else -> null
+            }
+        }
+
+        internal fun reset() {
+            type = ""
+            commandId = ""
+            action = ""
+            text = ""
+            withAnimation = false
+            isUrgent = false
+            animation = ""
+            policy = null
+            faceSequence = 0
+            websocketUrl = ""
+            websocketUrls.clear()
+            processingMs = 0L
+            captureTime = 0L
+            sendTime = 0L
+            frameEnvelope = 0
+            timestamp = 0L
+            serverReceiveTime = 0L
+            serverSendTime = 0L
+            resumed = false
+            fields = 0
+        }
+    }
+
+    /**
+     * Reader over a string that can be pointed at a new string, to avoid one reader per message
+     */
+    private class ReusableStringReader : Reader() {
+        private var text: String = ""
+        private var position = 0
+
+        fun reset(text: String) {
+            this.text = text
+            position = 0
+        }
+
+        override fun read(buffer: CharArray, offset: Int, length: Int): Int {
+            if (position >= text.length) {
+                return -1
+            }
+            val count = minOf(length, text.length - position)
+            text.toCharArray(buffer, offset, position, position + count)
+            position += count
+            return count
+        }
+
+        override fun close() {}
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.peppertest.command
+
+import java.util.ArrayDeque
+
+/**
+ * Bounded queue of utterances waiting for the robot to finish speaking
+ *
+ * What happens to an utterance arriving while others wait depends on the [policy]. Urgent
+ * utterances go ahead of the others and, with [interruptOnUrgent], cut the current one short.
+ * When the queue is full the oldest waiting utterance is dropped, urgent ones last.
+ */
+class SpeechQueue(private val capacity: Int = DEFAULT_CAPACITY) {
+    companion object {
+        const val DEFAULT_CAPACITY = 8
+        // Fragments stop being merged past this length, so that the merged Say stays quick to build
+        private const val MAX_MERGED_LENGTH = 400
+    }
+
+    enum class Policy {
+        // Say everything, in order
+        FIFO,
+        // Only the latest utterance waits, older ones are dropped
+        LATEST_WINS,
+        // Consecutive fragments are joined into one utterance
+        MERGE
+    }
+
+    /**
+     * Text to say, with the time it was queued and the number of fragments merged into it
+     *
+     * @param traces traces of the commands the utterance was made of, one per fragment
+     */
+    data class Utterance(
+        val text: String,
+        val withAnimation: Boolean,
+        val isUrgent: Boolean,
+        val queuedAtMs: Long,
+        val fragments: Int = 1,
+        val traces: List<CommandTrace> = emptyList()
+    )
+
+    @Volatile
+    var policy = Policy.FIFO
+
+    @Volatile
+    var interruptOnUrgent = true
+
+    private val waiting = ArrayDeque<Utterance>()
+    private var droppedCount = 0L
+
+    /**
+     * Number of utterances waiting
+     */
+    val size: Int
+        @Synchronized get() = waiting.size
+
+    /**
+     * Number of utterances dropped without being said
+     */
+    val dropped: Long
+        @Synchronized get() = droppedCount
+
+    /**
+     * Queue an utterance
+     *
+     * @param onDropped called with each waiting utterance dropped to make room for this one
+     * @return true if the utterance being said should be interrupted for this one
+     */
+    @Synchronized
+    fun offer(utterance: Utterance, onDropped: (Utterance) -> Unit = {}): Boolean {
+        if (utterance.isUrgent) {
+            // Behind the urgent ones already waiting, ahead of everything else
+            val urgent = waiting.takeWhile { it.isUrgent }
+            repeat(urgent.size) { waiting.pollFirst() }
+            waiting.addFirst(utterance)
+            urgent.asReversed().forEach { waiting.addFirst(it) }
+            trim(onDropped)
+            return interruptOnUrgent
+        }
+        when (policy) {
+            Policy.FIFO -> waiting.addLast(utterance)
+            Policy.LATEST_WINS -> {
+                val iterator = waiting.iterator()
+                while (iterator.hasNext()) {
+                    val previous = iterator.next()
+                    if (!previous.isUrgent) {
+                        iterator.remove()
+                        droppedCount++
+                        onDropped(previous)
+                    }
+                }
+                waiting.addLast(utterance)
+            }
+            Policy.MERGE -> {
+                val last = waiting.peekLast()
+                if (last != null && !last.isUrgent && last.withAnimation == utterance.withAnimation &&
+                    last.text.length + utterance.text.length < MAX_MERGED_LENGTH) {
+                    // Said as one, waiting since the first fragment
+                    waiting.pollLast()
+                    waiting.addLast(last.copy(
+                        text = last.text + " " + utterance.text,
+                        fragments = last.fragments + 1,
+                        traces = last.traces + utterance.traces
+                    ))
+                } else {
+                    waiting.addLast(utterance)
+                }
+            }
+        }
+        trim(onDropped)
+        return false
+    }
+
+    /**
+     * Take the next utterance to say
+     */
+    @Synchronized
+    fun poll(): Utterance? {
+        return waiting.pollFirst()
+    }
+
+    /**
+     * Next utterance to say, left in the queue
+     */
+    @Synchronized
+    fun peek(): Utterance? {
+        return waiting.peekFirst()
+    }
+
+    /**
+     * Drop everything waiting
+     */
+    @Synchronized
+    fun clear() {
+        droppedCount += waiting.size
+        waiting.clear()
+    }
+
+    private fun trim(onDropped: (Utterance) -> Unit) {
+        while (waiting.size > capacity) {
+            val oldest = waiting.firstOrNull { !it.isUrgent } ?: waiting.first
+            waiting.remove(oldest)
+            droppedCount++
+            onDropped(oldest)
+        }
+    }
+}
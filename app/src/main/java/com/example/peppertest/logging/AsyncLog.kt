@@ -0,0 +1,148 @@
+package com.example.peppertest.logging
+
+import android.util.Log
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Asynchronous logger for the hot paths: network, capture and robot callbacks
+ *
+ * Logging a record costs a level check, a policy lookup for its tag and, only when the record
+ * is kept, one lambda queued in a lock-free [LogRingBuffer]. Messages are formatted and written
+ * by a background thread. Tags can be sampled or rate limited with [setPolicy]; errors always
+ * go through. When the buffer is full records are dropped and counted, never waited on.
+ */
+object AsyncLog {
+    private const val TAG = "AsyncLog"
+    private const val CAPACITY = 1024
+    private const val DRAIN_INTERVAL_MS = 20L
+    // Records written later than this after being logged say so
+    private const val LATE_WRITE_MS = 250L
+
+    private val buffer = LogRingBuffer(CAPACITY)
+    private val policies = ConcurrentHashMap<String, LogPolicy>()
+    private val droppedCount = AtomicLong(0)
+    private var reportedDrops = 0L
+
+    /**
+     * Lowest priority kept, as the [Log] constants
+     */
+    @Volatile
+    var minLevel = Log.DEBUG
+
+    /**
+     * Destination of the records, logcat by default; called on the background thread
+     */
+    @Volatile
+    var sink: (level: Int, tag: String, message: String, throwable: Throwable?) -> Unit = { level, tag, message, throwable ->
+        Log.println(level, tag, if (throwable == null) message else message + '\n' + Log.getStackTraceString(throwable))
+    }
+
+    /**
+     * Number of records dropped because the buffer was full
+     */
+    val dropped: Long
+        get() = droppedCount.get()
+
+    private val writer = { level: Int, tag: String, message: () -> String, throwable: Throwable?, timeMs: Long ->
+        try {
+            val delayMs = System.currentTimeMillis() - timeMs
+            val text = message()
+            sink(level, tag, if (delayMs > LATE_WRITE_MS) "$text (logged ${delayMs} ms earlier)" else text, throwable)
+        } catch (e: Exception) {
+            // A message that fails to format must not stop the others
+        }
+    }
+
+    private val drainer = Thread({
+        while (true) {
+            flush()
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_INTERVAL_MS))
+        }
+    }, TAG).apply {
+        isDaemon = true
+        priority = Thread.MIN_PRIORITY
+        start()
+    }
+
+    /**
+     * Sample or rate limit the records of a tag, or remove its policy with null
+     */
+    fun setPolicy(tag: String, policy: LogPolicy?) {
+        if (policy == null) {
+            policies.remove(tag)
+        } else {
+            policies[tag] = policy
+        }
+    }
+
+    /**
+     * Number of records of a tag its policy suppressed
+     */
+    fun suppressed(tag: String): Long {
+        return policies[tag]?.suppressed ?: 0L
+    }
+
+    inline fun d(tag: String, crossinline message: () -> String) {
+        if (isLoggable(Log.DEBUG, tag)) {
+            enqueue(Log.DEBUG, tag, null) { message() }
+        }
+    }
+
+    inline fun i(tag: String, crossinline message: () -> String) {
+        if (isLoggable(Log.INFO, tag)) {
+            enqueue(Log.INFO, tag, null) { message() }
+        }
+    }
+
+    inline fun w(tag: String, throwable: Throwable? = null, crossinline message: () -> String) {
+        if (isLoggable(Log.WARN, tag)) {
+            enqueue(Log.WARN, tag, throwable) { message() }
+        }
+    }
+
+    inline fun e(tag: String, throwable: Throwable? = null, crossinline message: () -> String) {
+        if (isLoggable(Log.ERROR, tag)) {
+            enqueue(Log.ERROR, tag, throwable) { message() }
+        }
+    }
+
+    /**
+     * Write everything queued so far, on the calling thread, e.g. before the app goes away
+     */
+    @Synchronized
+    fun flush() {
+        while (buffer.poll(writer)) {
+            // Keep draining
+        }
+        val dropped = droppedCount.get()
+        if (dropped != reportedDrops) {
+            sink(Log.WARN, TAG, "Dropped ${dropped - reportedDrops} records, buffer full", null)
+            reportedDrops = dropped
+        }
+    }
+
+    @PublishedApi
+    internal fun isLoggable(level: Int, tag: String): Boolean {
+        if (level < minLevel) {
+            return false
+        }
+        if (level >= Log.ERROR) {
+            return true
+        }
+        val policy = policies[tag] ?: return true
+        return policy.admit(System.currentTimeMillis())
+    }
+
+    @PublishedApi
+    internal fun enqueue(level: Int, tag: String, throwable: Throwable?, message: () -> String) {
+        if (!buffer.offer(level, tag, message, throwable, System.currentTimeMillis())) {
+            droppedCount.incrementAndGet()
+        } else if (level >= Log.WARN) {
+            // Do not keep problems waiting
+            LockSupport.unpark(drainer)
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.peppertest.logging
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Sampling and rate limit applied to the records of one tag
+ *
+ * @param sampleEvery keep one record out of this many, 1 to keep them all
+ * @param maxPerSecond records kept per second at most after sampling, 0 for no limit
+ */
+class LogPolicy(val sampleEvery: Int = 1, val maxPerSecond: Int = 0) {
+    private val seen = AtomicLong(0)
+    private val suppressedCount = AtomicLong(0)
+    private val windowStart = AtomicLong(0)
+    private val keptInWindow = AtomicInteger(0)
+
+    /**
+     * Number of records this policy suppressed
+     */
+    val suppressed: Long
+        get() = suppressedCount.get()
+
+    /**
+     * Whether a record taken at [nowMs] is kept
+     */
+    fun admit(nowMs: Long): Boolean {
+        if (sampleEvery > 1 && seen.getAndIncrement() % sampleEvery != 0L) {
+            suppressedCount.incrementAndGet()
+            return false
+        }
+        if (maxPerSecond > 0) {
+            // Fixed one-second windows; a few extra records may pass when a window turns over
+            val window = nowMs / 1000
+            val start = windowStart.get()
+            if (window != start && windowStart.compareAndSet(start, window)) {
+                keptInWindow.set(0)
+            }
+            if (keptInWindow.incrementAndGet() > maxPerSecond) {
+                suppressedCount.incrementAndGet()
+                return false
+            }
+        }
+        return true
+    }
+}
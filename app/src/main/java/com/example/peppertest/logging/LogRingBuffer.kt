@@ -0,0 +1,87 @@
+package com.example.peppertest.logging
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Bounded lock-free queue of log records, written by any thread and read by one
+ *
+ * Each slot carries a sequence number telling whether it is free for the producer at a given
+ * position or holds a record for the consumer (Vyukov's bounded queue). Records are stored
+ * field by field in preallocated arrays, so that queueing one allocates nothing. When the
+ * buffer is full new records are rejected rather than waiting for the reader.
+ */
+class LogRingBuffer(capacity: Int) {
+    private val size = Integer.highestOneBit(maxOf(1, capacity - 1)) shl 1
+    private val mask = size - 1L
+    private val sequences = AtomicLongArray(size)
+    private val levels = IntArray(size)
+    private val tags = arrayOfNulls<String>(size)
+    private val messages = arrayOfNulls<() -> String>(size)
+    private val throwables = arrayOfNulls<Throwable>(size)
+    private val times = LongArray(size)
+    private val tail = AtomicLong(0)
+    // Only touched by the reader
+    private var head = 0L
+
+    init {
+        for (i in 0 until size) {
+            sequences.set(i, i.toLong())
+        }
+    }
+
+    /**
+     * Number of records the buffer holds at most
+     */
+    val capacity: Int
+        get() = size
+
+    /**
+     * Queue a record, from any thread
+     *
+     * @return false if the buffer is full and the record was dropped
+     */
+    fun offer(level: Int, tag: String, message: () -> String, throwable: Throwable?, timeMs: Long): Boolean {
+        while (true) {
+            val position = tail.get()
+            val slot = (position and mask).toInt()
+            val available = sequences.get(slot) - position
+            when {
+                available == 0L -> if (tail.compareAndSet(position, position + 1)) {
+                    levels[slot] = level
+                    tags[slot] = tag
+                    messages[slot] = message
+                    throwables[slot] = throwable
+                    times[slot] = timeMs
+                    // Publishes the fields above to the reader
+                    sequences.set(slot, position + 1)
+                    return true
+                }
+                available < 0L -> return false
+            }
+        }
+    }
+
+    /**
+     * Take the oldest record and pass it to [consumer], from the reader thread only
+     *
+     * @return false if the buffer was empty
+     */
+    fun poll(consumer: (level: Int, tag: String, message: () -> String, throwable: Throwable?, timeMs: Long) -> Unit): Boolean {
+        val slot = (head and mask).toInt()
+        if (sequences.get(slot) != head + 1) {
+            return false
+        }
+        try {
+            consumer(levels[slot], tags[slot]!!, messages[slot]!!, throwables[slot], times[slot])
+        } finally {
+            tags[slot] = null
+            messages[slot] = null
+            throwables[slot] = null
+            // Hands the slot back to producers, one lap later
+            sequences.set(slot, head + size)
+            head++
+        }
+        return true
+    }
+}
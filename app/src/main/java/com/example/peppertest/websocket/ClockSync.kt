@@ -0,0 +1,112 @@
+package com.example.peppertest.websocket
+
+import kotlin.math.abs
+
+/**
+ * NTP-style estimator of the round-trip time and clock offset between robot and server
+ *
+ * Each ping/pong exchange gives four timestamps: ping sent (robot clock), ping received and
+ * pong sent (server clock), pong received (robot clock). The offset of the exchange with the
+ * lowest round-trip time among the last [windowSize] is trusted most, as it suffered the
+ * least queueing; it is then smoothed to avoid jumps.
+ */
+class ClockSync(private val windowSize: Int = DEFAULT_WINDOW_SIZE) {
+    companion object {
+        const val DEFAULT_WINDOW_SIZE = 8
+        private const val SMOOTHING = 0.125
+        private const val VARIANCE_SMOOTHING = 0.25
+    }
+
+    private val rttSamples = LongArray(windowSize)
+    private val offsetSamples = LongArray(windowSize)
+    private var sampleCount = 0
+    private var smoothedRtt = 0.0
+    private var rttVariance = 0.0
+    private var smoothedOffset = 0.0
+
+    /**
+     * Number of exchanges measured so far
+     */
+    val samples: Int
+        @Synchronized get() = sampleCount
+
+    /**
+     * Smoothed round-trip time, in milliseconds, 0 before the first exchange
+     */
+    val rttMs: Double
+        @Synchronized get() = smoothedRtt
+
+    /**
+     * Smoothed deviation of the round-trip time, in milliseconds
+     */
+    val rttVarianceMs: Double
+        @Synchronized get() = rttVariance
+
+    /**
+     * Estimated server clock minus robot clock, in milliseconds
+     */
+    val offsetMs: Double
+        @Synchronized get() = smoothedOffset
+
+    /**
+     * Record a ping/pong exchange
+     *
+     * @param pingSentMs robot time the ping was sent
+     * @param serverReceivedMs server time the ping was received
+     * @param serverSentMs server time the pong was sent
+     * @param pongReceivedMs robot time the pong was received
+     */
+    @Synchronized
+    fun onExchange(pingSentMs: Long, serverReceivedMs: Long, serverSentMs: Long, pongReceivedMs: Long) {
+        val rtt = maxOf(0L, (pongReceivedMs - pingSentMs) - (serverSentMs - serverReceivedMs))
+        val offset = ((serverReceivedMs - pingSentMs) + (serverSentMs - pongReceivedMs)) / 2
+
+        val slot = sampleCount % windowSize
+        rttSamples[slot] = rtt
+        offsetSamples[slot] = offset
+        sampleCount++
+
+        if (sampleCount == 1) {
+            smoothedRtt = rtt.toDouble()
+            rttVariance = rtt / 2.0
+            smoothedOffset = offset.toDouble()
+            return
+        }
+        rttVariance += VARIANCE_SMOOTHING * (abs(smoothedRtt - rtt) - rttVariance)
+        smoothedRtt += SMOOTHING * (rtt - smoothedRtt)
+
+        // Trust the least delayed exchange of the window
+        var best = 0
+        for (i in 1 until minOf(sampleCount, windowSize)) {
+            if (rttSamples[i] < rttSamples[best]) {
+                best = i
+            }
+        }
+        smoothedOffset += SMOOTHING * (offsetSamples[best] - smoothedOffset)
+    }
+
+    /**
+     * Convert a robot timestamp to the server clock
+     */
+    fun toServerTime(localTimeMs: Long): Long {
+        return localTimeMs + offsetMs.toLong()
+    }
+
+    /**
+     * Convert a server timestamp to the robot clock
+     */
+    fun toLocalTime(serverTimeMs: Long): Long {
+        return serverTimeMs - offsetMs.toLong()
+    }
+
+    /**
+     * Forget all exchanges, e.g. when connecting to another server
+     */
+    @Synchronized
+    fun reset() {
+        sampleCount = 0
+        smoothedRtt = 0.0
+        rttVariance = 0.0
+        smoothedOffset = 0.0
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.peppertest.websocket
+
+import com.example.peppertest.logging.AsyncLog
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Candidate server endpoints, with their measured round-trip times
+ *
+ * Picks the endpoint to fail over to when the current one is unreachable, and the one to
+ * switch to when another is clearly faster. Endpoints other than the current one are measured
+ * with short-lived probe connections, a single ping/pong each.
+ */
+class EndpointSelector(
+    client: OkHttpClient,
+    private val scheduler: ScheduledExecutorService
+) {
+    companion object {
+        private const val TAG = "EndpointSelector"
+        private const val NORMAL_CLOSURE_STATUS = 1000
+        private const val PROBE_TIMEOUT_SECONDS = 5L
+        private const val SMOOTHING = 0.25
+        // A candidate must beat the current endpoint by both margins to be switched to
+        private const val MIN_IMPROVEMENT_RATIO = 0.7
+        private const val MIN_IMPROVEMENT_MS = 20.0
+    }
+
+    // Probes get a short connection deadline, a slow endpoint is as good as a dead one
+    private val probeClient = client.newBuilder()
+        .connectTimeout(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .pingInterval(0, TimeUnit.SECONDS)
+        .build()
+
+    private val rttByEndpoint = ConcurrentHashMap<String, Double>()
+    private val failedEndpoints = ConcurrentHashMap.newKeySet<String>()
+
+    /**
+     * Candidate endpoints, in order of preference
+     */
+    @Volatile
+    var endpoints: List<String> = emptyList()
+        set(value) {
+            field = value.distinct()
+            rttByEndpoint.keys.retainAll(field)
+            failedEndpoints.retainAll(field)
+        }
+
+    /**
+     * Smoothed round-trip time measured to an endpoint, or null if unknown or unreachable
+     */
+    fun rttOf(url: String): Double? {
+        return if (url in failedEndpoints) null else rttByEndpoint[url]
+    }
+
+    /**
+     * Record a round-trip time measured to an endpoint, which is then considered healthy
+     */
+    fun recordRtt(url: String, rttMs: Double) {
+        failedEndpoints.remove(url)
+        rttByEndpoint[url] = rttByEndpoint[url]?.let { it + SMOOTHING * (rttMs - it) } ?: rttMs
+    }
+
+    /**
+     * Record that an endpoint could not be reached
+     */
+    fun markFailed(url: String) {
+        failedEndpoints.add(url)
+    }
+
+    /**
+     * Endpoint to try after [current] failed: the fastest healthy one when [byLatency] and
+     * round-trip times are known, otherwise the next one in order
+     */
+    fun next(current: String, byLatency: Boolean): String {
+        val candidates = endpoints
+        if (candidates.isEmpty()) {
+            return current
+        }
+        if (byLatency) {
+            candidates.filter { it != current && rttOf(it) != null }
+                .minBy { rttOf(it)!! }
+                ?.let { return it }
+        }
+        val index = candidates.indexOf(current)
+        return candidates[(index + 1) % candidates.size]
+    }
+
+    /**
+     * Healthy endpoint clearly faster than [current], whose round-trip time is [currentRttMs]
+     *
+     * @return the endpoint to switch to, or null to stay
+     */
+    fun faster(current: String, currentRttMs: Double): String? {
+        if (currentRttMs <= 0.0) {
+            return null
+        }
+        val best = endpoints.filter { it != current && rttOf(it) != null }.minBy { rttOf(it)!! } ?: return null
+        val bestRtt = rttOf(best)!!
+        return if (bestRtt < currentRttMs * MIN_IMPROVEMENT_RATIO && currentRttMs - bestRtt > MIN_IMPROVEMENT_MS) best else null
+    }
+
+    /**
+     * Measure the round-trip time to each endpoint but [current], over a probe connection
+     *
+     * @param protocols subprotocols to offer, as the real connection would
+     */
+    fun probe(current: String, protocols: String) {
+        for (url in endpoints) {
+            if (url != current) {
+                probe(url, protocols)
+            }
+        }
+    }
+
+    private fun probe(url: String, protocols: String) {
+        val request = Request.Builder()
+            .url(url)
+            .header("Sec-WebSocket-Protocol", protocols)
+            .build()
+        val isDone = AtomicBoolean(false)
+        val socket = probeClient.newWebSocket(request, object : WebSocketListener() {
+            @Volatile private var pingSentAt = 0L
+
+            override fun onOpen(webSocket: WebSocket, response: Response) {
+                pingSentAt = System.currentTimeMillis()
+                webSocket.send("{\"type\":\"ping\",\"timestamp\":$pingSentAt}")
+            }
+
+            override fun onMessage(webSocket: WebSocket, text: String) {
+                if (!text.contains("\"pong\"") || isDone.getAndSet(true)) {
+                    return
+                }
+                val rttMs = (System.currentTimeMillis() - pingSentAt).toDouble()
+                recordRtt(url, rttMs)
+                AsyncLog.d(TAG) { "Probed $url: ${rttMs.toInt()} ms" }
+                webSocket.close(NORMAL_CLOSURE_STATUS, "Probe done")
+            }
+
+            override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
+                if (!isDone.getAndSet(true)) {
+                    AsyncLog.d(TAG) { "Probe of $url failed: ${t.message}" }
+                    markFailed(url)
+                }
+            }
+        })
+        scheduler.schedule({
+            if (!isDone.getAndSet(true)) {
+                AsyncLog.d(TAG) { "Probe of $url timed out" }
+                markFailed(url)
+                socket.cancel()
+            }
+        }, PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.peppertest.websocket
+
+import okio.Buffer
+import okio.ByteString
+import java.nio.ByteBuffer
+
+/**
+ * Binary envelope wrapping camera frames sent to the server
+ *
+ * A fixed big-endian header carries the frame metadata ahead of the payload:
+ * magic, version, format, header length, sequence number, capture time, send time,
+ * width, height and payload length. Servers advertise support with a `capabilities`
+ * message; older servers keep receiving the bare payload.
+ */
+object FrameEnvelope {
+    const val MAGIC = 0x5046524D // "PFRM"
+    const val VERSION = 1
+    const val HEADER_SIZE = 36
+
+    const val FORMAT_JPEG = 0
+
+    /**
+     * Wrap a frame payload into an envelope
+     */
+    fun encode(
+        sequence: Int,
+        captureTimeMs: Long,
+        sendTimeMs: Long,
+        width: Int,
+        height: Int,
+        format: Int,
+        payload: ByteBuffer
+    ): ByteString {
+        val data = payload.duplicate()
+        val buffer = Buffer()
+        buffer.writeInt(MAGIC)
+        buffer.writeByte(VERSION)
+        buffer.writeByte(format)
+        buffer.writeShort(HEADER_SIZE)
+        buffer.writeInt(sequence)
+        buffer.writeLong(captureTimeMs)
+        buffer.writeLong(sendTimeMs)
+        buffer.writeShort(width)
+        buffer.writeShort(height)
+        buffer.writeInt(data.remaining())
+        buffer.write(data)
+        return buffer.readByteString()
+    }
+
+    /**
+     * Read the dimensions of a JPEG from its frame header, without decoding it
+     *
+     * @return width and height packed as `width shl 16 or height`, or 0 if not found
+     */
+    fun jpegSize(jpeg: ByteBuffer): Int {
+        val data = jpeg.duplicate()
+        var position = data.position()
+        val limit = data.limit()
+        if (limit - position < 4 || data.get(position).toInt() and 0xff != 0xff ||
+            data.get(position + 1).toInt() and 0xff != 0xd8) {
+            return 0
+        }
+        position += 2
+        while (position + 4 <= limit) {
+            if (data.get(position).toInt() and 0xff != 0xff) {
+                return 0
+            }
+            val marker = data.get(position + 1).toInt() and 0xff
+            val length = (data.get(position + 2).toInt() and 0xff shl 8) or (data.get(position + 3).toInt() and 0xff)
+            // Start of frame markers, except DHT, JPG and DAC which share the range
+            if (marker in 0xc0..0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (position + 9 > limit) {
+                    return 0
+                }
+                val height = (data.get(position + 5).toInt() and 0xff shl 8) or (data.get(position + 6).toInt() and 0xff)
+                val width = (data.get(position + 7).toInt() and 0xff shl 8) or (data.get(position + 8).toInt() and 0xff)
+                return width shl 16 or height
+            }
+            position += 2 + length
+        }
+        return 0
+    }
+}
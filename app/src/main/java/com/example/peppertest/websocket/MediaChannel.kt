@@ -0,0 +1,163 @@
+package com.example.peppertest.websocket
+
+import com.example.peppertest.logging.AsyncLog
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import okio.ByteString
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Dedicated WebSocket for camera frames, next to the control connection
+ *
+ * Large frame writes on this socket do not delay commands on the control socket, and its
+ * timeouts and reconnection state are its own: losing it never affects the control channel,
+ * and it keeps retrying in the background until [disconnect] is called.
+ */
+class MediaChannel(
+    baseClient: OkHttpClient,
+    @Volatile var url: String,
+    private val messageHandler: (String) -> Unit
+) {
+    companion object {
+        private const val TAG = "MediaChannel"
+        private const val NORMAL_CLOSURE_STATUS = 1000
+        private const val INITIAL_BACKOFF_MS = 1000L
+        private const val MAX_BACKOFF_MS = 30_000L
+        private const val WRITE_TIMEOUT_SECONDS = 30L
+    }
+
+    // Frames may take longer to write than control messages
+    private val client = baseClient.newBuilder()
+        .readTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .build()
+
+    private val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+    @Volatile private var webSocket: WebSocket? = null
+    private val isConnecting = AtomicBoolean(false)
+    private val isConnectedFlag = AtomicBoolean(false)
+    private val isStopped = AtomicBoolean(true)
+    private val retryCount = AtomicInteger(0)
+    private var reconnectTask: ScheduledFuture<*>? = null
+
+    /**
+     * Queue of frames waiting for the media socket
+     */
+    val outboundQueue = OutboundQueue({ webSocket })
+
+    /**
+     * Whether the media socket is open
+     */
+    val isConnected: Boolean
+        get() = isConnectedFlag.get()
+
+    /**
+     * Whether the server on this socket accepts frames in a [FrameEnvelope]
+     */
+    @Volatile
+    var supportsEnvelope = false
+        internal set
+
+    /**
+     * Open the media socket, and keep reopening it until [disconnect]
+     */
+    fun connect() {
+        isStopped.set(false)
+        open()
+    }
+
+    /**
+     * Close the media socket and stop reconnecting
+     */
+    fun disconnect() {
+        isStopped.set(true)
+        reconnectTask?.cancel(false)
+        reconnectTask = null
+        webSocket?.close(NORMAL_CLOSURE_STATUS, "Disconnect requested")
+        webSocket = null
+        isConnectedFlag.set(false)
+        isConnecting.set(false)
+        outboundQueue.clear()
+    }
+
+    /**
+     * Stop the channel for good
+     */
+    fun release() {
+        disconnect()
+        outboundQueue.release()
+        scheduler.shutdownNow()
+    }
+
+    private fun open() {
+        if (isStopped.get() || isConnectedFlag.get() || isConnecting.getAndSet(true)) {
+            return
+        }
+        val request = Request.Builder()
+            .url(url)
+            .header("Sec-WebSocket-Protocol", "pepper-media")
+            .build()
+        AsyncLog.d(TAG) { "Connecting media channel: $url" }
+        webSocket = client.newWebSocket(request, object : WebSocketListener() {
+            override fun onOpen(webSocket: WebSocket, response: Response) {
+                AsyncLog.d(TAG) { "Media channel opened" }
+                isConnectedFlag.set(true)
+                isConnecting.set(false)
+                retryCount.set(0)
+                supportsEnvelope = false
+                outboundQueue.flush()
+            }
+
+            override fun onMessage(webSocket: WebSocket, text: String) {
+                try {
+                    messageHandler(text)
+                } catch (e: Exception) {
+                    AsyncLog.e(TAG, e) { "Error handling media channel message" }
+                }
+            }
+
+            override fun onMessage(webSocket: WebSocket, bytes: ByteString) {
+                AsyncLog.d(TAG) { "Ignoring binary message on media channel: ${bytes.size} bytes" }
+            }
+
+            override fun onClosing(webSocket: WebSocket, code: Int, reason: String) {
+                webSocket.close(NORMAL_CLOSURE_STATUS, null)
+            }
+
+            override fun onClosed(webSocket: WebSocket, code: Int, reason: String) {
+                AsyncLog.d(TAG) { "Media channel closed: code=$code, reason='$reason'" }
+                onLost(webSocket)
+            }
+
+            override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
+                AsyncLog.e(TAG) { "Media channel failure: ${t.message}" }
+                onLost(webSocket)
+            }
+        })
+    }
+
+    private fun onLost(socket: WebSocket) {
+        // A socket replaced by a newer one has nothing left to report
+        if (socket !== webSocket) {
+            return
+        }
+        isConnectedFlag.set(false)
+        isConnecting.set(false)
+        outboundQueue.clear()
+        if (isStopped.get() || scheduler.isShutdown) {
+            return
+        }
+        val attempt = retryCount.incrementAndGet()
+        val backoffMs = minOf(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS shl minOf(attempt - 1, 5))
+        AsyncLog.d(TAG) { "Reconnecting media channel in $backoffMs ms (attempt $attempt)" }
+        reconnectTask = scheduler.schedule({ open() }, backoffMs, TimeUnit.MILLISECONDS)
+    }
+}
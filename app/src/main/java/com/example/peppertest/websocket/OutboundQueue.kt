@@ -0,0 +1,188 @@
+package com.example.peppertest.websocket
+
+import com.example.peppertest.logging.AsyncLog
+import okhttp3.WebSocket
+import okio.ByteString
+import java.util.ArrayDeque
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Prioritized outbound queue in front of a WebSocket
+ *
+ * OkHttp sends messages in the order they are queued, so a control message queued behind
+ * a few frames waits for all of them. Control messages are handed to the socket right away;
+ * frames are held here until the socket backlog drops below [frameBacklogBytes], and at most
+ * [maxQueuedFrames] of them are kept, the oldest being dropped first.
+ */
+class OutboundQueue(
+    private val socketProvider: () -> WebSocket?,
+    @Volatile var maxQueuedFrames: Int = DEFAULT_MAX_QUEUED_FRAMES,
+    @Volatile var frameBacklogBytes: Long = DEFAULT_FRAME_BACKLOG_BYTES
+) {
+    companion object {
+        private const val TAG = "OutboundQueue"
+        const val DEFAULT_MAX_QUEUED_FRAMES = 2
+        const val DEFAULT_FRAME_BACKLOG_BYTES = 32L * 1024L
+        private const val POLL_INTERVAL_MS = 5L
+        private const val SMOOTHING = 0.2
+    }
+
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+    private val lock = Any()
+    private val controlMessages = ArrayDeque<Pending<Any>>()
+    private val frames = ArrayDeque<Pending<ByteString>>()
+    private val isDrainScheduled = AtomicBoolean(false)
+    private val droppedFrameCount = AtomicLong(0)
+    @Volatile private var smoothedControlLatencyMs = 0.0
+    @Volatile private var smoothedFrameLatencyMs = 0.0
+
+    /**
+     * Number of messages waiting in this queue, not counting the socket's own buffer
+     */
+    val queueDepth: Int
+        get() = synchronized(lock) { controlMessages.size + frames.size }
+
+    /**
+     * Number of frames waiting in this queue
+     */
+    val queuedFrames: Int
+        get() = synchronized(lock) { frames.size }
+
+    /**
+     * Number of frames dropped to make room for newer ones
+     */
+    val droppedFrames: Long
+        get() = droppedFrameCount.get()
+
+    /**
+     * Smoothed time a control message waits before reaching the socket, in milliseconds
+     */
+    val controlSendLatencyMs: Double
+        get() = smoothedControlLatencyMs
+
+    /**
+     * Smoothed time a frame waits before reaching the socket, in milliseconds
+     */
+    val frameSendLatencyMs: Double
+        get() = smoothedFrameLatencyMs
+
+    /**
+     * Queue a control message, sent ahead of any frame
+     */
+    fun sendControl(message: String) {
+        queueControl(message)
+    }
+
+    /**
+     * Queue a binary control message, sent ahead of any frame
+     */
+    fun sendControl(message: ByteString) {
+        queueControl(message)
+    }
+
+    private fun queueControl(message: Any) {
+        synchronized(lock) {
+            controlMessages.addLast(Pending(message, System.currentTimeMillis()))
+        }
+        scheduleDrain(0)
+    }
+
+    /**
+     * Queue a frame, dropping the oldest queued frames beyond [maxQueuedFrames]
+     */
+    fun sendFrame(frame: ByteString) {
+        synchronized(lock) {
+            frames.addLast(Pending(frame, System.currentTimeMillis()))
+            while (frames.size > maxOf(1, maxQueuedFrames)) {
+                frames.removeFirst()
+                droppedFrameCount.incrementAndGet()
+            }
+        }
+        scheduleDrain(0)
+    }
+
+    /**
+     * Try sending what is queued, e.g. once the connection is up
+     */
+    fun flush() {
+        scheduleDrain(0)
+    }
+
+    /**
+     * Write the queued control messages to the given socket right away, e.g. to a connection
+     * about to be replaced; frames stay queued for the next one
+     */
+    fun drainControlTo(socket: WebSocket) {
+        while (true) {
+            val message = synchronized(lock) { controlMessages.pollFirst() } ?: break
+            when (val payload = message.payload) {
+                is ByteString -> socket.send(payload)
+                else -> socket.send(payload.toString())
+            }
+        }
+    }
+
+    /**
+     * Drop everything still queued, e.g. when the connection is lost
+     */
+    fun clear() {
+        synchronized(lock) {
+            controlMessages.clear()
+            frames.clear()
+        }
+    }
+
+    /**
+     * Stop the sending thread
+     */
+    fun release() {
+        clear()
+        executor.shutdownNow()
+    }
+
+    private fun scheduleDrain(delayMs: Long) {
+        if (isDrainScheduled.getAndSet(true) || executor.isShutdown) {
+            return
+        }
+        executor.schedule({ drain() }, delayMs, TimeUnit.MILLISECONDS)
+    }
+
+    private fun drain() {
+        isDrainScheduled.set(false)
+        val socket = socketProvider() ?: return
+        try {
+            // Control messages never wait for the backlog
+            while (true) {
+                val message = synchronized(lock) { controlMessages.pollFirst() } ?: break
+                smoothedControlLatencyMs = smooth(smoothedControlLatencyMs, System.currentTimeMillis() - message.queuedAt)
+                when (val payload = message.payload) {
+                    is ByteString -> socket.send(payload)
+                    else -> socket.send(payload.toString())
+                }
+            }
+
+            // Frames only go out once the socket has room, so that later control messages do not queue behind them
+            while (socket.queueSize() <= frameBacklogBytes) {
+                val frame = synchronized(lock) { frames.pollFirst() } ?: break
+                smoothedFrameLatencyMs = smooth(smoothedFrameLatencyMs, System.currentTimeMillis() - frame.queuedAt)
+                socket.send(frame.payload)
+            }
+        } catch (e: Exception) {
+            AsyncLog.e(TAG, e) { "Error sending queued message" }
+        }
+
+        if (queueDepth > 0) {
+            scheduleDrain(POLL_INTERVAL_MS)
+        }
+    }
+
+    private fun smooth(current: Double, sample: Long): Double {
+        return if (current == 0.0) sample.toDouble() else current + SMOOTHING * (sample - current)
+    }
+
+    private class Pending<T>(val payload: T, val queuedAt: Long)
+}
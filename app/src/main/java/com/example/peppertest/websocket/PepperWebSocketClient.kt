@@ -1,18 +1,27 @@
 package com.example.peppertest.websocket
 
-import android.os.Handler
-import android.os.Looper
-import android.util.Log
+import com.example.peppertest.command.BinaryCommandCodec
+import com.example.peppertest.command.Command
+import com.example.peppertest.command.CommandTrace
+import com.example.peppertest.command.JsonCommandDecoder
+import com.example.peppertest.logging.AsyncLog
 import okhttp3.*
 import okio.ByteString
+import okio.ByteString.Companion.toByteString
 import org.json.JSONObject
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
+import kotlin.random.Random
 
 /**
  * WebSocket client for Pepper robot that handles:
- * - Connection management with automatic reconnection
+ * - Connection management with automatic reconnection and session resumption
+ * - Make-before-break switching between candidate server endpoints
  * - Sending camera frames as binary data
  * - Receiving and dispatching commands
  */
@@ -22,10 +31,26 @@ class PepperWebSocketClient(
     private val connectionStateListener: ConnectionStateListener
 ) {
     companion object {
-        private const val TAG = "PepperWebSocketClient"
+        const val TAG = "PepperWebSocketClient"
         private const val NORMAL_CLOSURE_STATUS = 1000
+        // Attempts after which the listener is told reconnecting failed, retries go on regardless
         private const val MAX_RETRY_COUNT = 5
-        private const val INITIAL_BACKOFF_MS = 1000L
+        private const val INITIAL_BACKOFF_MS = 500L
+        private const val MAX_BACKOFF_MS = 30_000L
+        // Time the server has to answer our hello before the session is treated as not resumable
+        private const val HELLO_TIMEOUT_MS = 3000L
+        // Failed attempts on an endpoint before failing over to the next candidate
+        private const val FAILOVER_AFTER_RETRIES = 3
+        // Time a new endpoint has to prove healthy before the switch to it is abandoned
+        private const val CANDIDATE_TIMEOUT_MS = 10_000L
+        private const val PROBE_INTERVAL_MS = 30_000L
+        // Messages about the connection itself rather than commands
+        private val CONNECTION_MESSAGES = setOf("hello", "ack", "pong", "capabilities", "frame_ack")
+        // Rough size of a queued frame, to account for frames not handed to the socket yet
+        private const val AVERAGE_FRAME_BYTES = 32L * 1024L
+        private const val DEFAULT_PING_INTERVAL_MS = 2000L
+        // Pongs missed in a row before the connection is considered dead
+        private const val MAX_MISSED_PONGS = 3
     }
 
     private val client: OkHttpClient = OkHttpClient.Builder()
@@ -36,13 +61,134 @@ class PepperWebSocketClient(
         .retryOnConnectionFailure(true)
         .build()
     
-    private var webSocket: WebSocket? = null
+    @Volatile private var webSocket: WebSocket? = null
     private val isConnected = AtomicBoolean(false)
     private val isConnecting = AtomicBoolean(false)
     private val retryCount = AtomicInteger(0)
-    private var reconnectJob: Runnable? = null
-    private val handler = Handler(Looper.getMainLooper())
-    private var lastPongTime: Long = 0
+    @Volatile private var lastPongTime: Long = 0
+    
+    // Background timers: application-level pings, session handshake and reconnection
+    private val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+    private var pingTask: ScheduledFuture<*>? = null
+    private var helloTimeoutTask: ScheduledFuture<*>? = null
+    @Volatile private var reconnectTask: ScheduledFuture<*>? = null
+    private val probeTask: ScheduledFuture<*>
+    // Set once the server answers pings with its timestamps, for the current connection only
+    private val serverEchoesPings = AtomicBoolean(false)
+    
+    /**
+     * Round-trip time and clock offset with the server, from application-level pings
+     */
+    val clockSync = ClockSync()
+    
+    /**
+     * Session with the server, whose sequenced control messages survive reconnections
+     */
+    @Volatile
+    var session = SessionState()
+        private set
+    
+    // Set from opening a socket until the server answers our hello, while control messages are held back
+    private val awaitingHello = AtomicBoolean(false)
+    
+    // Candidate endpoints and their round-trip times
+    private val endpointSelector = EndpointSelector(client, scheduler).apply { endpoints = listOf(serverUrl) }
+    
+    // Connection to another endpoint, until it proves healthy and replaces the current one
+    @Volatile private var candidate: Candidate? = null
+    private var candidateTimeoutTask: ScheduledFuture<*>? = null
+    @Volatile private var candidateDecoder = JsonCommandDecoder()
+    
+    /**
+     * Whether to switch by itself to a candidate endpoint that answers clearly faster, and to
+     * fail over to the fastest one rather than the next in order
+     */
+    @Volatile
+    var isLatencySelectionEnabled = false
+    
+    /**
+     * Candidate endpoints, the current server included
+     */
+    val endpoints: List<String>
+        get() = endpointSelector.endpoints
+    
+    init {
+        // Measure the other endpoints now and then, and move to one that is clearly faster
+        probeTask = scheduler.scheduleWithFixedDelay({
+            if (!isLatencySelectionEnabled || !isConnected.get() || candidate != null || endpoints.size < 2) {
+                return@scheduleWithFixedDelay
+            }
+            val currentUrl = serverUrl
+            val currentRttMs = clockSync.rttMs
+            endpointSelector.faster(currentUrl, currentRttMs)?.let {
+                AsyncLog.i(TAG) { "$it answers faster than $currentUrl (${currentRttMs.toInt()} ms)" }
+                switchTo(it)
+                return@scheduleWithFixedDelay
+            }
+            endpointSelector.probe(serverUrl, offeredProtocols())
+        }, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS)
+    }
+    
+    /**
+     * Interval between application-level pings, applied on the next connection
+     */
+    @Volatile
+    var pingIntervalMs = DEFAULT_PING_INTERVAL_MS
+    
+    /**
+     * Whether the last connection resumed the session without losing messages either way
+     */
+    @Volatile
+    var isSessionResumed = false
+        private set
+    
+    /**
+     * Listener notified when the server acknowledges a camera frame
+     */
+    var frameAckListener: FrameAckListener? = null
+    
+    /**
+     * Whether frames are wrapped in a [FrameEnvelope] when the server supports it
+     */
+    @Volatile
+    var isFrameEnvelopeEnabled = true
+    
+    // Set when the server advertises envelope support, for the current connection only
+    private val serverSupportsEnvelope = AtomicBoolean(false)
+    
+    /**
+     * Whether the binary command protocol is offered to the server, JSON being the fallback
+     */
+    @Volatile
+    var isBinaryProtocolEnabled = true
+    
+    // Set when the server picked the binary protocol, for the current connection only
+    private val useBinaryProtocol = AtomicBoolean(false)
+    private val frameSequence = AtomicInteger(0)
+    
+    /**
+     * Outbound queue sending control messages ahead of camera frames
+     */
+    val outboundQueue = OutboundQueue({ webSocket })
+    
+    // One streaming decoder per socket, as each socket delivers messages on its own thread
+    @Volatile private var controlDecoder = JsonCommandDecoder()
+    private val mediaDecoder = JsonCommandDecoder()
+    
+    // Dedicated socket for camera frames, only in dual-channel mode
+    @Volatile private var mediaChannel: MediaChannel? = null
+    
+    /**
+     * Whether camera frames go through their own socket instead of the control socket
+     */
+    val isDualChannelEnabled: Boolean
+        get() = mediaChannel != null
+    
+    /**
+     * Whether the media socket is open, always false outside dual-channel mode
+     */
+    val isMediaConnected: Boolean
+        get() = mediaChannel?.isConnected ?: false
     
     /**
      * Get the current server URL
@@ -53,29 +199,114 @@ class PepperWebSocketClient(
     
     /**
      * Set a new server URL
-     * Note: This requires disconnecting and reconnecting to take effect
+     *
+     * While connected, the current connection stays in use until the new one is open and
+     * answers a ping; it is then swapped in and the previous one closed once drained. If the
+     * new server cannot be reached, the current connection is kept.
      */
     fun setServerUrl(url: String) {
-        Log.d(TAG, "Changing server URL from $serverUrl to $url")
+        if (url !in endpointSelector.endpoints) {
+            endpointSelector.endpoints = endpointSelector.endpoints + url
+        }
+        switchTo(url)
+    }
+    
+    /**
+     * Set the candidate endpoints, in order of preference, to fail over between
+     *
+     * Switches to the first one if the current server is not among them.
+     */
+    fun setEndpoints(urls: List<String>) {
+        if (urls.isEmpty()) {
+            return
+        }
+        endpointSelector.endpoints = urls
+        if (serverUrl !in urls) {
+            switchTo(urls.first())
+        }
+    }
+    
+    private fun switchTo(url: String) {
+        if ((url == serverUrl && (isConnected.get() || isConnecting.get())) || candidate?.url == url) {
+            return
+        }
+        val previousUrl = serverUrl
+        AsyncLog.d(TAG) { "Changing server URL from $previousUrl to $url" }
         
-        // Disconnect from current server if connected
-        if (isConnected.get()) {
+        if (!isConnected.get()) {
+            // Nothing to keep alive, connect straight to the new URL
             disconnect()
+            useEndpoint(url)
+            connect()
+            return
         }
-        
-        // Update URL
+        openCandidate(url)
+    }
+    
+    /**
+     * Point at another endpoint; a session never moves to another server
+     */
+    private fun useEndpoint(url: String) {
         serverUrl = url
-        
-        // Reconnect to new URL
-        connect()
+        clockSync.reset()
+        session = SessionState()
+        mediaChannel?.let {
+            it.disconnect()
+            it.url = mediaUrlFor(url)
+        }
+    }
+    
+    /**
+     * Send camera frames over a dedicated socket, so that frame writes never delay
+     * control messages. The media socket reconnects on its own; while it is down,
+     * frames are dropped and the control socket is unaffected.
+     */
+    fun enableMediaChannel(mediaUrl: String = mediaUrlFor(serverUrl)) {
+        if (mediaChannel != null) {
+            return
+        }
+        AsyncLog.d(TAG) { "Enabling media channel on $mediaUrl" }
+        lateinit var channel: MediaChannel
+        channel = MediaChannel(client, mediaUrl) { text ->
+            val receivedNanos = System.nanoTime()
+            val message = mediaDecoder.decode(text)
+            if (message.type == "capabilities") {
+                channel.supportsEnvelope = message.frameEnvelope >= FrameEnvelope.VERSION
+            } else {
+                handleMessage(message, receivedNanos)
+            }
+        }
+        mediaChannel = channel
+        if (isConnected.get() || isConnecting.get()) {
+            channel.connect()
+        }
+    }
+    
+    /**
+     * Go back to sending camera frames over the control socket
+     */
+    fun disableMediaChannel() {
+        mediaChannel?.let {
+            AsyncLog.d(TAG) { "Disabling media channel" }
+            mediaChannel = null
+            it.release()
+        }
+    }
+    
+    private fun mediaUrlFor(url: String): String {
+        return url.trimEnd('/') + "/media"
     }
     
     /**
      * Connect to the WebSocket server
      */
     fun connect() {
+        if (scheduler.isShutdown) {
+            AsyncLog.w(TAG) { "Client released, not connecting" }
+            return
+        }
         if (isConnected.get() || isConnecting.get()) {
-            Log.d(TAG, "Already connected or connecting")
+            AsyncLog.d(TAG) { "Already connected or connecting" }
             return
         }
         
@@ -86,139 +317,352 @@ class PepperWebSocketClient(
             .url(serverUrl)
             .header("Connection", "Upgrade")
             .header("Upgrade", "websocket")
-            .header("Sec-WebSocket-Protocol", "pepper")  // Add subprotocol to help identify the client
+            .header("Sec-WebSocket-Protocol", offeredProtocols())  // Add subprotocol to help identify the client
             .build()
             
-        Log.d(TAG, "Connecting to WebSocket: $serverUrl with headers: ${request.headers}")
+        AsyncLog.d(TAG) { "Connecting to WebSocket: ${request.url} with headers: ${request.headers}" }
         webSocket = client.newWebSocket(request, createWebSocketListener())
+        mediaChannel?.connect()
     }
     
     /**
      * Disconnect from the WebSocket server
      */
     fun disconnect() {
-        Log.d(TAG, "Disconnecting from WebSocket")
+        AsyncLog.d(TAG) { "Disconnecting from WebSocket" }
+        val wasConnected = isConnected.get()
         cancelReconnect()
+        stopPinging()
+        helloTimeoutTask?.cancel(false)
+        dropCandidate()
         webSocket?.close(NORMAL_CLOSURE_STATUS, "Disconnect requested")
         webSocket = null
+        outboundQueue.clear()
+        mediaChannel?.disconnect()
         isConnected.set(false)
         isConnecting.set(false)
+        awaitingHello.set(false)
+        // Ending the connection on purpose ends the session
+        session = SessionState()
+        if (wasConnected) {
+            connectionStateListener.onDisconnected()
+        }
+    }
+    
+    /**
+     * Disconnect and stop the client's threads for good; the client cannot connect again
+     */
+    fun release() {
+        disconnect()
+        probeTask.cancel(false)
+        candidateTimeoutTask?.cancel(false)
+        scheduler.shutdownNow()
+        outboundQueue.release()
+        // Its socket, scheduler and frame queue go with the client
+        disableMediaChannel()
+        // Let calls already in flight finish, then drop the pooled connections
+        client.dispatcher.executorService.shutdown()
+        client.connectionPool.evictAll()
     }
     
     /**
      * Send a camera frame as binary data
+     *
+     * The frame bytes are copied once, into the ByteString queued for sending, so the
+     * buffer can be released as soon as this returns. The frame is wrapped in a
+     * [FrameEnvelope] carrying its capture time when the server supports it. Frames wait
+     * in the [outboundQueue] behind control messages and may be dropped for newer ones.
+     *
+     * @param sequence number of the frame in its envelope, echoed by the server in its
+     * acknowledgement and with the faces it finds in the frame
      */
-    fun sendCameraFrame(imageData: ByteArray): Boolean {
+    fun sendCameraFrame(
+        frame: ByteBuffer,
+        captureTimeMs: Long = System.currentTimeMillis(),
+        sequence: Int = frameSequence.incrementAndGet()
+    ): Boolean {
         if (!isConnected.get()) {
             return false
         }
         
+        val media = mediaChannel
+        if (media != null && !media.isConnected) {
+            return false
+        }
+        
         return try {
-            webSocket?.send(ByteString.of(*imageData)) ?: false
+            val supportsEnvelope = media?.supportsEnvelope ?: serverSupportsEnvelope.get()
+            val message = if (isFrameEnvelopeEnabled && supportsEnvelope) {
+                val size = FrameEnvelope.jpegSize(frame)
+                FrameEnvelope.encode(
+                    sequence, captureTimeMs, System.currentTimeMillis(),
+                    size ushr 16, size and 0xffff, FrameEnvelope.FORMAT_JPEG, frame
+                )
+            } else {
+                frame.duplicate().toByteString()
+            }
+            (media?.outboundQueue ?: outboundQueue).sendFrame(message)
+            true
         } catch (e: Exception) {
-            Log.e(TAG, "Error sending camera frame", e)
+            AsyncLog.e(TAG, e) { "Error sending camera frame" }
             false
         }
     }
     
     /**
-     * Send a text message to the server
+     * Send a camera frame as binary data
      */
-    fun sendMessage(message: String): Boolean {
-        if (!isConnected.get()) {
-            return false
+    fun sendCameraFrame(imageData: ByteArray): Boolean {
+        return sendCameraFrame(ByteBuffer.wrap(imageData))
+    }
+    
+    /**
+     * Number of bytes queued for sending and not yet transmitted, including queued frames
+     */
+    fun queueSize(): Long {
+        return (webSocket?.queueSize() ?: 0L) + outboundQueue.queuedFrames * AVERAGE_FRAME_BYTES
+    }
+    
+    /**
+     * Send a JSON message to the server
+     *
+     * The message is numbered in the session, its `session_seq` field set; while the session
+     * can be resumed, it is delivered after a reconnection if the connection is down.
+     */
+    fun sendMessage(message: JSONObject): Boolean {
+        return try {
+            sendSequenced { sequence ->
+                if (sequence != 0) {
+                    message.put("session_seq", sequence)
+                }
+                message.toString()
+            }
+        } catch (e: Exception) {
+            AsyncLog.e(TAG, e) { "Error sending message" }
+            false
         }
-        
+    }
+    
+    /**
+     * Report the status of a command, in the encoding negotiated with the server
+     *
+     * @param queueDepth commands still waiting in the queue the command went through,
+     * negative if it was not queued
+     * @param queueWaitMs time the command waited in that queue
+     * @param trace times the command reached each stage, sent with its identifier
+     */
+    fun sendCommandStatus(
+        action: String,
+        status: String,
+        text: String,
+        timestampMs: Long = System.currentTimeMillis(),
+        queueDepth: Int = -1,
+        queueWaitMs: Long = 0L,
+        trace: CommandTrace? = null
+    ): Boolean {
+        val binary = useBinaryProtocol.get()
         return try {
-            webSocket?.send(message) ?: false
+            sendSequenced { sequence ->
+                if (binary) {
+                    BinaryCommandCodec.encodeStatus(action, status, text, timestampMs, sequence, queueDepth, queueWaitMs, trace)
+                } else {
+                    JSONObject().apply {
+                        put("type", "command_status")
+                        if (sequence != 0) {
+                            put("session_seq", sequence)
+                        }
+                        put("action", action)
+                        put("status", status)
+                        put("text", text)
+                        put("timestamp", timestampMs)
+                        if (queueDepth >= 0) {
+                            put("queue_depth", queueDepth)
+                            put("queue_wait_ms", queueWaitMs)
+                        }
+                        if (trace != null) {
+                            put("command_id", trace.id)
+                            put("trace", traceJson(trace))
+                        }
+                    }.toString()
+                }
+            }
         } catch (e: Exception) {
-            Log.e(TAG, "Error sending message", e)
+            AsyncLog.e(TAG, e) { "Error sending command status" }
             false
         }
     }
     
+    /**
+     * Trace of a command as sent in its status: the wall-clock time of its receipt, then the
+     * time from the receipt to each stage it reached, in milliseconds
+     */
+    private fun traceJson(trace: CommandTrace): JSONObject {
+        return JSONObject().apply {
+            put("received_at", trace.receivedAtMs)
+            CommandTrace.Stage.values().forEach {
+                val micros = trace.elapsedMicros(it)
+                if (micros >= 0) {
+                    put("${it.key}_ms", micros / 1000.0)
+                }
+            }
+        }
+    }
+    
+    /**
+     * Send a control message built for its session sequence number
+     *
+     * While the session is resumable the message is kept until the server acknowledges it,
+     * and it is only held back, to be replayed, when the connection is down or not resumed
+     * yet. Otherwise it is sent unnumbered (sequence 0), and only when connected.
+     *
+     * @return whether the message was sent or held back
+     */
+    private fun sendSequenced(build: (Int) -> Any): Boolean {
+        val session = session
+        val connected = isConnected.get()
+        if (!connected && !session.isResumable) {
+            return false
+        }
+        val ready = connected && !awaitingHello.get()
+        if (ready && !session.isResumable) {
+            enqueueControl(build(0))
+            return true
+        }
+        val message = session.record(build)
+        if (ready) {
+            enqueueControl(message)
+        }
+        return true
+    }
+    
+    private fun enqueueControl(message: Any) {
+        when (message) {
+            is ByteString -> outboundQueue.sendControl(message)
+            else -> outboundQueue.sendControl(message.toString())
+        }
+    }
+    
+    /**
+     * Whether commands are currently exchanged in the binary encoding
+     */
+    val isBinaryProtocolActive: Boolean
+        get() = useBinaryProtocol.get()
+    
+    private fun offeredProtocols(): String {
+        return if (isBinaryProtocolEnabled) "${BinaryCommandCodec.SUBPROTOCOL}, pepper" else "pepper"
+    }
+    
     /**
      * Create the WebSocket listener
      */
     private fun createWebSocketListener(): WebSocketListener {
         return object : WebSocketListener() {
             override fun onOpen(webSocket: WebSocket, response: Response) {
-                Log.d(TAG, "WebSocket connection opened. Response: ${response.code} ${response.message}")
-                Log.d(TAG, "Response headers: ${response.headers}")
+                if (scheduler.isShutdown) {
+                    // Opened after the client was released
+                    webSocket.close(NORMAL_CLOSURE_STATUS, "Client released")
+                    return
+                }
+                candidateOf(webSocket)?.let {
+                    onCandidateOpen(it, webSocket, response)
+                    return
+                }
+                AsyncLog.d(TAG) { "WebSocket connection opened. Response: ${response.code} ${response.message}" }
+                AsyncLog.d(TAG) { "Response headers: ${response.headers}" }
                 isConnected.set(true)
                 isConnecting.set(false)
                 retryCount.set(0)
+                serverSupportsEnvelope.set(false)
+                useBinaryProtocol.set(response.header("Sec-WebSocket-Protocol") == BinaryCommandCodec.SUBPROTOCOL)
+                val encoding = if (useBinaryProtocol.get()) "binary" else "JSON"
+                AsyncLog.d(TAG) { "Command encoding: $encoding" }
                 
-                // Send initial ping to verify connection is working
-                try {
-                    val pingMessage = JSONObject().apply {
-                        put("type", "ping")
-                        put("timestamp", System.currentTimeMillis())
-                    }
-                    webSocket.send(pingMessage.toString())
-                } catch (e: Exception) {
-                    Log.e(TAG, "Error sending initial ping", e)
-                }
+                // Present the session first, then ping right away to verify the connection is working
+                startSession(webSocket)
+                startPinging(webSocket)
                 
+                outboundQueue.flush()
                 connectionStateListener.onConnected()
             }
             
             override fun onMessage(webSocket: WebSocket, text: String) {
+                val receivedNanos = System.nanoTime()
                 try {
-                    Log.d(TAG, "Received message: $text")
-                    val json = JSONObject(text)
-                    
-                    // Check message type
-                    if (json.has("type")) {
-                        val type = json.getString("type")
-                        
-                        // Handle different message types
-                        when (type) {
-                            "command" -> {
-                                Log.d(TAG, "Received command: ${json.getString("action")}")
-                                commandListener.onCommandReceived(json)
-                            }
-                            "speech" -> {
-                                Log.d(TAG, "Received speech command: ${json.optString("action", "")}")
-                                commandListener.onCommandReceived(json)
-                            }
-                            "face_detection" -> {
-                                Log.d(TAG, "Received face detection command: ${json.optString("action", "")}")
-                                commandListener.onCommandReceived(json)
-                            }
-                            "pong" -> {
-                                // Handle pong response
-                                Log.d(TAG, "Received pong response")
-                                lastPongTime = System.currentTimeMillis()
-                            }
-                            else -> {
-                                Log.d(TAG, "Received unknown message type: $type")
-                                // Forward to command listener anyway for future compatibility
-                                commandListener.onCommandReceived(json)
-                            }
-                        }
-                    } else {
-                        Log.d(TAG, "Received message without type")
+                    val candidate = candidateOf(webSocket)
+                    val isCurrent = webSocket === this@PepperWebSocketClient.webSocket
+                    val decoder = when {
+                        candidate != null -> candidateDecoder
+                        isCurrent -> controlDecoder
+                        else -> JsonCommandDecoder()
+                    }
+                    val message = decoder.decode(text)
+                    if (candidate == null && !isCurrent && message.type in CONNECTION_MESSAGES) {
+                        // Previous connection, still delivering what was in flight after a switch:
+                        // only its commands still matter
+                        return
+                    }
+                    if (message.hasSessionSequence && !acceptFromServer(webSocket, message.sessionSequence)) {
+                        return
+                    }
+                    if (candidate == null || !onCandidateMessage(candidate, webSocket, message)) {
+                        handleMessage(message, receivedNanos)
                     }
                 } catch (e: Exception) {
-                    Log.e(TAG, "Error parsing message", e)
+                    AsyncLog.e(TAG, e) { "Error parsing message" }
                 }
             }
             
             override fun onMessage(webSocket: WebSocket, bytes: ByteString) {
-                // We don't expect binary messages from the server
-                Log.d(TAG, "Received binary message from server: ${bytes.size} bytes")
+                val receivedAtMs = System.currentTimeMillis()
+                val receivedNanos = System.nanoTime()
+                val data = bytes.asByteBuffer()
+                val binary = candidateOf(webSocket)?.useBinaryProtocol ?: useBinaryProtocol.get()
+                if (!binary || !BinaryCommandCodec.isCommandMessage(data)) {
+                    AsyncLog.d(TAG) { "Received binary message from server: ${bytes.size} bytes" }
+                    return
+                }
+                val sequence = BinaryCommandCodec.sequenceOf(data)
+                if (sequence != 0 && !acceptFromServer(webSocket, sequence)) {
+                    return
+                }
+                try {
+                    val command = BinaryCommandCodec.decode(data) { frameSequence, x, y, width, height ->
+                        frameAckListener?.onFaceDetected(frameSequence, x, y, width, height)
+                    }
+                    if (command != null) {
+                        // Binary commands carry no identifier, the session sequence stands in for one
+                        val id = if (sequence != 0) sequence.toString() else CommandTrace.localId()
+                        val trace = CommandTrace(id, receivedAtMs, receivedNanos)
+                        trace.mark(CommandTrace.Stage.DECODED)
+                        commandListener.onCommandReceived(command, trace)
+                    } else {
+                        AsyncLog.d(TAG) { "Received unknown binary command" }
+                    }
+                } catch (e: Exception) {
+                    AsyncLog.e(TAG, e) { "Error decoding binary command" }
+                }
             }
             
             override fun onClosing(webSocket: WebSocket, code: Int, reason: String) {
-                Log.d(TAG, "WebSocket closing: code=$code, reason='$reason'")
+                AsyncLog.d(TAG) { "WebSocket closing: code=$code, reason='$reason'" }
                 webSocket.close(NORMAL_CLOSURE_STATUS, null)
             }
             
             override fun onClosed(webSocket: WebSocket, code: Int, reason: String) {
-                Log.d(TAG, "WebSocket closed: code=$code, reason='$reason'")
+                AsyncLog.d(TAG) { "WebSocket closed: code=$code, reason='$reason'" }
+                candidateOf(webSocket)?.let {
+                    onCandidateLost(it, "closed: $reason")
+                    return
+                }
+                if (webSocket !== this@PepperWebSocketClient.webSocket) {
+                    // A connection replaced by another endpoint, or disconnected on purpose
+                    return
+                }
                 isConnected.set(false)
                 isConnecting.set(false)
+                outboundQueue.clear()
+                stopPinging()
+                helloTimeoutTask?.cancel(false)
                 connectionStateListener.onDisconnected()
                 
                 if (code != NORMAL_CLOSURE_STATUS) {
@@ -227,13 +671,23 @@ class PepperWebSocketClient(
             }
             
             override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
-                Log.e(TAG, "WebSocket failure: ${t.message}", t)
+                AsyncLog.e(TAG, t) { "WebSocket failure: ${t.message}" }
                 if (response != null) {
-                    Log.e(TAG, "Response: ${response.code} ${response.message}")
-                    Log.e(TAG, "Response headers: ${response.headers}")
+                    AsyncLog.e(TAG) { "Response: ${response.code} ${response.message}" }
+                    AsyncLog.e(TAG) { "Response headers: ${response.headers}" }
+                }
+                candidateOf(webSocket)?.let {
+                    onCandidateLost(it, t.message ?: "failure")
+                    return
+                }
+                if (webSocket !== this@PepperWebSocketClient.webSocket) {
+                    return
                 }
                 isConnected.set(false)
                 isConnecting.set(false)
+                outboundQueue.clear()
+                stopPinging()
+                helloTimeoutTask?.cancel(false)
                 connectionStateListener.onDisconnected()
                 scheduleReconnect()
             }
@@ -241,46 +695,443 @@ class PepperWebSocketClient(
     }
     
     /**
-     * Schedule a reconnection attempt with exponential backoff
+     * Handle a message from the server, received on the control or the media socket
+     *
+     * Commands are passed on in the typed form they were decoded into, the message is not
+     * parsed again; commands the decoder does not model are logged and dropped. Each command
+     * starts its trace from [receivedNanos], when the socket delivered the message.
+     */
+    private fun handleMessage(message: JsonCommandDecoder.InboundMessage, receivedNanos: Long) {
+        when (message.type) {
+            "command", "speech", "speak", "config", "latency_stats" -> {
+                // The message is reused by the next decode, log copies of its fields
+                val type = message.type
+                val action = message.action
+                AsyncLog.d(TAG) { "Received $type: $action" }
+                if (message.hasFace) {
+                    frameAckListener?.onFaceDetected(
+                        message.faceSequence, message.faceX, message.faceY, message.faceWidth, message.faceHeight
+                    )
+                }
+                val command = message.toCommand()
+                if (command != null) {
+                    commandListener.onCommandReceived(command, traceOf(message, receivedNanos))
+                } else {
+                    AsyncLog.w(TAG) { "Unknown or incomplete $type: $action" }
+                }
+            }
+            "face_detection" -> {
+                val action = message.action
+                AsyncLog.d(TAG) { "Received face detection command: $action" }
+            }
+            "frame_ack" -> {
+                frameAckListener?.onFrameAcknowledged(message.processingMs)
+                if (message.hasSequence) {
+                    // Times are echoed from the envelope, so they are on our clock
+                    val now = System.currentTimeMillis()
+                    frameAckListener?.onFrameLatency(
+                        message.sequence,
+                        if (message.captureTime > 0) now - message.captureTime else 0L,
+                        if (message.sendTime > 0) now - message.sendTime else 0L
+                    )
+                }
+            }
+            "capabilities" -> {
+                serverSupportsEnvelope.set(message.frameEnvelope >= FrameEnvelope.VERSION)
+                val version = message.frameEnvelope
+                AsyncLog.d(TAG) { "Server capabilities: frame envelope v$version" }
+            }
+            "pong" -> {
+                lastPongTime = System.currentTimeMillis()
+                if (message.timestamp > 0 && message.serverReceiveTime > 0 && message.serverSendTime > 0) {
+                    serverEchoesPings.set(true)
+                    clockSync.onExchange(message.timestamp, message.serverReceiveTime, message.serverSendTime, lastPongTime)
+                }
+            }
+            "hello" -> {
+                helloTimeoutTask?.cancel(false)
+                onSessionReady(message.resumed, message.ack, resumable = true)
+            }
+            "ack" -> {
+                session.onAcknowledged(message.ack)
+            }
+            "" -> {
+                AsyncLog.d(TAG) { "Received message without type" }
+            }
+            else -> {
+                val type = message.type
+                AsyncLog.d(TAG) { "Received unknown message type: $type" }
+            }
+        }
+    }
+    
+    /**
+     * Start the trace of a command just decoded, under the identifier the server gave it,
+     * else its session sequence number
+     */
+    private fun traceOf(message: JsonCommandDecoder.InboundMessage, receivedNanos: Long): CommandTrace {
+        val id = when {
+            message.commandId.isNotEmpty() -> message.commandId
+            message.hasSessionSequence -> message.sessionSequence.toString()
+            else -> CommandTrace.localId()
+        }
+        val elapsedNanos = System.nanoTime() - receivedNanos
+        return CommandTrace(id, System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(elapsedNanos), receivedNanos).apply {
+            mark(CommandTrace.Stage.DECODED)
+        }
+    }
+    
+    /**
+     * Send application-level pings on the given socket until it is replaced or closed
+     *
+     * Once the server has answered with its timestamps, missing [MAX_MISSED_PONGS] pongs in a
+     * row, allowing for the measured round-trip time, cancels the socket so that it reconnects
+     * without waiting for OkHttp's own timeouts.
+     */
+    private fun startPinging(socket: WebSocket) {
+        pingTask?.cancel(false)
+        serverEchoesPings.set(false)
+        lastPongTime = System.currentTimeMillis()
+        val intervalMs = pingIntervalMs
+        pingTask = scheduler.scheduleWithFixedDelay({
+            if (socket !== webSocket) {
+                return@scheduleWithFixedDelay
+            }
+            val now = System.currentTimeMillis()
+            val deadlineMs = MAX_MISSED_PONGS * intervalMs + (clockSync.rttMs + 4 * clockSync.rttVarianceMs).toLong()
+            if (serverEchoesPings.get() && now - lastPongTime > deadlineMs) {
+                val silentMs = now - lastPongTime
+                val rttMs = clockSync.rttMs.toInt()
+                AsyncLog.w(TAG) { "No pong for $silentMs ms (RTT $rttMs ms), dropping connection" }
+                socket.cancel()
+                return@scheduleWithFixedDelay
+            }
+            try {
+                socket.send("{\"type\":\"ping\",\"timestamp\":$now}")
+                // Acknowledge what arrived since the last batch, so the server can trim its replay buffer
+                val session = session
+                if (session.takeAckDue(force = true)) {
+                    sendAck(socket, session)
+                }
+            } catch (e: Exception) {
+                AsyncLog.e(TAG, e) { "Error sending ping" }
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS)
+    }
+    
+    private fun stopPinging() {
+        pingTask?.cancel(false)
+        pingTask = null
+    }
+    
+    /**
+     * Present the session to the server on a new socket
+     *
+     * The server replies with a hello telling whether it resumed the session and the last
+     * message it received from us, and replays what we missed. A server that does not reply
+     * within [HELLO_TIMEOUT_MS] does not resume sessions; what was held back is sent as is.
+     */
+    private fun startSession(socket: WebSocket) {
+        val session = session
+        awaitingHello.set(true)
+        socket.send(helloMessage(session))
+        scheduleHelloTimeout(socket)
+    }
+    
+    private fun scheduleHelloTimeout(socket: WebSocket) {
+        helloTimeoutTask?.cancel(false)
+        helloTimeoutTask = scheduler.schedule({
+            if (socket === webSocket && awaitingHello.get()) {
+                AsyncLog.w(TAG) { "No hello from server, session will not be resumed" }
+                onSessionReady(resumed = false, ack = 0, resumable = false)
+            }
+        }, HELLO_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+    }
+    
+    private fun helloMessage(session: SessionState): String {
+        return "{\"type\":\"hello\",\"session\":\"${session.sessionId}\",\"ack\":${session.lastReceivedSequence}}"
+    }
+    
+    /**
+     * Replay the messages the server has not received, once it answered our hello
+     */
+    private fun onSessionReady(resumed: Boolean, ack: Int, resumable: Boolean) {
+        if (!awaitingHello.getAndSet(false)) {
+            return
+        }
+        val session = session
+        if (!resumed) {
+            // The server started over, its numbering too
+            session.resetInbound()
+        }
+        session.isResumable = resumable
+        // Messages dropped from the replay buffer before the server got them are lost
+        val isComplete = session.canReplayAfter(ack)
+        isSessionResumed = resumed && isComplete
+        if (resumed && !isComplete) {
+            AsyncLog.w(TAG) { "Messages after $ack were dropped from the replay buffer, session resumed with a gap" }
+        }
+        session.onAcknowledged(ack)
+        val pending = session.unacknowledged()
+        if (!resumable) {
+            session.onAcknowledged(Int.MAX_VALUE)
+        }
+        AsyncLog.d(TAG) { "Session ${if (resumed) "resumed" else "started"}, sending ${pending.size} held back messages" }
+        pending.forEach { enqueueControl(it) }
+    }
+    
+    /**
+     * Register a numbered message from the server, acknowledging a batch when due
+     *
+     * @return false for a message already received before a resume, to be ignored
+     */
+    private fun acceptFromServer(socket: WebSocket, sequence: Int): Boolean {
+        val session = sessionOf(socket) ?: return true
+        val missed = session.missedMessages
+        if (!session.accept(sequence)) {
+            AsyncLog.d(TAG) { "Skipping replayed message $sequence" }
+            return false
+        }
+        if (session.missedMessages != missed) {
+            // The server's replay buffer overflowed while we were away
+            isSessionResumed = false
+            AsyncLog.w(TAG) { "Messages before $sequence were lost, session resumed with a gap" }
+        }
+        if (session.takeAckDue()) {
+            sendAck(socket, session)
+        }
+        return true
+    }
+    
+    private fun sendAck(socket: WebSocket, session: SessionState) {
+        socket.send("{\"type\":\"ack\",\"ack\":${session.lastReceivedSequence}}")
+    }
+    
+    /**
+     * Schedule a reconnection attempt with jittered exponential backoff
+     *
+     * Attempts go on past [MAX_RETRY_COUNT], the listener is only told once; the delay is
+     * drawn from the upper half of the backoff so that clients dropped together do not all
+     * come back at the same time.
      */
     private fun scheduleReconnect() {
         cancelReconnect()
+        if (scheduler.isShutdown) {
+            return
+        }
         
         val currentRetry = retryCount.incrementAndGet()
-        if (currentRetry > MAX_RETRY_COUNT) {
-            Log.d(TAG, "Max retry count reached, giving up")
+        if (currentRetry == MAX_RETRY_COUNT + 1) {
+            AsyncLog.d(TAG) { "Max retry count reached, still retrying in the background" }
             connectionStateListener.onReconnectFailed()
-            return
+        }
+        if (currentRetry % FAILOVER_AFTER_RETRIES == 0 && endpoints.size > 1) {
+            endpointSelector.markFailed(serverUrl)
+            val next = endpointSelector.next(serverUrl, isLatencySelectionEnabled)
+            val failedUrl = serverUrl
+            AsyncLog.i(TAG) { "Failing over from $failedUrl to $next" }
+            useEndpoint(next)
         }
         
-        val backoffMs = INITIAL_BACKOFF_MS * (1 shl (currentRetry - 1))
-        Log.d(TAG, "Scheduling reconnect in $backoffMs ms (attempt $currentRetry)")
+        val ceilingMs = minOf(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS shl minOf(currentRetry - 1, 6))
+        val backoffMs = ceilingMs / 2 + Random.nextLong(ceilingMs / 2 + 1)
+        AsyncLog.d(TAG) { "Scheduling reconnect in $backoffMs ms (attempt $currentRetry)" }
         
-        val runnable = Runnable {
+        reconnectTask = scheduler.schedule({
             if (!isConnected.get() && !isConnecting.get()) {
                 connect()
             }
-        }
-        
-        reconnectJob = runnable
-        handler.postDelayed(runnable, backoffMs)
+        }, backoffMs, TimeUnit.MILLISECONDS)
     }
     
     /**
      * Cancel any pending reconnection attempt
      */
     private fun cancelReconnect() {
-        reconnectJob?.let {
-            handler.removeCallbacks(it)
-            reconnectJob = null
+        reconnectTask?.cancel(false)
+        reconnectTask = null
+    }
+    
+    /**
+     * Open a connection to another endpoint next to the current one
+     *
+     * The candidate presents a new session and is pinged as soon as it opens. Commands the new
+     * server sends meanwhile are handled as usual; the first pong promotes it.
+     */
+    private fun openCandidate(url: String) {
+        dropCandidate()
+        val candidate = Candidate(url, SessionState())
+        this.candidate = candidate
+        val request = Request.Builder()
+            .url(url)
+            .header("Sec-WebSocket-Protocol", offeredProtocols())
+            .build()
+        AsyncLog.d(TAG) { "Opening candidate connection to $url" }
+        candidate.socket = client.newWebSocket(request, createWebSocketListener())
+        candidateTimeoutTask = scheduler.schedule({
+            if (this.candidate === candidate) {
+                onCandidateLost(candidate, "not healthy after $CANDIDATE_TIMEOUT_MS ms")
+            }
+        }, CANDIDATE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+    }
+    
+    private fun candidateOf(socket: WebSocket): Candidate? {
+        return candidate?.takeIf { it.socket === socket }
+    }
+    
+    /**
+     * Session of the current or candidate connection, null for a connection switched away from
+     */
+    private fun sessionOf(socket: WebSocket): SessionState? {
+        return when {
+            socket === webSocket -> session
+            else -> candidateOf(socket)?.session
+        }
+    }
+    
+    private fun onCandidateOpen(candidate: Candidate, socket: WebSocket, response: Response) {
+        AsyncLog.d(TAG) { "Candidate connection to ${candidate.url} opened" }
+        candidate.useBinaryProtocol = response.header("Sec-WebSocket-Protocol") == BinaryCommandCodec.SUBPROTOCOL
+        socket.send(helloMessage(candidate.session))
+        candidate.pingSentAt = System.currentTimeMillis()
+        socket.send("{\"type\":\"ping\",\"timestamp\":${candidate.pingSentAt}}")
+    }
+    
+    /**
+     * Handle connection messages on the candidate socket
+     *
+     * @return false for messages to handle as if received on the current connection
+     */
+    private fun onCandidateMessage(candidate: Candidate, socket: WebSocket, message: JsonCommandDecoder.InboundMessage): Boolean {
+        when (message.type) {
+            "capabilities" -> candidate.supportsEnvelope = message.frameEnvelope >= FrameEnvelope.VERSION
+            "hello" -> {
+                candidate.resumed = message.resumed
+                candidate.ack = message.ack
+                candidate.helloReceived = true
+            }
+            "ack" -> candidate.session.onAcknowledged(message.ack)
+            "pong" -> {
+                endpointSelector.recordRtt(candidate.url, (System.currentTimeMillis() - candidate.pingSentAt).toDouble())
+                promote(candidate, socket)
+            }
+            else -> return false
+        }
+        return true
+    }
+    
+    /**
+     * Make a healthy candidate the current connection
+     *
+     * Control messages still queued for the previous connection are written to it, then it is
+     * closed; OkHttp sends the close frame after everything already queued on that socket.
+     */
+    @Synchronized
+    private fun promote(candidate: Candidate, socket: WebSocket) {
+        if (this.candidate !== candidate) {
+            return
+        }
+        this.candidate = null
+        candidateTimeoutTask?.cancel(false)
+        val previous = webSocket
+        val previousUrl = serverUrl
+        AsyncLog.i(TAG) { "Switching from $previousUrl to ${candidate.url}" }
+        
+        // Hold back new control messages until the new server answered the candidate's hello
+        awaitingHello.set(true)
+        serverUrl = candidate.url
+        clockSync.reset()
+        session = candidate.session
+        useBinaryProtocol.set(candidate.useBinaryProtocol)
+        serverSupportsEnvelope.set(candidate.supportsEnvelope)
+        retryCount.set(0)
+        controlDecoder = candidateDecoder
+        candidateDecoder = JsonCommandDecoder()
+        if (previous != null) {
+            outboundQueue.drainControlTo(previous)
+        }
+        webSocket = socket
+        isConnected.set(true)
+        isConnecting.set(false)
+        
+        if (candidate.helloReceived) {
+            onSessionReady(candidate.resumed, candidate.ack, resumable = true)
+        } else {
+            scheduleHelloTimeout(socket)
         }
+        startPinging(socket)
+        outboundQueue.flush()
+        mediaChannel?.let {
+            it.disconnect()
+            it.url = mediaUrlFor(candidate.url)
+            it.connect()
+        }
+        previous?.close(NORMAL_CLOSURE_STATUS, "Switched endpoint")
+        connectionStateListener.onConnected()
+    }
+    
+    private fun onCandidateLost(candidate: Candidate, reason: String) {
+        if (this.candidate !== candidate) {
+            return
+        }
+        val currentUrl = serverUrl
+        AsyncLog.w(TAG) { "Could not switch to ${candidate.url} ($reason), staying on $currentUrl" }
+        endpointSelector.markFailed(candidate.url)
+        dropCandidate()
+    }
+    
+    private fun dropCandidate() {
+        candidateTimeoutTask?.cancel(false)
+        candidate?.let {
+            candidate = null
+            it.socket?.cancel()
+        }
+    }
+    
+    /**
+     * Connection to another endpoint, and what it learnt before being promoted
+     */
+    private class Candidate(val url: String, val session: SessionState) {
+        @Volatile var socket: WebSocket? = null
+        @Volatile var useBinaryProtocol = false
+        @Volatile var supportsEnvelope = false
+        @Volatile var helloReceived = false
+        @Volatile var resumed = false
+        @Volatile var ack = 0
+        @Volatile var pingSentAt = 0L
     }
     
     /**
      * Interface for command listeners
      */
     interface CommandListener {
-        fun onCommandReceived(command: JSONObject)
+        /**
+         * Called on the socket reader thread with each command, decoded into its typed form
+         *
+         * @param trace times the command reached each stage, from its receipt up to now
+         */
+        fun onCommandReceived(command: Command, trace: CommandTrace)
+    }
+    
+    /**
+     * Interface for frame acknowledgement listeners
+     */
+    interface FrameAckListener {
+        fun onFrameAcknowledged(processingTimeMs: Long)
+        
+        /**
+         * Called with the largest face found by the server in a frame, in the coordinates of
+         * that frame
+         *
+         * @param frameSequence envelope sequence number of the frame, 0 if the server did not say
+         */
+        fun onFaceDetected(frameSequence: Int, x: Int, y: Int, width: Int, height: Int) {}
+        
+        /**
+         * Called when the server acknowledges a frame sent in an envelope, with the time
+         * elapsed since its capture and since it was sent
+         */
+        fun onFrameLatency(sequence: Int, endToEndMs: Long, sendToAckMs: Long) {}
     }
     
     /**
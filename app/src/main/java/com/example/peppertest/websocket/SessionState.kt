@@ -0,0 +1,147 @@
+package com.example.peppertest.websocket
+
+import java.util.ArrayDeque
+import java.util.UUID
+
+/**
+ * State of a resumable session with the server, surviving reconnections
+ *
+ * Outbound control messages are numbered and kept until the server acknowledges them
+ * cumulatively, at most [maxReplay] of them, the oldest being dropped first; once one the
+ * server has not received is dropped, the session can no longer be resumed without loss.
+ * Inbound messages carry the server's numbers; duplicates replayed after a resume are
+ * filtered out, gaps left by the server's own replay limit are counted, and the last number
+ * received is acknowledged back.
+ */
+class SessionState(private val maxReplay: Int = DEFAULT_MAX_REPLAY) {
+    companion object {
+        const val DEFAULT_MAX_REPLAY = 256
+        private const val ACK_EVERY = 8
+    }
+
+    /**
+     * Identifier presented to the server on each connection to resume the session
+     */
+    val sessionId: String = UUID.randomUUID().toString()
+
+    private val replay = ArrayDeque<Pending>()
+    private var nextSequence = 1
+    private var lastReceived = 0
+    private var receivedSinceAck = 0
+    private var droppedCount = 0L
+    private var lastDropped = 0
+    private var missedCount = 0L
+
+    /**
+     * Whether the server resumes sessions, learnt from its reply to our hello
+     */
+    @Volatile
+    var isResumable = false
+
+    /**
+     * Number of the last message received from the server, acknowledged back to it
+     */
+    val lastReceivedSequence: Int
+        @Synchronized get() = lastReceived
+
+    /**
+     * Number of sent messages not acknowledged yet
+     */
+    val unacknowledgedCount: Int
+        @Synchronized get() = replay.size
+
+    /**
+     * Number of unacknowledged messages dropped because the replay buffer was full
+     */
+    val droppedMessages: Long
+        @Synchronized get() = droppedCount
+
+    /**
+     * Number of inbound messages skipped over, never received nor replayed by the server
+     */
+    val missedMessages: Long
+        @Synchronized get() = missedCount
+
+    /**
+     * Number the next outbound message, build it with [build] and keep it for replay
+     */
+    @Synchronized
+    fun <T : Any> record(build: (Int) -> T): T {
+        val sequence = nextSequence++
+        val payload = build(sequence)
+        replay.addLast(Pending(sequence, payload))
+        while (replay.size > maxReplay) {
+            lastDropped = replay.removeFirst().sequence
+            droppedCount++
+        }
+        return payload
+    }
+
+    /**
+     * Drop the messages the server acknowledged, up to and including [sequence]
+     */
+    @Synchronized
+    fun onAcknowledged(sequence: Int) {
+        while (replay.isNotEmpty() && replay.peekFirst().sequence <= sequence) {
+            replay.removeFirst()
+        }
+    }
+
+    /**
+     * Whether every message after [ack] can still be replayed, none having been dropped
+     */
+    @Synchronized
+    fun canReplayAfter(ack: Int): Boolean {
+        return ack >= lastDropped
+    }
+
+    /**
+     * Messages still unacknowledged, in order, to send again after a resume
+     */
+    @Synchronized
+    fun unacknowledged(): List<Any> {
+        return replay.map { it.payload }
+    }
+
+    /**
+     * Register a numbered message from the server
+     *
+     * A number past the next expected one means the messages in between are lost; the
+     * message is accepted all the same and the loss counted in [missedMessages].
+     *
+     * @return false if it was already received, in which case it must be ignored
+     */
+    @Synchronized
+    fun accept(sequence: Int): Boolean {
+        if (sequence <= lastReceived) {
+            return false
+        }
+        missedCount += sequence - lastReceived - 1
+        lastReceived = sequence
+        receivedSinceAck++
+        return true
+    }
+
+    /**
+     * Whether enough messages were received to acknowledge them now; resets the count
+     */
+    @Synchronized
+    fun takeAckDue(force: Boolean = false): Boolean {
+        if (receivedSinceAck >= ACK_EVERY || (force && receivedSinceAck > 0)) {
+            receivedSinceAck = 0
+            return true
+        }
+        return false
+    }
+
+    /**
+     * Forget the inbound numbering, when the server started a new session
+     */
+    @Synchronized
+    fun resetInbound() {
+        lastReceived = 0
+        receivedSinceAck = 0
+    }
+
+    private class Pending(val sequence: Int, val payload: Any)
+}
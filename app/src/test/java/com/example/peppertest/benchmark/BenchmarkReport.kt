@@ -0,0 +1,69 @@
+package com.example.peppertest.benchmark
+
+import java.io.File
+import java.util.Locale
+import java.util.concurrent.TimeUnit
+
+/**
+ * Results of one benchmark, printed and written to build/reports/benchmark/[name].txt
+ */
+class BenchmarkReport(private val name: String) {
+    companion object {
+        private val REPORT_DIR = File("build/reports/benchmark")
+
+        /**
+         * Nearest-rank percentile of unsorted samples
+         */
+        fun percentile(samples: LongArray, percent: Double): Long {
+            if (samples.isEmpty()) {
+                return 0L
+            }
+            val sorted = samples.sortedArray()
+            val rank = Math.ceil(percent / 100.0 * sorted.size).toInt()
+            return sorted[(rank - 1).coerceIn(0, sorted.size - 1)]
+        }
+    }
+
+    private val lines = mutableListOf(
+        "# $name",
+        "java ${System.getProperty("java.version")}, ${Runtime.getRuntime().availableProcessors()} cpus, " +
+            "${System.getProperty("os.name")} ${System.getProperty("os.arch")}"
+    )
+
+    /**
+     * Record a count over an elapsed time as a rate per second
+     */
+    fun rate(label: String, count: Long, elapsedNanos: Long, unit: String) {
+        val seconds = elapsedNanos / 1e9
+        add("%s: %.1f %s/s (%d in %d ms)", label, count / seconds, unit, count, TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+    }
+
+    /**
+     * Record the distribution of durations, in nanoseconds
+     */
+    fun latency(label: String, samplesNanos: LongArray) {
+        add(
+            "%s: p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms (%d samples)", label,
+            percentile(samplesNanos, 50.0) / 1e6, percentile(samplesNanos, 95.0) / 1e6,
+            percentile(samplesNanos, 99.0) / 1e6, (samplesNanos.max() ?: 0L) / 1e6, samplesNanos.size
+        )
+    }
+
+    fun value(label: String, value: Any) {
+        add("%s: %s", label, value)
+    }
+
+    /**
+     * Print the results and write them to the report directory
+     */
+    fun write() {
+        val text = lines.joinToString("\n", postfix = "\n")
+        println(text)
+        REPORT_DIR.mkdirs()
+        File(REPORT_DIR, "$name.txt").writeText(text)
+    }
+
+    private fun add(format: String, vararg args: Any) {
+        lines.add(String.format(Locale.US, format, *args))
+    }
+}
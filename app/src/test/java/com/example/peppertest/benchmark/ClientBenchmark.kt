@@ -0,0 +1,301 @@
+package com.example.peppertest.benchmark
+
+import com.example.peppertest.command.Command
+import com.example.peppertest.command.CommandRouter
+import com.example.peppertest.command.CommandTrace
+import com.example.peppertest.websocket.PepperWebSocketClient
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+import org.junit.Assert.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Throughput and latency of [PepperWebSocketClient] against a [FakePepperServer]
+ *
+ * Only runs through `./gradlew :app:benchmark`. Commands are timed from the moment the
+ * server sends them until their handler starts, routed by a [CommandRouter] to the same
+ * executors as in the app. What the handlers do, the dispatcher and the robot actions, is
+ * not measured: it needs a robot. Robolectric provides the framework classes the client
+ * relies on, such as the JSON reader.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], manifest = Config.NONE)
+class ClientBenchmark {
+    companion object {
+        private const val CONNECT_TIMEOUT_MS = 10_000L
+        private const val RUN_TIMEOUT_MS = 60_000L
+        // Passes over the recording, the first ones only warm up the JIT
+        private const val WARMUP_ROUNDS = 200
+        private const val ROUNDS = 2000
+        private const val PACED_COMMANDS = 2000
+        private const val PACED_RATE_PER_SECOND = 200
+        private const val STATUS_MESSAGES = 20_000
+        private const val FRAME_BYTES = 40 * 1024
+        private const val FRAME_DURATION_MS = 5000L
+        private const val FRAME_INTERVAL_MS = 1L
+        private const val RECONNECTS = 10
+    }
+
+    @Before
+    fun onlyWhenRequested() {
+        assumeTrue("Run with ./gradlew :app:benchmark", java.lang.Boolean.getBoolean("pepper.benchmark"))
+    }
+
+    @Test
+    fun jsonCommandStream() {
+        commandStream("commands-json", binary = false)
+    }
+
+    @Test
+    fun binaryCommandStream() {
+        commandStream("commands-binary", binary = true)
+    }
+
+    @Test
+    fun commandStatusUpload() {
+        FakePepperServer().use { server ->
+            val harness = Harness(server, binary = false)
+            harness.connect(server)
+
+            val start = System.nanoTime()
+            repeat(STATUS_MESSAGES) {
+                harness.client.sendCommandStatus("say", "completed", "Hello, nice to meet you!")
+            }
+            awaitUntil("statuses") { server.statusesReceived.get() >= STATUS_MESSAGES }
+            val elapsed = System.nanoTime() - start
+
+            BenchmarkReport("status-upload").apply {
+                rate("command_status sent", STATUS_MESSAGES.toLong(), elapsed, "messages")
+                value("held for replay at the end", harness.client.session.unacknowledgedCount)
+                write()
+            }
+            harness.release()
+        }
+    }
+
+    @Test
+    fun frameUpload() {
+        FakePepperServer().use { server ->
+            val harness = Harness(server, binary = false)
+            val ackLatencies = ConcurrentLinkedQueue<Long>()
+            harness.client.frameAckListener = object : PepperWebSocketClient.FrameAckListener {
+                override fun onFrameAcknowledged(processingTimeMs: Long) {}
+
+                override fun onFrameLatency(sequence: Int, endToEndMs: Long, sendToAckMs: Long) {
+                    ackLatencies.add(TimeUnit.MILLISECONDS.toNanos(sendToAckMs))
+                }
+            }
+            harness.connect(server)
+
+            // A frame as the camera gives them, only the JPEG start marker matters to the client
+            val frame = ByteArray(FRAME_BYTES).apply {
+                this[0] = 0xff.toByte()
+                this[1] = 0xd8.toByte()
+            }
+            var offered = 0L
+            val start = System.nanoTime()
+            val end = start + TimeUnit.MILLISECONDS.toNanos(FRAME_DURATION_MS)
+            while (System.nanoTime() < end) {
+                if (harness.client.sendCameraFrame(frame)) {
+                    offered++
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FRAME_INTERVAL_MS))
+            }
+            val elapsed = System.nanoTime() - start
+            val received = server.framesReceived.get()
+
+            BenchmarkReport("frame-upload").apply {
+                value("frame size", "$FRAME_BYTES bytes")
+                rate("frames offered", offered, elapsed, "frames")
+                rate("frames received", received, elapsed, "frames")
+                rate("bytes received", server.frameBytesReceived.get(), elapsed, "bytes")
+                value("frames dropped by the outbound queue", harness.client.outboundQueue.droppedFrames)
+                latency("send to frame_ack", ackLatencies.toLongArray())
+                write()
+            }
+            harness.release()
+        }
+    }
+
+    @Test
+    fun reconnectRecovery() {
+        FakePepperServer().use { server ->
+            val harness = Harness(server, binary = false)
+            harness.connect(server)
+            val recording = server.prepare(FakePepperServer.loadRecording("commands.jsonl"))
+
+            val toConnected = LongArray(RECONNECTS)
+            val toCommand = LongArray(RECONNECTS)
+            for (i in 0 until RECONNECTS) {
+                val dispatched = harness.dispatched.get()
+                val start = System.nanoTime()
+                server.dropConnection()
+                harness.awaitConnected()
+                toConnected[i] = System.nanoTime() - start
+                // Commands flow again once the server sees the new connection
+                assertTrue("Client did not reconnect", server.awaitConnection(CONNECT_TIMEOUT_MS))
+                server.send(recording[0])
+                awaitUntil("command after reconnecting") { harness.dispatched.get() > dispatched }
+                toCommand[i] = System.nanoTime() - start
+            }
+
+            BenchmarkReport("reconnect").apply {
+                value("connection drops", RECONNECTS)
+                latency("drop to connected", toConnected)
+                latency("drop to first command", toCommand)
+                write()
+            }
+            harness.release()
+        }
+    }
+
+    /**
+     * Replay the recorded stream back to back for throughput, then paced for latency
+     */
+    private fun commandStream(name: String, binary: Boolean) {
+        FakePepperServer(binary).use { server ->
+            val recording = server.prepare(FakePepperServer.loadRecording("commands.jsonl"))
+            val warmup = WARMUP_ROUNDS * recording.size
+            val burst = ROUNDS * recording.size
+            val harness = Harness(server, binary, capacity = warmup + burst + PACED_COMMANDS)
+            harness.connect(server)
+            assertEquals(binary, harness.client.isBinaryProtocolActive)
+
+            replay(server, harness, recording, warmup, intervalNanos = 0L)
+            val start = System.nanoTime()
+            replay(server, harness, recording, burst, intervalNanos = 0L)
+            // Handlers on different executors may finish out of order
+            val elapsed = harness.dispatchedAt.copyOfRange(warmup, warmup + burst).max()!! - start
+
+            val pacedFrom = warmup + burst
+            replay(server, harness, recording, PACED_COMMANDS, TimeUnit.SECONDS.toNanos(1) / PACED_RATE_PER_SECOND)
+
+            BenchmarkReport(name).apply {
+                value("recording", "commands.jsonl, ${recording.size} messages")
+                rate("back to back", burst.toLong(), elapsed, "messages")
+                latency("receive to dispatch, back to back", harness.latencies(warmup, burst))
+                latency("receive to dispatch at $PACED_RATE_PER_SECOND/s", harness.latencies(pacedFrom, PACED_COMMANDS))
+                write()
+            }
+            harness.release()
+        }
+    }
+
+    /**
+     * Send [count] messages cycling through the recording, and wait until all are dispatched
+     */
+    private fun replay(server: FakePepperServer, harness: Harness, recording: List<Any>, count: Int, intervalNanos: Long) {
+        val first = harness.sent
+        var next = System.nanoTime()
+        for (i in 0 until count) {
+            if (intervalNanos > 0) {
+                LockSupport.parkNanos(next - System.nanoTime())
+                next += intervalNanos
+            }
+            harness.sentAt[first + i] = System.nanoTime()
+            assertTrue("Server could not send", server.send(recording[i % recording.size]))
+        }
+        harness.sent = first + count
+        awaitUntil("commands") { harness.dispatched.get() >= first + count }
+    }
+
+    private fun awaitUntil(what: String, condition: () -> Boolean) {
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_TIMEOUT_MS)
+        while (!condition()) {
+            assertTrue("Timed out waiting for $what", System.nanoTime() < deadline)
+            Thread.sleep(1)
+        }
+    }
+
+    /**
+     * Client under test, recording when each command reaches its handler
+     */
+    private class Harness(server: FakePepperServer, binary: Boolean, capacity: Int = 0) :
+        PepperWebSocketClient.CommandListener, PepperWebSocketClient.ConnectionStateListener {
+        val sentAt = LongArray(capacity)
+        val dispatchedAt = LongArray(capacity)
+        val dispatched = AtomicInteger(0)
+        var sent = 0
+        private val connections = Semaphore(0)
+        private val router = CommandRouter()
+        // Order each command was received in, as handlers on different executors may overtake each other
+        private val received = AtomicInteger(0)
+        private val receiptIndex = ConcurrentHashMap<CommandTrace, Int>()
+        val client = PepperWebSocketClient(server.url, this, this).apply {
+            isBinaryProtocolEnabled = binary
+        }
+
+        init {
+            // Same executors as the app's handlers
+            val speech = router.executor("speech")
+            val motion = router.executor("motion")
+            val control = router.executor("control")
+            router.register(Command.Say::class.java, speech) { _, trace -> onHandled(trace) }
+            router.register(Command.Animate::class.java, motion) { _, trace -> onHandled(trace) }
+            router.register(Command.GoTo::class.java, motion) { _, trace -> onHandled(trace) }
+            router.register(Command.None::class.java, motion) { _, trace -> onHandled(trace) }
+            router.register(Command.Config::class.java, control) { _, trace -> onHandled(trace) }
+            router.register(Command.ReportLatency::class.java, control) { _, trace -> onHandled(trace) }
+        }
+
+        override fun onCommandReceived(command: Command, trace: CommandTrace) {
+            receiptIndex[trace] = received.getAndIncrement()
+            router.route(command, trace)
+        }
+
+        private fun onHandled(trace: CommandTrace) {
+            val now = System.nanoTime()
+            val index = receiptIndex.remove(trace) ?: return
+            if (index < dispatchedAt.size) {
+                dispatchedAt[index] = now
+            }
+            // Published after the time, for the thread waiting on the count
+            dispatched.incrementAndGet()
+        }
+
+        fun release() {
+            client.release()
+            router.release()
+        }
+
+        override fun onConnected() {
+            connections.release()
+        }
+
+        override fun onDisconnected() {}
+
+        override fun onReconnectFailed() {}
+
+        /**
+         * Connect and wait until the session is up and the server answered a ping
+         */
+        fun connect(server: FakePepperServer) {
+            client.connect()
+            awaitConnected()
+            assertTrue("Server saw no connection", server.awaitConnection(CONNECT_TIMEOUT_MS))
+            val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS)
+            while (client.clockSync.samples == 0) {
+                assertTrue("No pong from server", System.nanoTime() < deadline)
+                Thread.sleep(1)
+            }
+        }
+
+        fun awaitConnected() {
+            assertTrue("Client did not connect", connections.tryAcquire(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        }
+
+        fun latencies(from: Int, count: Int): LongArray {
+            return LongArray(count) { dispatchedAt[from + it] - sentAt[from + it] }
+        }
+    }
+}
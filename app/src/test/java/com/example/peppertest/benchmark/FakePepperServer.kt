@@ -0,0 +1,202 @@
+package com.example.peppertest.benchmark
+
+import com.example.peppertest.command.BinaryCommandCodec
+import com.example.peppertest.command.JsonCommandDecoder
+import com.example.peppertest.websocket.FrameEnvelope
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.ByteString
+import org.json.JSONObject
+import java.io.Closeable
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In-process stand-in for the Pepper endpoint of the vision server
+ *
+ * Answers hellos, pings and camera frames the way pepper_vision/server.py does, and sends
+ * commands on demand. The binary command encoding is picked when [isBinary] and the client
+ * offers it. Every connection is accepted, so the client can come back after [dropConnection].
+ */
+class FakePepperServer(private val isBinary: Boolean = false) : Closeable {
+    companion object {
+        private const val NORMAL_CLOSURE_STATUS = 1000
+        private const val ACK_EVERY = 8
+        private const val CAPABILITIES = "{\"type\":\"capabilities\",\"frame_envelope\":${FrameEnvelope.VERSION}}"
+
+        /**
+         * Read a recorded command stream from the test resources, one JSON message per line
+         */
+        fun loadRecording(name: String): List<String> {
+            val stream = FakePepperServer::class.java.getResourceAsStream("/recordings/$name")
+                ?: throw IllegalArgumentException("No recording named $name")
+            return stream.bufferedReader().use { reader -> reader.readLines().filter { it.isNotBlank() } }
+        }
+    }
+
+    private val server = MockWebServer()
+    private val opened = LinkedBlockingQueue<WebSocket>()
+    private val decoder = JsonCommandDecoder()
+    @Volatile private var socket: WebSocket? = null
+    private val lastStatusSequence = AtomicInteger(0)
+
+    /**
+     * Camera frames received, bare or in an envelope
+     */
+    val framesReceived = AtomicLong(0)
+
+    /**
+     * Bytes of camera frames received
+     */
+    val frameBytesReceived = AtomicLong(0)
+
+    /**
+     * Command status messages received, in either encoding
+     */
+    val statusesReceived = AtomicLong(0)
+
+    private val listener = object : WebSocketListener() {
+        override fun onOpen(webSocket: WebSocket, response: Response) {
+            socket = webSocket
+            webSocket.send(CAPABILITIES)
+            opened.offer(webSocket)
+        }
+
+        override fun onMessage(webSocket: WebSocket, text: String) {
+            val receivedMs = System.currentTimeMillis()
+            val message = JSONObject(text)
+            when (message.optString("type")) {
+                "hello" -> webSocket.send(JSONObject().apply {
+                    // A new session on every connection, nothing to replay
+                    put("type", "hello")
+                    put("session", message.optString("session"))
+                    put("ack", 0)
+                    put("resumed", false)
+                }.toString())
+                "ping" -> {
+                    webSocket.send(JSONObject().apply {
+                        put("type", "pong")
+                        put("timestamp", message.optLong("timestamp"))
+                        put("server_receive", receivedMs)
+                        put("server_send", System.currentTimeMillis())
+                    }.toString())
+                    acknowledge(webSocket, force = true)
+                }
+                "command_status" -> onStatus(webSocket, message.optInt("session_seq"))
+            }
+        }
+
+        override fun onMessage(webSocket: WebSocket, bytes: ByteString) {
+            val data = bytes.asByteBuffer()
+            if (BinaryCommandCodec.isCommandMessage(data)) {
+                onStatus(webSocket, BinaryCommandCodec.sequenceOf(data))
+                return
+            }
+            framesReceived.incrementAndGet()
+            frameBytesReceived.addAndGet(bytes.size.toLong())
+            if (data.remaining() >= FrameEnvelope.HEADER_SIZE && data.getInt(0) == FrameEnvelope.MAGIC) {
+                // Echo the envelope times, as the server does, so the client can time the round trip
+                webSocket.send(JSONObject().apply {
+                    put("type", "frame_ack")
+                    put("processing_ms", 0)
+                    put("seq", data.getInt(8))
+                    put("capture_time", data.getLong(12))
+                    put("send_time", data.getLong(20))
+                }.toString())
+            }
+        }
+
+        override fun onClosing(webSocket: WebSocket, code: Int, reason: String) {
+            webSocket.close(NORMAL_CLOSURE_STATUS, null)
+        }
+    }
+
+    init {
+        server.dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                val response = MockResponse().withWebSocketUpgrade(listener)
+                val offered = request.getHeader("Sec-WebSocket-Protocol").orEmpty().split(',').map { it.trim() }
+                if (isBinary && BinaryCommandCodec.SUBPROTOCOL in offered) {
+                    response.setHeader("Sec-WebSocket-Protocol", BinaryCommandCodec.SUBPROTOCOL)
+                }
+                return response
+            }
+        }
+        server.start()
+    }
+
+    /**
+     * URL of the Pepper endpoint, for the client
+     */
+    val url: String
+        get() = server.url("/pepper").toString().replaceFirst("http", "ws")
+
+    /**
+     * Wait for the client to open a connection, the first one or the next after [dropConnection]
+     *
+     * @return false if it did not within [timeoutMs]
+     */
+    fun awaitConnection(timeoutMs: Long): Boolean {
+        return opened.poll(timeoutMs, TimeUnit.MILLISECONDS) != null
+    }
+
+    /**
+     * Encode recorded JSON messages the way this server sends them, ahead of sending
+     */
+    fun prepare(recording: List<String>): List<Any> {
+        if (!isBinary) {
+            return recording
+        }
+        return recording.map { line ->
+            val command = decoder.decode(line).toCommand()
+                ?: throw IllegalArgumentException("Not a command: $line")
+            BinaryCommandCodec.encode(command)
+        }
+    }
+
+    /**
+     * Send a message returned by [prepare] on the current connection
+     */
+    fun send(message: Any): Boolean {
+        val socket = socket ?: return false
+        return when (message) {
+            is ByteString -> socket.send(message)
+            else -> socket.send(message.toString())
+        }
+    }
+
+    /**
+     * Cut the current connection without a close handshake, as a network loss would
+     */
+    fun dropConnection() {
+        socket?.cancel()
+        socket = null
+    }
+
+    override fun close() {
+        dropConnection()
+        server.shutdown()
+    }
+
+    private fun onStatus(webSocket: WebSocket, sequence: Int) {
+        statusesReceived.incrementAndGet()
+        if (sequence != 0) {
+            lastStatusSequence.set(sequence)
+            acknowledge(webSocket, force = false)
+        }
+    }
+
+    private fun acknowledge(webSocket: WebSocket, force: Boolean) {
+        val sequence = lastStatusSequence.get()
+        if (sequence != 0 && (force || sequence % ACK_EVERY == 0)) {
+            webSocket.send("{\"type\":\"ack\",\"ack\":$sequence}")
+        }
+    }
+}
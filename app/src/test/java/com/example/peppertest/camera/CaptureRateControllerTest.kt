@@ -0,0 +1,48 @@
+package com.example.peppertest.camera
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class CaptureRateControllerTest {
+    @Test
+    fun startsAtMaxFps() {
+        val controller = CaptureRateController(minFps = 5.0, maxFps = 20.0)
+        assertEquals(50L, controller.captureIntervalMs)
+    }
+
+    @Test
+    fun neverCapturesFasterThanCaptureLatency() {
+        val controller = CaptureRateController(minFps = 1.0, maxFps = 30.0)
+        repeat(20) { controller.onCaptureCompleted(latencyMs = 100, sendBacklogBytes = 0) }
+        assertTrue(controller.captureIntervalMs >= 100L)
+    }
+
+    @Test
+    fun backsOffWhenBacklogGrows() {
+        val controller = CaptureRateController(minFps = 1.0, maxFps = 30.0)
+        val before = controller.captureIntervalMs
+        controller.onCaptureCompleted(latencyMs = 10, sendBacklogBytes = 1024L * 1024L)
+        assertTrue(controller.captureIntervalMs > before)
+    }
+
+    @Test
+    fun staysWithinBounds() {
+        val controller = CaptureRateController(minFps = 5.0, maxFps = 10.0)
+        repeat(50) { controller.onCaptureCompleted(latencyMs = 10, sendBacklogBytes = 1024L * 1024L) }
+        assertEquals(200L, controller.captureIntervalMs)
+        repeat(500) { controller.onCaptureCompleted(latencyMs = 10, sendBacklogBytes = 0) }
+        assertEquals(100L, controller.captureIntervalMs)
+    }
+
+    @Test
+    fun effectiveFpsFollowsFrameSpacing() {
+        val controller = CaptureRateController()
+        var now = 1000L
+        repeat(10) {
+            controller.onCaptureCompleted(latencyMs = 10, sendBacklogBytes = 0, nowMs = now)
+            now += 100
+        }
+        assertEquals(10.0, controller.effectiveFps, 0.01)
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.peppertest.command
+
+import com.example.peppertest.command.ActionScheduler.Lane
+import com.example.peppertest.command.ActionScheduler.Policy
+import org.junit.After
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ActionSchedulerTest {
+    private val scheduler = ActionScheduler()
+    private val done = Collections.synchronizedList(mutableListOf<String>())
+
+    @After
+    fun tearDown() {
+        scheduler.release()
+    }
+
+    @Test
+    fun runsLanesConcurrently() {
+        val gesture = TestAction("animate", CountDownLatch(1))
+        scheduler.submit(Lane.BODY, Policy.QUEUE, gesture)
+        assertTrue(gesture.started.await(5, TimeUnit.SECONDS))
+
+        val move = TestAction("goto")
+        scheduler.submit(Lane.BASE, Policy.QUEUE, move)
+        // The move does not wait for the gesture
+        assertTrue(move.finished.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf("goto"), done.toList())
+
+        gesture.release()
+        assertTrue(gesture.finished.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf("goto", "animate"), done.toList())
+    }
+
+    @Test
+    fun queuesInOrderAndReplacesWaiting() {
+        val first = TestAction("first", CountDownLatch(1))
+        scheduler.submit(Lane.BODY, Policy.QUEUE, first)
+        assertTrue(first.started.await(5, TimeUnit.SECONDS))
+        scheduler.submit(Lane.BODY, Policy.QUEUE, TestAction("second"))
+        scheduler.submit(Lane.BODY, Policy.QUEUE, TestAction("third"))
+        val latest = TestAction("latest")
+        scheduler.submit(Lane.BODY, Policy.REPLACE, latest)
+        assertEquals(1, scheduler.stats(Lane.BODY).waiting)
+
+        first.release()
+        assertTrue(latest.finished.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf("first", "latest"), done.toList())
+        val stats = scheduler.stats(Lane.BODY)
+        assertEquals(4L, stats.submitted)
+        assertEquals(2L, stats.replaced)
+        assertEquals(0L, stats.preempted)
+    }
+
+    @Test
+    fun reportsDroppedActions() {
+        val move = TestAction("move", CountDownLatch(1))
+        scheduler.submit(Lane.BASE, Policy.QUEUE, move)
+        assertTrue(move.started.await(5, TimeUnit.SECONDS))
+        val replacedMove = TestAction("replaced move")
+        scheduler.submit(Lane.BASE, Policy.QUEUE, replacedMove)
+        val waitingMove = TestAction("waiting move")
+        scheduler.submit(Lane.BASE, Policy.REPLACE, waitingMove)
+
+        assertEquals(ActionScheduler.DropReason.REPLACED, replacedMove.dropReason)
+        assertTrue(replacedMove.isCancelled)
+        assertNull(waitingMove.dropReason)
+
+        scheduler.cancel(Lane.BASE)
+        assertEquals(ActionScheduler.DropReason.CANCELLED, waitingMove.dropReason)
+        // The running action is cancelled, not dropped
+        assertTrue(move.isCancelled)
+        assertNull(move.dropReason)
+    }
+
+    @Test
+    fun preemptsRunningAction() {
+        val move = TestAction("move", CountDownLatch(1))
+        scheduler.submit(Lane.BASE, Policy.QUEUE, move)
+        assertTrue(move.started.await(5, TimeUnit.SECONDS))
+
+        val newMove = TestAction("new move")
+        scheduler.submit(Lane.BASE, Policy.PREEMPT, newMove)
+        assertTrue(newMove.finished.await(5, TimeUnit.SECONDS))
+        assertTrue(move.isCancelled)
+        assertEquals(listOf("new move"), done.toList())
+
+        val stats = awaitIdle(Lane.BASE)
+        assertEquals(1L, stats.preempted)
+        assertEquals(1L, stats.completed)
+        assertEquals(0L, stats.failed)
+    }
+
+    @Test
+    fun preemptsActionHeldBack() {
+        val held = object : ActionScheduler.Action("held") {
+            val started = CountDownLatch(1)
+            var slept: Boolean? = null
+
+            override fun run() {
+                started.countDown()
+                slept = sleepUnlessCancelled(5000)
+            }
+        }
+        scheduler.submit(Lane.BASE, Policy.QUEUE, held)
+        assertTrue(held.started.await(5, TimeUnit.SECONDS))
+
+        val newMove = TestAction("new move")
+        scheduler.submit(Lane.BASE, Policy.PREEMPT, newMove)
+        // Well before the held action would have woken up by itself
+        assertTrue(newMove.finished.await(1, TimeUnit.SECONDS))
+        assertEquals(false, held.slept)
+    }
+
+    private fun awaitIdle(lane: Lane): ActionScheduler.LaneStats {
+        val deadline = System.currentTimeMillis() + 5000
+        while (true) {
+            val stats = scheduler.stats(lane)
+            if (!stats.isBusy && stats.waiting == 0 || System.currentTimeMillis() > deadline) {
+                return stats
+            }
+            Thread.sleep(1)
+        }
+    }
+
+    /**
+     * Action blocking until released or cancelled when given a latch, recording its completion
+     */
+    private inner class TestAction(name: String, private val latch: CountDownLatch? = null) : ActionScheduler.Action(name) {
+        val started = CountDownLatch(1)
+        val finished = CountDownLatch(1)
+        @Volatile var dropReason: ActionScheduler.DropReason? = null
+
+        fun release() {
+            latch?.countDown()
+        }
+
+        override fun run() {
+            started.countDown()
+            latch?.await(5, TimeUnit.SECONDS)
+            if (!isCancelled) {
+                done.add(name)
+            }
+            finished.countDown()
+        }
+
+        override fun onCancel() {
+            latch?.countDown()
+        }
+
+        override fun onDropped(reason: ActionScheduler.DropReason) {
+            dropReason = reason
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.peppertest.command
+
+import okio.ByteString.Companion.decodeHex
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.nio.ByteBuffer
+
+class BinaryCommandCodecTest {
+    @Test
+    fun roundTripsCommands() {
+        val commands = listOf(
+            Command.Say("Hello there!", true),
+            Command.Say("Stop!", false, isUrgent = true),
+            Command.Animate("raiseHands"),
+            Command.GoTo(0.5, 0.0, -0.25),
+            Command.Animate("dance_b001", ActionScheduler.Policy.QUEUE),
+            Command.GoTo(0.5, 0.0, -0.25, ActionScheduler.Policy.REPLACE),
+            Command.Config("ws://10.0.0.1:5003/pepper"),
+            Command.Config("ws://10.0.0.1:5003/pepper", listOf("ws://10.0.0.1:5003/pepper", "ws://10.0.0.2:5003/pepper")),
+            Command.None
+        )
+        for (command in commands) {
+            val encoded = BinaryCommandCodec.encode(command).asByteBuffer()
+            assertEquals(command, BinaryCommandCodec.decode(encoded))
+        }
+    }
+
+    @Test
+    fun decodesServerSayWithFace() {
+        // As encoded by the server for {"action": "say", "text": "hé", "face": {1, 2, 3, 4}}
+        val message = "5043010101000100020003000400000368c3a9".decodeHex().asByteBuffer()
+        var face: List<Int>? = null
+
+        val command = BinaryCommandCodec.decode(message) { frame, x, y, width, height -> face = listOf(frame, x, y, width, height) }
+
+        assertEquals(Command.Say("hé", false), command)
+        // Not tied to a frame
+        assertEquals(listOf(0, 1, 2, 3, 4), face)
+    }
+
+    @Test
+    fun decodesFrameOfFace() {
+        // As above, found in frame 9
+        val message = "504301011100010002000300040000000900000368c3a9".decodeHex().asByteBuffer()
+        var face: List<Int>? = null
+
+        val command = BinaryCommandCodec.decode(message) { frame, x, y, width, height -> face = listOf(frame, x, y, width, height) }
+
+        assertEquals(Command.Say("hé", false), command)
+        assertEquals(listOf(9, 1, 2, 3, 4), face)
+    }
+
+    @Test
+    fun decodesSessionSequenceBeforeFace() {
+        // As above, numbered 42 in the session
+        val message = "50430101030000002a000100020003000400000368c3a9".decodeHex().asByteBuffer()
+        var face: List<Int>? = null
+
+        assertEquals(42, BinaryCommandCodec.sequenceOf(message))
+        assertEquals(Command.Say("hé", false), BinaryCommandCodec.decode(message) { _, x, y, width, height -> face = listOf(x, y, width, height) })
+        assertEquals(listOf(1, 2, 3, 4), face)
+        assertEquals(0, BinaryCommandCodec.sequenceOf(BinaryCommandCodec.encode(Command.None).asByteBuffer()))
+        assertEquals(7, BinaryCommandCodec.sequenceOf(BinaryCommandCodec.encodeStatus("say", "started", "", 0L, 7).asByteBuffer()))
+    }
+
+    @Test
+    fun decodesPolicyAfterFace() {
+        // As encoded by the server for {"action": "goto", "x": 1, "y": 0, "theta": 0, "policy": "queue", "face": {1, 2, 3, 4}}
+        val message = "50430103090001000200030004" + "01" + "3f800000" + "00000000" + "00000000"
+        assertEquals(Command.GoTo(1.0, 0.0, 0.0, ActionScheduler.Policy.QUEUE), BinaryCommandCodec.decode(message.decodeHex().asByteBuffer()))
+
+        // A policy this robot does not know leaves the dispatcher's default
+        val unknown = "5043010208" + "09" + "00026869"
+        assertEquals(Command.Animate("hi"), BinaryCommandCodec.decode(unknown.decodeHex().asByteBuffer()))
+    }
+
+    @Test
+    fun encodesStatusWithTrace() {
+        val trace = CommandTrace("abc", 1000L, 0L).apply {
+            mark(CommandTrace.Stage.DECODED, 80_000L)
+            mark(CommandTrace.Stage.QUEUED, 300_000L)
+            mark(CommandTrace.Stage.RUN_STARTED, 1_500_000L)
+            mark(CommandTrace.Stage.RUN_ENDED, 900_000_000L)
+        }
+
+        val status = BinaryCommandCodec.encodeStatus("say", "completed", "", 5L, 7, queueDepth = 2, queueWaitMs = 40L, trace = trace)
+
+        // Stages not reached, the build here, are encoded as -1
+        assertEquals(
+            "504301810600000007" + "0003736179" + "0009636f6d706c65746564" + "0000" + "0000000000000005" +
+                "0003616263" + "00000000000003e8" + "00000050" + "0000012c" + "ffffffff" + "ffffffff" + "000005dc" + "000dbba0" +
+                "000200000028",
+            status.hex()
+        )
+    }
+
+    @Test
+    fun doesNotMistakeFramesForCommands() {
+        val jpeg = ByteBuffer.wrap(byteArrayOf(0xff.toByte(), 0xd8.toByte(), 0xff.toByte(), 0xe0.toByte(), 0, 0x10))
+        val envelope = ByteBuffer.wrap("PFRM\u0001\u0000".toByteArray())
+        assertFalse(BinaryCommandCodec.isCommandMessage(jpeg))
+        assertFalse(BinaryCommandCodec.isCommandMessage(envelope))
+        assertNull(BinaryCommandCodec.decode(jpeg))
+    }
+}
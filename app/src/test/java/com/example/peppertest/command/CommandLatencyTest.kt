@@ -0,0 +1,81 @@
+package com.example.peppertest.command
+
+import com.example.peppertest.command.CommandLatency.Span
+import com.example.peppertest.command.CommandTrace.Stage
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.util.concurrent.TimeUnit
+
+class CommandLatencyTest {
+    @Test
+    fun keepsFirstMarkOfEachStage() {
+        val trace = CommandTrace("7", 1000L, 0L)
+        trace.mark(Stage.DECODED, micros(80))
+        trace.mark(Stage.BUILD_STARTED, micros(500))
+        // Built again after the first build was dropped
+        trace.mark(Stage.BUILD_STARTED, micros(900))
+
+        assertEquals(80L, trace.elapsedMicros(Stage.DECODED))
+        assertEquals(500L, trace.elapsedMicros(Stage.BUILD_STARTED))
+        assertEquals(-1L, trace.elapsedMicros(Stage.BUILT))
+        assertFalse(trace.hasReached(Stage.RUN_ENDED))
+        assertEquals(-1L, trace.spanMicros(Stage.BUILD_STARTED, Stage.BUILT))
+    }
+
+    @Test
+    fun measuresSpansBetweenStages() {
+        val trace = traceOf(decoded = 100, queued = 200, runStarted = 5_000, runEnded = 905_000)
+
+        assertEquals(100L, trace.spanMicros(Span.DECODE.from, Span.DECODE.to))
+        assertEquals(4_800L, trace.spanMicros(Span.WAIT.from, Span.WAIT.to))
+        assertEquals(5_000L, trace.spanMicros(Span.TO_START.from, Span.TO_START.to))
+        assertEquals(900_000L, trace.spanMicros(Span.RUN.from, Span.RUN.to))
+    }
+
+    @Test
+    fun computesPercentilesPerAction() {
+        val latency = CommandLatency()
+        for (ms in 1..100) {
+            latency.record("say", traceOf(decoded = 10, queued = 20, runStarted = ms * 1000L, runEnded = ms * 2000L))
+        }
+        latency.record("goto", traceOf(decoded = 10, queued = 20, runStarted = 3000, runEnded = 9000))
+
+        val toStart = latency.percentiles("say", Span.TO_START)!!
+        assertEquals(100, toStart.count)
+        assertEquals(50.0, toStart.p50Ms, 0.0)
+        assertEquals(95.0, toStart.p95Ms, 0.0)
+        assertEquals(99.0, toStart.p99Ms, 0.0)
+        assertEquals(3.0, latency.percentiles("goto", Span.TO_START)!!.p99Ms, 0.0)
+        // Never built, so no build span
+        assertNull(latency.percentiles("say", Span.BUILD))
+        assertNull(latency.percentiles("animate", Span.TOTAL))
+        assertEquals(setOf("say", "goto"), latency.snapshot().keys)
+    }
+
+    @Test
+    fun keepsOnlyTheLatestWindow() {
+        val latency = CommandLatency(window = 10)
+        for (ms in 1..30) {
+            latency.record("animate", traceOf(decoded = 10, queued = 20, runStarted = ms * 1000L, runEnded = ms * 1000L + 1))
+        }
+
+        val toStart = latency.percentiles("animate", Span.TO_START)!!
+        assertEquals(10, toStart.count)
+        assertEquals(25.0, toStart.p50Ms, 0.0)
+        assertEquals(30.0, toStart.p99Ms, 0.0)
+    }
+
+    private fun traceOf(decoded: Long, queued: Long, runStarted: Long, runEnded: Long): CommandTrace {
+        return CommandTrace("1", 1000L, 0L).apply {
+            mark(Stage.DECODED, micros(decoded))
+            mark(Stage.QUEUED, micros(queued))
+            mark(Stage.RUN_STARTED, micros(runStarted))
+            mark(Stage.RUN_ENDED, micros(runEnded))
+        }
+    }
+
+    private fun micros(value: Long): Long {
+        return TimeUnit.MICROSECONDS.toNanos(value)
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.peppertest.command
+
+import org.junit.After
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+class CommandRouterTest {
+    private val router = CommandRouter()
+    private val direct = Executor { it.run() }
+    private val trace = CommandTrace("1")
+
+    @After
+    fun tearDown() {
+        router.release()
+    }
+
+    @Test
+    fun routesByCommandClass() {
+        val handled = mutableListOf<Command>()
+        router.register(Command.Say::class.java, direct) { command, _ -> handled.add(command) }
+        router.register(Command.GoTo::class.java, direct) { command, _ -> handled.add(command) }
+        router.register(Command.None::class.java, direct) { command, _ -> handled.add(command) }
+
+        assertTrue(router.route(Command.Say("Hello", false), trace))
+        assertTrue(router.route(Command.None, trace))
+        assertFalse(router.route(Command.Animate("dance_b001"), trace))
+        assertTrue(router.route(Command.GoTo(0.5, 0.0, 0.0), trace))
+
+        assertEquals(listOf(Command.Say("Hello", false), Command.None, Command.GoTo(0.5, 0.0, 0.0)), handled)
+        assertEquals(1L, router.unrouted)
+    }
+
+    @Test
+    fun runsHandlersOnTheirExecutor() {
+        val speech = CountDownLatch(1)
+        val threads = Collections.synchronizedList(mutableListOf<String>())
+        val done = CountDownLatch(2)
+        router.register(Command.Say::class.java, router.executor("speech")) { _, _ ->
+            speech.await(5, TimeUnit.SECONDS)
+            threads.add(Thread.currentThread().name)
+            done.countDown()
+        }
+        router.register(Command.GoTo::class.java, router.executor("motion")) { _, _ ->
+            threads.add(Thread.currentThread().name)
+            // Not held up by the utterance still being handled
+            speech.countDown()
+            done.countDown()
+        }
+
+        // Both return at once, though the speech handler blocks
+        assertTrue(router.route(Command.Say("Hello", false), trace))
+        assertTrue(router.route(Command.GoTo(0.5, 0.0, 0.0), trace))
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+
+        assertEquals(listOf("CommandRouter-motion", "CommandRouter-speech"), threads.toList())
+        assertFalse(Thread.currentThread().name in threads)
+    }
+
+    @Test
+    fun keepsOrderOnAnExecutor() {
+        val texts = Collections.synchronizedList(mutableListOf<String>())
+        val done = CountDownLatch(100)
+        router.register(Command.Say::class.java, router.executor("speech")) { command, _ ->
+            texts.add(command.text)
+            done.countDown()
+        }
+
+        repeat(100) { router.route(Command.Say("$it", false), trace) }
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertEquals(List(100) { "$it" }, texts.toList())
+    }
+
+    @Test
+    fun countsFailuresAndDropsAfterRelease() {
+        router.register(Command.Animate::class.java, direct) { _, _ -> throw IllegalStateException("no animation") }
+        router.register(Command.Say::class.java, router.executor("speech")) { _, _ -> }
+
+        assertTrue(router.route(Command.Animate("dance_b001"), trace))
+        assertEquals(1L, router.failed)
+
+        router.release()
+        assertFalse(router.route(Command.Say("Hello", false), trace))
+        assertEquals(1L, router.unrouted)
+    }
+}
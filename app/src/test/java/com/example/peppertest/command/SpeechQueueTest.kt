@@ -0,0 +1,64 @@
+package com.example.peppertest.command
+
+import com.example.peppertest.command.SpeechQueue.Utterance
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class SpeechQueueTest {
+    @Test
+    fun keepsOrderAndDropsOldestWhenFull() {
+        val queue = SpeechQueue(capacity = 2)
+        val dropped = mutableListOf<String>()
+        listOf("one", "two", "three").forEach { queue.offer(utterance(it)) { u -> dropped.add(u.text) } }
+
+        assertEquals(listOf("one"), dropped)
+        assertEquals(1L, queue.dropped)
+        assertEquals("two", queue.poll()?.text)
+        assertEquals("three", queue.poll()?.text)
+        assertNull(queue.poll())
+    }
+
+    @Test
+    fun latestWinsDropsWaitingUtterances() {
+        val queue = SpeechQueue().apply { policy = SpeechQueue.Policy.LATEST_WINS }
+        listOf("one", "two", "three").forEach { queue.offer(utterance(it)) }
+
+        assertEquals(1, queue.size)
+        assertEquals(2L, queue.dropped)
+        assertEquals("three", queue.peek()?.text)
+    }
+
+    @Test
+    fun mergesConsecutiveFragments() {
+        val queue = SpeechQueue().apply { policy = SpeechQueue.Policy.MERGE }
+        queue.offer(utterance("Hello,", queuedAtMs = 10L))
+        queue.offer(utterance("nice to"))
+        queue.offer(utterance("meet you."))
+        queue.offer(utterance("Look!", withAnimation = true))
+
+        val merged = queue.poll()!!
+        assertEquals("Hello, nice to meet you.", merged.text)
+        assertEquals(3, merged.fragments)
+        // Waiting since the first fragment
+        assertEquals(10L, merged.queuedAtMs)
+        assertEquals("Look!", queue.poll()?.text)
+    }
+
+    @Test
+    fun urgentUtterancesGoFirstAndInterrupt() {
+        val queue = SpeechQueue()
+        assertFalse(queue.offer(utterance("one")))
+        assertTrue(queue.offer(utterance("stop", isUrgent = true)))
+        assertTrue(queue.offer(utterance("wait", isUrgent = true)))
+
+        assertEquals(listOf("stop", "wait", "one"), List(3) { queue.poll()?.text })
+
+        queue.interruptOnUrgent = false
+        assertFalse(queue.offer(utterance("stop", isUrgent = true)))
+    }
+
+    private fun utterance(text: String, withAnimation: Boolean = false, isUrgent: Boolean = false, queuedAtMs: Long = 0L): Utterance {
+        return Utterance(text, withAnimation, isUrgent, queuedAtMs)
+    }
+}
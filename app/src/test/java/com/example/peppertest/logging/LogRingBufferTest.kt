@@ -0,0 +1,70 @@
+package com.example.peppertest.logging
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+class LogRingBufferTest {
+    @Test
+    fun returnsRecordsInOrderAndRejectsWhenFull() {
+        val buffer = LogRingBuffer(4)
+        for (i in 1..4) {
+            assertTrue(buffer.offer(3, "tag", { "message $i" }, null, i.toLong()))
+        }
+        assertFalse(buffer.offer(3, "tag", { "overflow" }, null, 5L))
+
+        val messages = mutableListOf<String>()
+        while (buffer.poll { _, _, message, _, _ -> messages.add(message()) }) {
+            // Drain
+        }
+        assertEquals((1..4).map { "message $it" }, messages)
+        assertTrue(buffer.offer(3, "tag", { "again" }, null, 6L))
+    }
+
+    @Test
+    fun keepsEveryRecordOfConcurrentWriters() {
+        val buffer = LogRingBuffer(1024)
+        val writers = 4
+        val perWriter = 10_000
+        val start = CountDownLatch(1)
+        var accepted = 0
+        val threads = (0 until writers).map { writer ->
+            thread {
+                start.await()
+                repeat(perWriter) {
+                    while (!buffer.offer(3, "writer$writer", { "$it" }, null, 0L)) {
+                        Thread.yield()
+                    }
+                }
+            }
+        }
+        start.countDown()
+
+        val lastByWriter = IntArray(writers) { -1 }
+        while (accepted < writers * perWriter) {
+            buffer.poll { _, tag, message, _, _ ->
+                val writer = tag.removePrefix("writer").toInt()
+                val value = message().toInt()
+                // Each writer's records come out in the order it wrote them
+                assertEquals(lastByWriter[writer] + 1, value)
+                lastByWriter[writer] = value
+                accepted++
+            }
+        }
+        threads.forEach { it.join() }
+        assertFalse(buffer.poll { _, _, _, _, _ -> })
+    }
+
+    @Test
+    fun samplesAndRateLimits() {
+        val sampled = LogPolicy(sampleEvery = 4)
+        assertEquals(25, (0 until 100).count { sampled.admit(0L) })
+        assertEquals(75L, sampled.suppressed)
+
+        val limited = LogPolicy(maxPerSecond = 10)
+        assertEquals(10, (0 until 50).count { limited.admit(1_000L) })
+        assertEquals(10, (0 until 50).count { limited.admit(2_500L) })
+    }
+}
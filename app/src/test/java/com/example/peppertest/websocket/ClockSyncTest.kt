@@ -0,0 +1,44 @@
+package com.example.peppertest.websocket
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class ClockSyncTest {
+    @Test
+    fun measuresRttAndOffsetOfSymmetricExchange() {
+        val clockSync = ClockSync()
+        // Server clock 500 ms ahead, 20 ms each way, 5 ms on the server
+        clockSync.onExchange(pingSentMs = 1000, serverReceivedMs = 1520, serverSentMs = 1525, pongReceivedMs = 1045)
+
+        assertEquals(40.0, clockSync.rttMs, 0.01)
+        assertEquals(500.0, clockSync.offsetMs, 0.01)
+        assertEquals(1500L, clockSync.toServerTime(1000))
+        assertEquals(1000L, clockSync.toLocalTime(1500))
+    }
+
+    @Test
+    fun prefersLeastDelayedExchangeForOffset() {
+        val clockSync = ClockSync()
+        var now = 0L
+        repeat(20) {
+            // Fast and symmetric exchanges, offset 100 ms
+            clockSync.onExchange(now, now + 110, now + 110, now + 20)
+            // Slow exchanges queued on the way back only, which skew their offset
+            clockSync.onExchange(now + 1000, now + 1110, now + 1110, now + 1400)
+            now += 2000
+        }
+
+        assertEquals(100.0, clockSync.offsetMs, 1.0)
+    }
+
+    @Test
+    fun resetForgetsExchanges() {
+        val clockSync = ClockSync()
+        clockSync.onExchange(0, 10, 10, 20)
+        clockSync.reset()
+
+        assertEquals(0, clockSync.samples)
+        assertEquals(0.0, clockSync.rttMs, 0.0)
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.peppertest.websocket
+
+import okhttp3.OkHttpClient
+import org.junit.After
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.util.concurrent.Executors
+
+class EndpointSelectorTest {
+    private val scheduler = Executors.newSingleThreadScheduledExecutor()
+    private val selector = EndpointSelector(OkHttpClient(), scheduler).apply {
+        endpoints = listOf(PRIMARY, STANDBY, BACKUP)
+    }
+
+    @After
+    fun tearDown() {
+        scheduler.shutdownNow()
+    }
+
+    @Test
+    fun failsOverInOrderWithoutMeasurements() {
+        assertEquals(STANDBY, selector.next(PRIMARY, byLatency = true))
+        assertEquals(PRIMARY, selector.next(BACKUP, byLatency = false))
+    }
+
+    @Test
+    fun failsOverToFastestHealthyEndpoint() {
+        selector.recordRtt(STANDBY, 80.0)
+        selector.recordRtt(BACKUP, 30.0)
+        assertEquals(BACKUP, selector.next(PRIMARY, byLatency = true))
+
+        selector.markFailed(BACKUP)
+        assertEquals(STANDBY, selector.next(PRIMARY, byLatency = true))
+        assertNull(selector.rttOf(BACKUP))
+    }
+
+    @Test
+    fun switchesOnlyToClearlyFasterEndpoint() {
+        selector.recordRtt(STANDBY, 90.0)
+        assertNull(selector.faster(PRIMARY, 100.0))
+
+        selector.recordRtt(BACKUP, 40.0)
+        assertEquals(BACKUP, selector.faster(PRIMARY, 100.0))
+        assertNull(selector.faster(PRIMARY, 0.0))
+    }
+
+    companion object {
+        private const val PRIMARY = "ws://10.0.0.1:5003/pepper"
+        private const val STANDBY = "ws://10.0.0.2:5003/pepper"
+        private const val BACKUP = "ws://10.0.0.3:5003/pepper"
+    }
+}
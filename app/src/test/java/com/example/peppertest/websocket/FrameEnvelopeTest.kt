@@ -0,0 +1,49 @@
+package com.example.peppertest.websocket
+
+import okio.Buffer
+import org.junit.Test
+
+import org.junit.Assert.*
+import java.nio.ByteBuffer
+
+class FrameEnvelopeTest {
+    // SOI, an APP0 segment, then a baseline SOF0 segment for a 640x480 image
+    private val jpegHeader = byteArrayOf(
+        0xff.toByte(), 0xd8.toByte(),
+        0xff.toByte(), 0xe0.toByte(), 0x00, 0x04, 0x00, 0x00,
+        0xff.toByte(), 0xc0.toByte(), 0x00, 0x11, 0x08, 0x01, 0xe0.toByte(), 0x02, 0x80.toByte()
+    )
+
+    @Test
+    fun readsJpegSize() {
+        val size = FrameEnvelope.jpegSize(ByteBuffer.wrap(jpegHeader))
+        assertEquals(640, size ushr 16)
+        assertEquals(480, size and 0xffff)
+    }
+
+    @Test
+    fun ignoresNonJpegData() {
+        assertEquals(0, FrameEnvelope.jpegSize(ByteBuffer.wrap(byteArrayOf(1, 2, 3, 4))))
+    }
+
+    @Test
+    fun encodesHeaderAndPayload() {
+        val payload = ByteBuffer.wrap(byteArrayOf(9, 8, 7))
+        val envelope = Buffer().write(FrameEnvelope.encode(42, 1000L, 1005L, 640, 480, FrameEnvelope.FORMAT_JPEG, payload))
+
+        assertEquals(FrameEnvelope.HEADER_SIZE + 3L, envelope.size)
+        assertEquals(FrameEnvelope.MAGIC, envelope.readInt())
+        assertEquals(FrameEnvelope.VERSION, envelope.readByte().toInt())
+        assertEquals(FrameEnvelope.FORMAT_JPEG, envelope.readByte().toInt())
+        assertEquals(FrameEnvelope.HEADER_SIZE, envelope.readShort().toInt())
+        assertEquals(42, envelope.readInt())
+        assertEquals(1000L, envelope.readLong())
+        assertEquals(1005L, envelope.readLong())
+        assertEquals(640, envelope.readShort().toInt())
+        assertEquals(480, envelope.readShort().toInt())
+        assertEquals(3, envelope.readInt())
+        assertArrayEquals(byteArrayOf(9, 8, 7), envelope.readByteArray())
+        // The payload buffer is left untouched
+        assertEquals(3, payload.remaining())
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.peppertest.websocket
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class SessionStateTest {
+    @Test
+    fun replaysOnlyUnacknowledgedMessages() {
+        val session = SessionState()
+        repeat(5) { session.record { sequence -> "message $sequence" } }
+
+        session.onAcknowledged(3)
+
+        assertEquals(listOf("message 4", "message 5"), session.unacknowledged())
+    }
+
+    @Test
+    fun boundsReplayBuffer() {
+        val session = SessionState(maxReplay = 3)
+        repeat(5) { session.record { sequence -> sequence } }
+
+        assertEquals(listOf(3, 4, 5), session.unacknowledged())
+        assertEquals(2L, session.droppedMessages)
+        // Message 2 is lost to a server that only received message 1
+        assertFalse(session.canReplayAfter(1))
+        assertTrue(session.canReplayAfter(2))
+    }
+
+    @Test
+    fun filtersDuplicateInboundMessages() {
+        val session = SessionState()
+
+        assertTrue(session.accept(1))
+        assertTrue(session.accept(2))
+        assertFalse(session.accept(2))
+        assertFalse(session.accept(1))
+        assertEquals(2, session.lastReceivedSequence)
+
+        session.resetInbound()
+        assertTrue(session.accept(1))
+    }
+
+    @Test
+    fun countsGapsInInboundMessages() {
+        val session = SessionState()
+
+        assertTrue(session.accept(1))
+        // Messages 2 to 4 were dropped from the server's replay buffer
+        assertTrue(session.accept(5))
+        assertEquals(3L, session.missedMessages)
+        assertTrue(session.accept(6))
+        assertEquals(3L, session.missedMessages)
+    }
+
+    @Test
+    fun acknowledgesInBatches() {
+        val session = SessionState()
+        repeat(7) { session.accept(it + 1) }
+        assertFalse(session.takeAckDue())
+        assertTrue(session.takeAckDue(force = true))
+        assertFalse(session.takeAckDue(force = true))
+
+        repeat(8) { session.accept(it + 8) }
+        assertTrue(session.takeAckDue())
+    }
+}
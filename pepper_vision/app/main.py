@@ -9,6 +9,8 @@ from .image_processor import process_image
 from .command_generator import generate_command
 from .utils.logging import setup_logging
 from .utils.metrics import track_latency, increment_frame_counter
+from .utils.frame_envelope import parse_frame, ack_message, CAPABILITIES_MESSAGE
+from .utils.command_codec import SUBPROTOCOL, encode_command
 import threading
 import asyncio
 
@@ -57,11 +59,16 @@ async def viewer_websocket(websocket: WebSocket):
 
 @app.websocket("/ws/pepper")
 async def pepper_websocket(websocket: WebSocket):
-    await websocket.accept()
+    # Use the binary command encoding when Pepper offers it
+    use_binary = SUBPROTOCOL in websocket.scope.get("subprotocols", [])
+    await websocket.accept(subprotocol=SUBPROTOCOL if use_binary else None)
     client_id = f"pepper-{time.time()}"
     logger.info(f"New connection established: {client_id}")
     
     try:
+        # Let Pepper know it can wrap its frames in an envelope
+        await websocket.send_json(CAPABILITIES_MESSAGE)
+        
         while True:
             # Receive message (binary or text)
             message = await websocket.receive()
@@ -70,8 +77,9 @@ async def pepper_websocket(websocket: WebSocket):
                 # Start timing for latency tracking
                 start_time = time.time()
                 
-                # Process image
-                image_data = message["bytes"]
+                # Process image, unwrapping it from its envelope if any
+                frame = parse_frame(message["bytes"])
+                image_data = frame.payload
                 
                 # Decode JPEG to OpenCV image
                 try:
@@ -86,11 +94,25 @@ async def pepper_websocket(websocket: WebSocket):
                     detection_result = process_image(image)
                     command = generate_command(detection_result)
                     
-                    # Send command back
-                    await websocket.send_json({
+                    # Send command back, with the largest face so Pepper can crop its next frames,
+                    # and the frame it was found in so Pepper can map it back to the camera image
+                    response = {
                         "type": "command",
                         **command  # This includes the "action" field and any other parameters
-                    })
+                    }
+                    if detection_result["faces"]:
+                        face = max(detection_result["faces"], key=lambda f: f["width"] * f["height"])
+                        response["face"] = {key: int(face[key]) for key in ("x", "y", "width", "height")}
+                        if frame.sequence is not None:
+                            response["face"]["seq"] = frame.sequence
+                    encoded = encode_command(response) if use_binary else None
+                    if encoded is not None:
+                        await websocket.send_bytes(encoded)
+                    else:
+                        await websocket.send_json(response)
+                    
+                    # Acknowledge the frame so Pepper can measure end-to-end latency
+                    await websocket.send_json(ack_message(frame, int((time.time() - start_time) * 1000)))
                     
                     # Track metrics
                     latency = time.time() - start_time
@@ -109,6 +131,7 @@ async def pepper_websocket(websocket: WebSocket):
             elif "text" in message:
                 # Handle text messages
                 try:
+                    received_ms = int(time.time() * 1000)
                     data = json.loads(message["text"])
                     logger.info(f"Received text message from {client_id}: {data}")
                     
@@ -117,7 +140,13 @@ async def pepper_websocket(websocket: WebSocket):
                         if data["type"] == "status":
                             logger.info(f"Status update from {client_id}: {data}")
                         elif data["type"] == "ping":
-                            await websocket.send_json({"type": "pong"})
+                            # Echo our timestamps so Pepper can estimate RTT and clock offset
+                            await websocket.send_json({
+                                "type": "pong",
+                                "timestamp": data.get("timestamp"),
+                                "server_receive": received_ms,
+                                "server_send": int(time.time() * 1000)
+                            })
                     
                 except json.JSONDecodeError:
                     logger.warning(f"Received invalid JSON from {client_id}")
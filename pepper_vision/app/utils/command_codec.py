@@ -0,0 +1,161 @@
+import struct
+from typing import Optional
+
+# Compact binary encoding of commands, used instead of JSON when Pepper offers the
+# "pepper-bin" subprotocol. Every message starts with a header: "PC" magic, version,
+# kind and flags, then the session sequence number when FLAG_SEQUENCE is set, the face
+# box when FLAG_FACE is set, the sequence number of the frame it was found in when
+# FLAG_FACE_SEQUENCE is set and the command's policy when FLAG_POLICY is set. Strings are UTF-8 prefixed with an unsigned 16-bit length, numbers
+# are big-endian.
+SUBPROTOCOL = "pepper-bin"
+SUBPROTOCOLS = [SUBPROTOCOL, "pepper", "pepper-media"]
+
+MAGIC = 0x5043  # "PC"
+VERSION = 1
+HEADER = struct.Struct(">HBBB")
+FACE = struct.Struct(">HHHH")
+SEQUENCE = struct.Struct(">I")
+QUEUE = struct.Struct(">HI")
+# Stages of a command trace, in the order their times are encoded
+TRACE_STAGES = ("decoded", "queued", "build_start", "built", "run_start", "run_end")
+TRACE = struct.Struct(">q" + "i" * len(TRACE_STAGES))
+
+FLAG_FACE = 0x01
+FLAG_SEQUENCE = 0x02
+# Command status only: the command's trace follows the timestamp
+FLAG_TRACE = 0x04
+# Animate and goto only: the policy overriding Pepper's default follows the face
+FLAG_POLICY = 0x08
+POLICIES = {"queue": 1, "replace": 2, "preempt": 3}
+FLAG_FACE_SEQUENCE = 0x10
+SAY_WITH_ANIMATION = 0x01
+SAY_URGENT = 0x02
+
+# Server to robot
+KIND_SAY = 1
+KIND_ANIMATE = 2
+KIND_GO_TO = 3
+KIND_NONE = 4
+KIND_CONFIG = 5
+
+# Robot to server
+KIND_COMMAND_STATUS = 0x81
+
+
+def _string(value: str) -> bytes:
+    data = value.encode("utf-8")
+    return struct.pack(">H", len(data)) + data
+
+
+def _read_string(data: bytes, offset: int):
+    (length,) = struct.unpack_from(">H", data, offset)
+    offset += 2
+    return data[offset:offset + length].decode("utf-8"), offset + length
+
+
+def encode_command(message: dict) -> Optional[bytes]:
+    """
+    Encode a command sent to Pepper.
+
+    Args:
+        message: Command as it would be sent in JSON
+
+    Returns:
+        The binary message, or None if the command has no binary form
+    """
+    message_type = message.get("type")
+    action = message.get("action")
+    if message_type == "config" and message.get("websocket_url"):
+        kind, body = KIND_CONFIG, _string(message["websocket_url"])
+        endpoints = message.get("websocket_urls") or []
+        if endpoints:
+            body += bytes([len(endpoints)]) + b"".join(_string(url) for url in endpoints)
+    elif message_type == "speech" and action == "say" and message.get("text"):
+        # Server-generated responses are always animated on the robot
+        flags = SAY_WITH_ANIMATION | (SAY_URGENT if message.get("priority") == "high" else 0)
+        kind, body = KIND_SAY, bytes([flags]) + _string(message["text"])
+    elif message_type in ("command", "speak") and (action == "say" or message_type == "speak") and message.get("text"):
+        flags = SAY_WITH_ANIMATION if message.get("with_animation") else 0
+        if message.get("priority") == "high":
+            flags |= SAY_URGENT
+        kind, body = KIND_SAY, bytes([flags]) + _string(message["text"])
+    elif message_type == "command" and action == "animate" and message.get("animation"):
+        kind, body = KIND_ANIMATE, _string(message["animation"])
+    elif message_type == "command" and action == "goto":
+        kind, body = KIND_GO_TO, struct.pack(">fff", message["x"], message["y"], message["theta"])
+    elif message_type == "command" and action == "none":
+        kind, body = KIND_NONE, b""
+    else:
+        return None
+
+    flags = 0
+    extra = b""
+    sequence = message.get("session_seq")
+    if sequence:
+        flags |= FLAG_SEQUENCE
+        extra += SEQUENCE.pack(sequence)
+    face = message.get("face")
+    if face:
+        flags |= FLAG_FACE
+        extra += FACE.pack(face["x"], face["y"], face["width"], face["height"])
+        if face.get("seq") is not None:
+            flags |= FLAG_FACE_SEQUENCE
+            extra += SEQUENCE.pack(face["seq"])
+    policy = POLICIES.get(str(message.get("policy", "")).lower())
+    if policy and kind in (KIND_ANIMATE, KIND_GO_TO):
+        flags |= FLAG_POLICY
+        extra += bytes([policy])
+    return HEADER.pack(MAGIC, VERSION, kind, flags) + extra + body
+
+
+def is_command_message(data: bytes) -> bool:
+    """Whether a binary message is a command or status rather than a camera frame"""
+    if len(data) < HEADER.size:
+        return False
+    magic, version, _, _ = HEADER.unpack_from(data)
+    return magic == MAGIC and version == VERSION
+
+
+def decode_message(data: bytes) -> Optional[dict]:
+    """
+    Decode a binary message from Pepper into the dictionary its JSON form would give.
+
+    Returns:
+        The message, or None if it is not a known binary message
+    """
+    if not is_command_message(data):
+        return None
+    _, _, kind, flags = HEADER.unpack_from(data)
+    offset = HEADER.size
+    sequence = None
+    if flags & FLAG_SEQUENCE:
+        (sequence,) = SEQUENCE.unpack_from(data, offset)
+        offset += SEQUENCE.size
+    if flags & FLAG_FACE:
+        offset += FACE.size
+    if flags & FLAG_FACE_SEQUENCE:
+        offset += SEQUENCE.size
+    if kind == KIND_COMMAND_STATUS:
+        action, offset = _read_string(data, offset)
+        status, offset = _read_string(data, offset)
+        text, offset = _read_string(data, offset)
+        (timestamp,) = struct.unpack_from(">q", data, offset)
+        offset += 8
+        message = {"type": "command_status", "action": action, "status": status,
+                   "text": text, "timestamp": timestamp}
+        if flags & FLAG_TRACE:
+            message["command_id"], offset = _read_string(data, offset)
+            received_at, *micros = TRACE.unpack_from(data, offset)
+            offset += TRACE.size
+            # Times from the receipt in milliseconds, for the stages the command reached
+            trace = {"received_at": received_at}
+            trace.update({stage + "_ms": value / 1000.0 for stage, value in zip(TRACE_STAGES, micros) if value >= 0})
+            message["trace"] = trace
+        # Queue depth and wait follow when the command went through a queue
+        if len(data) >= offset + QUEUE.size:
+            message["queue_depth"], message["queue_wait_ms"] = QUEUE.unpack_from(data, offset)
+            offset += QUEUE.size
+        if sequence is not None:
+            message["session_seq"] = sequence
+        return message
+    return None
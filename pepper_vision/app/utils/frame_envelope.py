@@ -0,0 +1,55 @@
+import struct
+from typing import NamedTuple, Optional
+
+# Binary envelope sent by Pepper ahead of each camera frame, all fields big-endian:
+# magic, version, format, header length, sequence, capture time (ms), send time (ms),
+# width, height, payload length
+MAGIC = 0x5046524D  # "PFRM"
+VERSION = 1
+HEADER = struct.Struct(">IBBHIqqHHI")
+
+FORMAT_JPEG = 0
+FORMAT_NAMES = {FORMAT_JPEG: "jpeg"}
+
+# Advertised to Pepper on connect so that it starts wrapping its frames
+CAPABILITIES_MESSAGE = {"type": "capabilities", "frame_envelope": VERSION}
+
+
+class Frame(NamedTuple):
+    sequence: Optional[int]
+    capture_time: Optional[int]
+    send_time: Optional[int]
+    width: int
+    height: int
+    format: str
+    payload: bytes
+
+
+def parse_frame(data: bytes) -> Frame:
+    """
+    Parse a binary camera message, with or without an envelope.
+
+    Args:
+        data: Binary message received from Pepper
+
+    Returns:
+        The frame, with its metadata set to None when it was sent as a bare JPEG
+    """
+    if len(data) >= HEADER.size:
+        magic, version, fmt, header_length, sequence, capture_time, send_time, width, height, length = \
+            HEADER.unpack_from(data)
+        if magic == MAGIC and version == VERSION and header_length + length <= len(data):
+            payload = data[header_length:header_length + length]
+            return Frame(sequence, capture_time, send_time, width, height,
+                         FORMAT_NAMES.get(fmt, "unknown"), payload)
+    return Frame(None, None, None, 0, 0, "jpeg", data)
+
+
+def ack_message(frame: Frame, processing_ms: int) -> dict:
+    """Build the acknowledgement of a frame, echoing its metadata when known"""
+    ack = {"type": "frame_ack", "processing_ms": processing_ms}
+    if frame.sequence is not None:
+        ack["seq"] = frame.sequence
+        ack["capture_time"] = frame.capture_time
+        ack["send_time"] = frame.send_time
+    return ack
@@ -0,0 +1,74 @@
+from collections import deque
+from typing import List
+
+# Resumable session with Pepper. Messages sent to Pepper carry a "session_seq" number and
+# are kept until Pepper acknowledges them cumulatively, so that they can be replayed when
+# it reconnects with the same session id; messages it replays to us are filtered the same way.
+# At most MAX_REPLAY messages are kept: once one Pepper has not received is dropped, the
+# session can no longer be resumed without loss.
+MAX_REPLAY = 256
+ACK_EVERY = 8
+
+
+class Session:
+    def __init__(self, session_id: str, max_replay: int = MAX_REPLAY):
+        self.session_id = session_id
+        self.last_received = 0
+        self._next_sequence = 1
+        self._replay = deque()
+        self._max_replay = max_replay
+        self._last_dropped = 0
+        self._received_since_ack = 0
+        # Messages from Pepper skipped over, never received nor replayed
+        self.missed = 0
+
+    def stamp(self, message: dict) -> dict:
+        """Number a message sent to Pepper and keep it until acknowledged"""
+        message = dict(message, session_seq=self._next_sequence)
+        self._next_sequence += 1
+        self._replay.append(message)
+        while len(self._replay) > self._max_replay:
+            self._last_dropped = self._replay.popleft()["session_seq"]
+        return message
+
+    def can_replay_after(self, ack: int) -> bool:
+        """Whether every message after ack can still be replayed, none having been dropped"""
+        return ack >= self._last_dropped
+
+    def on_ack(self, ack: int):
+        """Drop the messages Pepper acknowledged, up to and including ack"""
+        while self._replay and self._replay[0]["session_seq"] <= ack:
+            self._replay.popleft()
+
+    def pending(self) -> List[dict]:
+        """Messages Pepper has not acknowledged yet, in order"""
+        return list(self._replay)
+
+    def accept(self, sequence: int) -> bool:
+        """
+        Register a numbered message from Pepper; False if it was already received.
+
+        A number past the next expected one means the messages in between are lost; the
+        message is accepted all the same and the loss counted in missed.
+        """
+        if sequence <= self.last_received:
+            return False
+        # Pepper keeps numbering across our sessions, so a new one may start anywhere
+        if self.last_received:
+            self.missed += sequence - self.last_received - 1
+        self.last_received = sequence
+        self._received_since_ack += 1
+        return True
+
+    def ack_due(self, force: bool = False) -> bool:
+        """Whether to acknowledge what was received now, resetting the count if so"""
+        if self._received_since_ack >= ACK_EVERY or (force and self._received_since_ack > 0):
+            self._received_since_ack = 0
+            return True
+        return False
+
+    def ack_message(self) -> dict:
+        return {"type": "ack", "ack": self.last_received}
+
+    def hello_message(self, resumed: bool) -> dict:
+        return {"type": "hello", "session": self.session_id, "ack": self.last_received, "resumed": resumed}
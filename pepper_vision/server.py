@@ -19,6 +19,9 @@ import wave
 import threading
 import time
 import queue
+from app.utils.frame_envelope import parse_frame, ack_message, CAPABILITIES_MESSAGE
+from app.utils.command_codec import SUBPROTOCOL, SUBPROTOCOLS, encode_command, is_command_message, decode_message
+from app.utils.session import Session
 
 # Global settings
 FACE_DETECTION_ENABLED = False
@@ -63,6 +66,9 @@ class PepperServer:
         self.port = port
         self.clients = set()
         self.pepper_connection = None
+        # Resumable session with Pepper, kept across its reconnections
+        self.pepper_session = None
+        self.pepper_session_socket = None
         self.latest_frame = None
         self.latest_face_data = None
         
@@ -137,13 +143,13 @@ class PepperServer:
             os.unlink(temp_path)
             
             # Check if we have an LLM response
-            if "llm_response" in result and self.pepper_connection:
+            if "llm_response" in result and self.pepper_reachable():
                 # Send the response to Pepper for TTS
-                await self.pepper_connection.send(json.dumps({
+                await self.send_to_pepper({
                     "type": "speech",
                     "action": "say",
                     "text": result["llm_response"]
-                }))
+                })
             
             # Return the result
             return web.json_response(result)
@@ -171,12 +177,12 @@ class PepperServer:
             logger.info(f"Received response via API: '{response_text}' (input: '{input_text}')")
             
             # If Pepper is connected, send the response for TTS
-            if self.pepper_connection:
-                await self.pepper_connection.send(json.dumps({
+            if self.pepper_reachable():
+                await self.send_to_pepper({
                     "type": "speech",
                     "action": "say",
                     "text": response_text
-                }))
+                })
                 return web.json_response({"status": "success", "message": "Response sent to Pepper"})
             else:
                 return web.json_response({"status": "error", "message": "Pepper not connected"}, status=503)
@@ -375,9 +381,9 @@ class PepperServer:
                     message = self.message_queue.get(block=False)
                     
                     # Send the message if Pepper is connected
-                    if self.pepper_connection:
+                    if self.pepper_reachable():
                         try:
-                            await self.pepper_connection.send(json.dumps(message))
+                            await self.send_to_pepper(message)
                             logger.info(f"Sent message to Pepper: {message.get('text')}")
                         except Exception as e:
                             logger.error(f"Error sending message to Pepper: {e}")
@@ -416,6 +422,126 @@ class PepperServer:
             logger.error(f"Failed to get IP address: {e}")
             return "localhost"
     
+    def pepper_reachable(self):
+        """Whether a message for Pepper reaches it, now or when its session resumes"""
+        return self.pepper_connection is not None or self.pepper_session is not None
+    
+    async def send_to_pepper(self, message, websocket=None):
+        """
+        Send a message to Pepper, in the binary encoding when it was negotiated.
+        Within a session the message is numbered and kept until Pepper acknowledges it;
+        while Pepper is away or has not resumed its session yet, it is only kept.
+        """
+        websocket = websocket or self.pepper_connection
+        session = self.pepper_session
+        if session is not None:
+            message = session.stamp(message)
+            if websocket is None or websocket is not self.pepper_session_socket:
+                return
+        await self.send_encoded(websocket, message)
+    
+    async def send_encoded(self, websocket, message):
+        """Send a message as is to Pepper, in the binary encoding when it was negotiated"""
+        if getattr(websocket, "subprotocol", None) == SUBPROTOCOL:
+            encoded = encode_command(message)
+            if encoded is not None:
+                await websocket.send(encoded)
+                return
+        await websocket.send(json.dumps(message))
+    
+    async def handle_frame(self, websocket, message):
+        """Forward a camera frame from Pepper to the clients and acknowledge it"""
+        received_at = time.monotonic()
+        frame = parse_frame(message)
+        
+        # Store the latest frame
+        self.latest_frame = frame.payload
+        
+        # Forward the frame to all connected clients
+        if self.clients:
+            await asyncio.gather(
+                *[client.send(frame.payload) for client in self.clients],
+                return_exceptions=True
+            )
+            
+            # If we have face data from Pepper, send it after the frame
+            if self.latest_face_data and FACE_DETECTION_ENABLED:
+                await asyncio.gather(
+                    *[client.send(json.dumps(self.latest_face_data)) for client in self.clients],
+                    return_exceptions=True
+                )
+        
+        # Acknowledge the frame so Pepper can adapt its capture rate
+        processing_ms = int((time.monotonic() - received_at) * 1000)
+        await websocket.send(json.dumps(ack_message(frame, processing_ms)))
+    
+    async def handle_pepper_media(self, websocket):
+        """Handle the dedicated camera frame connection from Pepper, in dual-channel mode"""
+        client_id = f"pepper-media-{id(websocket)}"
+        logger.info(f"Pepper media channel connected: {client_id}")
+        
+        try:
+            await websocket.send(json.dumps(CAPABILITIES_MESSAGE))
+            async for message in websocket:
+                if isinstance(message, bytes):
+                    await self.handle_frame(websocket, message)
+                else:
+                    logger.debug(f"Ignoring text message on media channel {client_id}")
+        except (ConnectionClosedOK, ConnectionClosedError):
+            logger.info(f"Pepper media channel closed: {client_id}")
+        except Exception as e:
+            logger.error(f"Error handling Pepper media channel {client_id}: {e}")
+    
+    async def resume_session(self, websocket, hello):
+        """Answer Pepper's hello, resuming its session when we know it, and replay what it missed"""
+        session_id = hello.get("session")
+        session = self.pepper_session
+        ack = hello.get("ack", 0)
+        resumed = session is not None and session.session_id == session_id
+        if resumed and not session.can_replay_after(ack):
+            # Messages Pepper never received were dropped from the replay buffer, start over
+            logger.warning(f"Pepper session {session_id} cannot be resumed, messages after {ack} were dropped")
+            resumed = False
+        if not resumed:
+            session = Session(session_id)
+            self.pepper_session = session
+        session.on_ack(ack)
+        await websocket.send(json.dumps(session.hello_message(resumed)))
+        
+        # Replay until nothing is left, as messages may be queued meanwhile; only then do new
+        # messages go out directly, so that Pepper receives them in order
+        replayed = 0
+        last_sequence = 0
+        while True:
+            pending = [m for m in session.pending() if m["session_seq"] > last_sequence]
+            if not pending:
+                break
+            for message in pending:
+                await self.send_encoded(websocket, message)
+                last_sequence = message["session_seq"]
+            replayed += len(pending)
+        self.pepper_session_socket = websocket
+        logger.info(f"Pepper session {session_id} {'resumed' if resumed else 'started'}, replayed {replayed} messages")
+    
+    def accept_from_pepper(self, data):
+        """Whether a message from Pepper is new, as opposed to replayed after a resume"""
+        sequence = data.get("session_seq") if data else None
+        if sequence is None or self.pepper_session is None:
+            return True
+        missed = self.pepper_session.missed
+        if not self.pepper_session.accept(sequence):
+            logger.debug(f"Skipping replayed message {sequence} from Pepper")
+            return False
+        if self.pepper_session.missed != missed:
+            logger.warning(f"Messages from Pepper before {sequence} were lost from its replay buffer")
+        return True
+    
+    async def acknowledge_pepper(self, websocket, force=False):
+        """Acknowledge the messages received from Pepper when a batch is due"""
+        session = self.pepper_session
+        if session is not None and session.ack_due(force):
+            await websocket.send(json.dumps(session.ack_message()))
+    
     async def handle_pepper(self, websocket):
         """Handle WebSocket connections from Pepper robot"""
         client_id = f"pepper-{id(websocket)}"
@@ -428,38 +554,63 @@ class PepperServer:
         if not self.processing_messages:
             asyncio.create_task(self.process_message_queue())
         
+        first_message = True
         try:
+            # Let Pepper know it can wrap its frames in an envelope
+            await websocket.send(json.dumps(CAPABILITIES_MESSAGE))
+            
             async for message in websocket:
+                # Pepper opens with a hello when it supports sessions, otherwise there is none to resume
+                if first_message:
+                    first_message = False
+                    if not (isinstance(message, str) and '"hello"' in message):
+                        self.pepper_session = None
+                
                 # If message is from Pepper, it's a camera frame or JSON data
-                if isinstance(message, bytes):
+                if isinstance(message, bytes) and is_command_message(message):
+                    # Command status in the binary encoding
+                    data = decode_message(message)
+                    if not self.accept_from_pepper(data):
+                        continue
+                    await self.acknowledge_pepper(websocket)
+                    logger.debug(f"Received binary message from Pepper: {data}")
+                
+                elif isinstance(message, bytes):
                     # Check if it's an audio message (we need to implement a protocol for this)
                     # For now, assume all binary messages are camera frames
-                    
-                    # Store the latest frame
-                    self.latest_frame = message
-                    
-                    # Forward the frame to all connected clients
-                    if self.clients:
-                        await asyncio.gather(
-                            *[client.send(message) for client in self.clients],
-                            return_exceptions=True
-                        )
-                        
-                        # If we have face data from Pepper, send it after the frame
-                        if self.latest_face_data and FACE_DETECTION_ENABLED:
-                            await asyncio.gather(
-                                *[client.send(json.dumps(self.latest_face_data)) for client in self.clients],
-                                return_exceptions=True
-                            )
+                    await self.handle_frame(websocket, message)
                 
                 # Handle JSON messages from Pepper (commands and face detection data)
                 elif isinstance(message, str):
                     try:
+                        received_ms = int(time.time() * 1000)
                         data = json.loads(message)
                         logger.debug(f"Received message from Pepper: {data}")
+                        if not self.accept_from_pepper(data):
+                            continue
+                        await self.acknowledge_pepper(websocket)
+                        
+                        # Echo pings with our timestamps so Pepper can estimate RTT and clock offset
+                        if data.get("type") == "ping":
+                            await websocket.send(json.dumps({
+                                "type": "pong",
+                                "timestamp": data.get("timestamp"),
+                                "server_receive": received_ms,
+                                "server_send": int(time.time() * 1000)
+                            }))
+                            await self.acknowledge_pepper(websocket, force=True)
+                        
+                        # Pepper presenting its session, new or to resume
+                        elif data.get("type") == "hello":
+                            await self.resume_session(websocket, data)
+                        
+                        # Pepper acknowledging the messages we sent
+                        elif data.get("type") == "ack":
+                            if self.pepper_session is not None:
+                                self.pepper_session.on_ack(data.get("ack", 0))
                         
                         # If message is face detection data
-                        if data.get("type") == "face_detection" and data.get("source") == "pepper_sdk":
+                        elif data.get("type") == "face_detection" and data.get("source") == "pepper_sdk":
                             logger.info(f"Received face detection data from Pepper: {len(data.get('faces', []))} faces")
                             
                             # Store the latest face data
@@ -485,11 +636,11 @@ class PepperServer:
                                 
                                 if llm_response:
                                     # Send the response back to Pepper for TTS
-                                    await websocket.send(json.dumps({
+                                    await self.send_to_pepper({
                                         "type": "speech",
                                         "action": "say",
                                         "text": llm_response
-                                    }))
+                                    }, websocket)
                         # Other types of messages
                         else:
                             logger.debug(f"Received other message type: {data.get('type')}")
@@ -504,9 +655,12 @@ class PepperServer:
             logger.error(f"Error handling Pepper client {client_id}: {e}")
             logger.exception("Full error traceback:")
         finally:
-            # Clean up on disconnect
+            # Clean up on disconnect, unless Pepper already came back on another connection
             logger.info("Pepper robot disconnected")
-            self.pepper_connection = None
+            if self.pepper_connection is websocket:
+                self.pepper_connection = None
+            if self.pepper_session_socket is websocket:
+                self.pepper_session_socket = None
     
     async def handle_client(self, websocket):
         """Handle WebSocket connections from regular clients"""
@@ -536,9 +690,9 @@ class PepperServer:
                                 await websocket.send(json.dumps({"type": "face_detection", "status": "enabled"}))
                                 
                                 # Forward the face detection enable command to Pepper
-                                if self.pepper_connection:
+                                if self.pepper_reachable():
                                     logger.info("Forwarding face detection enable command to Pepper")
-                                    await self.pepper_connection.send(json.dumps(command))
+                                    await self.send_to_pepper(command)
                                 
                                 # If we have face data and just enabled detection, send it
                                 if self.latest_face_data:
@@ -550,9 +704,9 @@ class PepperServer:
                                 await websocket.send(json.dumps({"type": "face_detection", "status": "disabled"}))
                                 
                                 # Forward the face detection disable command to Pepper
-                                if self.pepper_connection:
+                                if self.pepper_reachable():
                                     logger.info("Forwarding face detection disable command to Pepper")
-                                    await self.pepper_connection.send(json.dumps(command))
+                                    await self.send_to_pepper(command)
                         
                         # Handle speech commands
                         elif command.get("type") == "speech":
@@ -564,9 +718,9 @@ class PepperServer:
                                 logger.info(f"Received say command: '{text}'")
                                 
                                 # Forward to Pepper if connected
-                                if self.pepper_connection:
+                                if self.pepper_reachable():
                                     logger.info(f"Forwarding say command to Pepper: '{text}'")
-                                    await self.pepper_connection.send(json.dumps(command))
+                                    await self.send_to_pepper(command)
                                 else:
                                     logger.warning("Cannot forward say command: Pepper not connected")
                             
@@ -575,15 +729,15 @@ class PepperServer:
                                 logger.info("Received start_listening command")
                                 
                                 # Forward to Pepper if connected
-                                if self.pepper_connection:
+                                if self.pepper_reachable():
                                     logger.info("Forwarding start_listening command to Pepper")
-                                    await self.pepper_connection.send(json.dumps(command))
+                                    await self.send_to_pepper(command)
                                 else:
                                     logger.warning("Cannot forward start_listening command: Pepper not connected")
                         
                         # Forward other commands to Pepper if connected
-                        elif self.pepper_connection:
-                            await self.pepper_connection.send(json.dumps(command))
+                        elif self.pepper_reachable():
+                            await self.send_to_pepper(command)
                         else:
                             logger.warning("Cannot forward command: Pepper not connected")
                     # Handle binary messages (likely audio data)
@@ -640,12 +794,12 @@ class PepperServer:
             await client_websocket.send(json.dumps(result))
             
             # If we have an LLM response and Pepper is connected, send to Pepper
-            if "llm_response" in result and self.pepper_connection:
-                await self.pepper_connection.send(json.dumps({
+            if "llm_response" in result and self.pepper_reachable():
+                await self.send_to_pepper({
                     "type": "speech",
                     "action": "say",
                     "text": result["llm_response"]
-                }))
+                })
                 
         except Exception as e:
             logger.error(f"Error processing client audio: {e}")
@@ -681,6 +835,8 @@ class PepperServer:
             # Determine if this is a Pepper connection or a client
             if path == "/pepper":
                 await self.handle_pepper(websocket)
+            elif path == "/pepper/media":
+                await self.handle_pepper_media(websocket)
             else:
                 await self.handle_client(websocket)
         
@@ -689,7 +845,7 @@ class PepperServer:
         
         if major_version >= 10:
             # For newer versions of websockets
-            async with websockets.serve(websocket_handler, self.host, self.port + 1):
+            async with websockets.serve(websocket_handler, self.host, self.port + 1, subprotocols=SUBPROTOCOLS):
                 logger.info(f"WebSocket server started on ws://{ip_address}:{self.port + 1}")
                 logger.info(f"Pepper robot should connect to: ws://{ip_address}:{self.port + 1}/pepper")
                 logger.info(f"Webcam clients should connect to: ws://{ip_address}:{self.port + 1}")
@@ -698,7 +854,7 @@ class PepperServer:
                 await asyncio.Future()
         else:
             # For older versions of websockets
-            server = await websockets.serve(websocket_handler, self.host, self.port + 1)
+            server = await websockets.serve(websocket_handler, self.host, self.port + 1, subprotocols=SUBPROTOCOLS)
             logger.info(f"WebSocket server started on ws://{ip_address}:{self.port + 1}")
             logger.info(f"Pepper robot should connect to: ws://{ip_address}:{self.port + 1}/pepper")
             logger.info(f"Webcam clients should connect to: ws://{ip_address}:{self.port + 1}")
@@ -731,7 +887,9 @@ async def main():
                 
                 # If we couldn't determine the path, check protocol
                 if path is None and hasattr(websocket, 'subprotocols') and websocket.subprotocols:
-                    if 'pepper' in websocket.subprotocols:
+                    if 'pepper-media' in websocket.subprotocols:
+                        path = '/pepper/media'
+                    elif 'pepper' in websocket.subprotocols:
                         path = '/pepper'
                     else:
                         path = '/'
@@ -746,6 +904,9 @@ async def main():
                 if path == "/pepper":
                     logger.info(f"Processing Pepper robot connection")
                     await server.handle_pepper(websocket)
+                elif path == "/pepper/media":
+                    logger.info(f"Processing Pepper media channel connection")
+                    await server.handle_pepper_media(websocket)
                 else:
                     logger.info(f"Processing client connection for path: {path}")
                     await server.handle_client(websocket)
@@ -778,7 +939,7 @@ async def main():
         logger.info(f"Webcam clients should connect to: ws://{ip_address}:{ws_port}")
         
         # Use the simplest form of server creation, which should work across versions
-        server_instance = await websockets.serve(handler, server.host, ws_port)
+        server_instance = await websockets.serve(handler, server.host, ws_port, subprotocols=SUBPROTOCOLS)
         logger.info(f"Server started successfully using websockets {WEBSOCKETS_VERSION}")
         
         # Keep the server running
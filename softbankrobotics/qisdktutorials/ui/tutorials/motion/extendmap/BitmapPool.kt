@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 Softbank Robotics Europe
+ * See COPYING for the license
+ */
+
+package com.softbankrobotics.qisdktutorials.ui.tutorials.motion.extendmap
+
+import android.graphics.Bitmap
+import java.util.ArrayDeque
+
+/**
+ * A small pool of mutable bitmaps of the same configuration, to avoid allocating a new bitmap
+ * each time the map is rendered.
+ *
+ * Only bitmaps of the size last acquired are kept: when the size changes, the pooled bitmaps
+ * are recycled, as they will not be asked for again.
+ */
+class BitmapPool(private val maxSize: Int = DEFAULT_MAX_SIZE) {
+
+    companion object {
+        private const val DEFAULT_MAX_SIZE = 4
+    }
+
+    private val bitmaps = ArrayDeque<Bitmap>()
+    private var width = 0
+    private var height = 0
+
+    /**
+     * Get a bitmap of the given size, reusing a released one if possible.
+     * @param width the bitmap width
+     * @param height the bitmap height
+     * @return a mutable bitmap
+     */
+    @Synchronized
+    fun acquire(width: Int, height: Int): Bitmap {
+        if (width != this.width || height != this.height) {
+            this.width = width
+            this.height = height
+            clear()
+        }
+        return bitmaps.pollFirst() ?: Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    }
+
+    /**
+     * Give a bitmap back to the pool.
+     * @param bitmap the bitmap, that must not be used by the caller anymore
+     * @return true if the bitmap was kept for reuse, false if it was recycled
+     */
+    @Synchronized
+    fun release(bitmap: Bitmap): Boolean {
+        val isCurrentSize = bitmap.width == width && bitmap.height == height
+        if (bitmaps.size < maxSize && isCurrentSize && bitmap.isMutable && !bitmap.isRecycled) {
+            bitmaps.addLast(bitmap)
+            return true
+        }
+        bitmap.recycle()
+        return false
+    }
+
+    /**
+     * Recycle all the pooled bitmaps.
+     */
+    @Synchronized
+    fun clear() {
+        bitmaps.forEach { it.recycle() }
+        bitmaps.clear()
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 Softbank Robotics Europe
+ * See COPYING for the license
+ */
+
+package com.softbankrobotics.qisdktutorials.ui.tutorials.motion.extendmap
+
+import com.aldebaran.qi.Future
+import com.aldebaran.qi.sdk.QiContext
+import com.aldebaran.qi.sdk.QiThreadPool
+import com.aldebaran.qi.sdk.`object`.actuation.ExplorationMap
+import com.aldebaran.qi.sdk.`object`.streamablebuffer.StreamableBufferFactory
+import com.aldebaran.qi.sdk.builder.ExplorationMapBuilder
+import com.aldebaran.qi.sdk.util.copyToStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.CheckedOutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Persist versioned snapshots of an [ExplorationMap] on disk.
+ *
+ * Each snapshot is the gzip-compressed map serialization, preceded by a fixed header holding the
+ * uncompressed size and its CRC32. Loading decompresses the snapshot next to the store, verifies
+ * the checksum and streams the result back through a file-backed StreamableBuffer; the
+ * decompressed file is deleted once the map is built.
+ */
+class ExplorationMapStore(private val directory: File, private val maxSnapshots: Int = DEFAULT_MAX_SNAPSHOTS) {
+
+    companion object {
+        private const val DEFAULT_MAX_SNAPSHOTS = 5
+        private const val MAGIC = 0x504d4150 // "PMAP"
+        private const val FORMAT_VERSION = 1
+        private const val HEADER_SIZE = 24
+        private const val SNAPSHOT_PREFIX = "map_v"
+        private const val SNAPSHOT_SUFFIX = ".gz"
+        private const val MAP_SUFFIX = ".map"
+    }
+
+    // Avoid two saves writing concurrently: map updates come faster than large maps are written.
+    private val isSaving = AtomicBoolean(false)
+
+    init {
+        directory.mkdirs()
+    }
+
+    /**
+     * The versions of the stored snapshots, oldest first.
+     */
+    fun versions(): List<Int> {
+        return directory.listFiles { file -> file.name.startsWith(SNAPSHOT_PREFIX) && file.name.endsWith(SNAPSHOT_SUFFIX) }
+                .orEmpty()
+                .mapNotNull { it.name.removePrefix(SNAPSHOT_PREFIX).removeSuffix(SNAPSHOT_SUFFIX).toIntOrNull() }
+                .sorted()
+    }
+
+    /**
+     * The version of the most recent snapshot, or null if the store is empty.
+     */
+    fun latestVersion(): Int? = versions().lastOrNull()
+
+    /**
+     * Save a new snapshot of the map.
+     * If a snapshot is already being written, this one is skipped and the Future holds null.
+     * @param explorationMap the map to save
+     * @return a Future holding the version of the new snapshot
+     */
+    fun saveSnapshot(explorationMap: ExplorationMap): Future<Int?> {
+        if (isSaving.getAndSet(true)) {
+            return Future.of<Int?>(null)
+        }
+
+        val version = (latestVersion() ?: 0) + 1
+        val snapshotFile = snapshotFile(version)
+        val tmpFile = File(directory, snapshotFile.name + ".tmp")
+
+        return explorationMap.async().serializeAsStreamableBuffer().andThenCompose { streamableBuffer ->
+            // Reserve the header, then stream the compressed serialization after it.
+            val fileOutputStream = FileOutputStream(tmpFile)
+            val crc = CRC32()
+            val checkedOutputStream = try {
+                fileOutputStream.write(ByteArray(HEADER_SIZE))
+                CheckedOutputStream(GZIPOutputStream(BufferedOutputStream(fileOutputStream)), crc)
+            } catch (e: IOException) {
+                fileOutputStream.close()
+                throw e
+            }
+            streamableBuffer.async().copyToStream(checkedOutputStream).thenApply { copy ->
+                // Closed whether the copy succeeded or not, so that a failed snapshot can be deleted.
+                checkedOutputStream.use { copy.get() }
+                writeHeader(tmpFile, streamableBuffer.size, crc.value)
+                if (!tmpFile.renameTo(snapshotFile)) {
+                    throw IOException("Cannot rename ${tmpFile.path} to ${snapshotFile.path}")
+                }
+                pruneSnapshots()
+                version
+            }
+        }.thenApply {
+            isSaving.set(false)
+            if (!it.isSuccess) {
+                tmpFile.delete()
+            }
+            it.get()
+        }
+    }
+
+    /**
+     * Load the most recent snapshot.
+     * @param qiContext the QiContext
+     * @return a Future holding the map, or null if the store is empty
+     */
+    fun loadLatest(qiContext: QiContext): Future<ExplorationMap?> {
+        val version = latestVersion() ?: return Future.of<ExplorationMap?>(null)
+        return load(qiContext, version).andThenApply<ExplorationMap?> { it }
+    }
+
+    /**
+     * Load a given snapshot.
+     * @param qiContext the QiContext
+     * @param version the snapshot version
+     * @return a Future holding the map
+     */
+    fun load(qiContext: QiContext, version: Int): Future<ExplorationMap> {
+        val mapFile = mapFile(version)
+        return QiThreadPool.execute { decompress(version, mapFile) }
+                .andThenCompose {
+                    ExplorationMapBuilder.with(qiContext)
+                            .withStreamableBuffer(StreamableBufferFactory.fromFile(mapFile))
+                            .buildAsync()
+                }
+                .thenApply {
+                    // The built map no longer reads the decompressed file, the snapshot is enough.
+                    mapFile.delete()
+                    it.get()
+                }
+    }
+
+    private fun decompress(version: Int, mapFile: File) {
+        val snapshotFile = snapshotFile(version)
+
+        DataInputStream(FileInputStream(snapshotFile).buffered()).use { input ->
+            // Read and check the header.
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                throw IOException("Not a map snapshot: ${snapshotFile.path}")
+            }
+            val size = input.readLong()
+            val expectedCrc = input.readLong()
+
+            // Decompress the map, computing its checksum on the fly.
+            val crc = CRC32()
+            CheckedInputStream(GZIPInputStream(input), crc).use { checkedInput ->
+                FileOutputStream(mapFile).use { checkedInput.copyTo(it) }
+            }
+
+            if (mapFile.length() != size || crc.value != expectedCrc) {
+                mapFile.delete()
+                throw IOException("Corrupted map snapshot: ${snapshotFile.path}")
+            }
+        }
+    }
+
+    private fun writeHeader(file: File, size: Long, crc: Long) {
+        RandomAccessFile(file, "rw").use {
+            it.seek(0)
+            it.writeInt(MAGIC)
+            it.writeInt(FORMAT_VERSION)
+            it.writeLong(size)
+            it.writeLong(crc)
+        }
+    }
+
+    private fun pruneSnapshots() {
+        versions().dropLast(maxSnapshots).forEach { version ->
+            snapshotFile(version).delete()
+            // Left behind by stores that kept the decompressed maps
+            mapFile(version).delete()
+        }
+    }
+
+    private fun snapshotFile(version: Int) = File(directory, "$SNAPSHOT_PREFIX$version$SNAPSHOT_SUFFIX")
+
+    private fun mapFile(version: Int) = File(directory, "$SNAPSHOT_PREFIX$version$MAP_SUFFIX")
+}
@@ -1,7 +1,6 @@
 package com.softbankrobotics.qisdktutorials.ui.tutorials.motion.extendmap
 
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.os.Bundle
 import androidx.lifecycle.Lifecycle
 import com.aldebaran.qi.Future
@@ -20,6 +19,7 @@ import com.softbankrobotics.qisdktutorials.ui.conversation.ConversationBinder
 import com.softbankrobotics.qisdktutorials.ui.conversation.ConversationItemType
 import com.softbankrobotics.qisdktutorials.ui.tutorials.TutorialActivity
 import kotlinx.android.synthetic.main.activity_exploration_map_representation_tutorial.*
+import java.io.File
 import java.util.concurrent.TimeUnit
 
 /**
@@ -32,10 +32,26 @@ class MapExtensionTutorialActivity : TutorialActivity(), RobotLifecycleCallbacks
     private var qiContext: QiContext? = null
     // The initial ExplorationMap.
     private var initialExplorationMap: ExplorationMap? = null
+    // The store keeping the map snapshots across runs.
+    private lateinit var explorationMapStore: ExplorationMapStore
+    // The renderer converting maps to bitmaps off the UI thread.
+    private lateinit var mapRenderer: MapRenderer
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
 
+        // Create the map store in the app private storage.
+        explorationMapStore = ExplorationMapStore(File(filesDir, "maps"))
+        // Display each rendered map, the renderer calls back on the UI thread.
+        mapRenderer = MapRenderer { bitmap ->
+            if (lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                displayMap(bitmap)
+                true
+            } else {
+                false
+            }
+        }
+
         // Set the button onClick listener.
         startMappingButton.setOnClickListener {
             // Check that the Activity owns the focus.
@@ -67,6 +83,8 @@ class MapExtensionTutorialActivity : TutorialActivity(), RobotLifecycleCallbacks
     }
 
     override fun onDestroy() {
+        // Stop the map rendering.
+        mapRenderer.release()
         // Unregister the RobotLifecycleCallbacks for this Activity.
         QiSDK.unregister(this, this)
         super.onDestroy()
@@ -92,6 +110,9 @@ class MapExtensionTutorialActivity : TutorialActivity(), RobotLifecycleCallbacks
         runOnUiThread {
             startMappingButton.isEnabled = true
         }
+
+        // Reuse the last stored map, if any, instead of mapping from scratch.
+        loadStoredMap(qiContext)
     }
 
     override fun onRobotFocusLost() {
@@ -116,13 +137,14 @@ class MapExtensionTutorialActivity : TutorialActivity(), RobotLifecycleCallbacks
                 val explorationMap = future.get()
                 // Store the initial map.
                 this.initialExplorationMap = explorationMap
-                // Convert the map to a bitmap.
-                val bitmap = mapToBitmap(explorationMap)
+                // Persist the map for the next runs.
+                saveMap(explorationMap)
+                // Render the map.
+                mapRenderer.submit(explorationMap)
                 displayLine("Map representation retrieved.", ConversationItemType.INFO_LOG)
-                // Display the bitmap and enable "extend map" button.
+                // Enable "extend map" button.
                 runOnUiThread {
                     if (lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
-                        displayMap(bitmap)
                         extendMapButton.isEnabled = true
                     }
                 }
@@ -152,15 +174,11 @@ class MapExtensionTutorialActivity : TutorialActivity(), RobotLifecycleCallbacks
         extendMapButton.isEnabled = false
         // Start the map extension and notify each time the map is updated.
         extendMap(initialExplorationMap, qiContext) { updatedMap ->
-            // Convert the map to a bitmap.
-            val updatedBitmap = mapToBitmap(updatedMap)
+            // Persist a new snapshot of the extended map.
+            saveMap(updatedMap)
+            // Render the map, only the changed tiles are redrawn.
+            mapRenderer.submit(updatedMap)
             displayLine("New map representation available.", ConversationItemType.INFO_LOG)
-            // Display the bitmap.
-            runOnUiThread {
-                if (lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
-                    displayMap(updatedBitmap)
-                }
-            }
         }.thenConsume { future ->
             // If the operation is not a success, re-enable "extend map" button.
             if (!future.isSuccess) {
@@ -176,6 +194,39 @@ class MapExtensionTutorialActivity : TutorialActivity(), RobotLifecycleCallbacks
         }
     }
 
+    private fun loadStoredMap(qiContext: QiContext) {
+        val version = explorationMapStore.latestVersion() ?: return
+        displayLine("Loading stored map v$version...", ConversationItemType.INFO_LOG)
+        explorationMapStore.load(qiContext, version).thenConsume { future ->
+            if (future.isSuccess) {
+                val explorationMap = future.get()
+                // Store the initial map.
+                this.initialExplorationMap = explorationMap
+                // Render the map.
+                mapRenderer.submit(explorationMap)
+                displayLine("Stored map loaded.", ConversationItemType.INFO_LOG)
+                // Enable "extend map" button.
+                runOnUiThread {
+                    if (lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                        extendMapButton.isEnabled = true
+                    }
+                }
+            } else if (future.hasError()) {
+                displayLine("Loading stored map failed: ${future.errorMessage}", ConversationItemType.ERROR_LOG)
+            }
+        }
+    }
+
+    private fun saveMap(explorationMap: ExplorationMap) {
+        explorationMapStore.saveSnapshot(explorationMap).thenConsume { future ->
+            if (future.isSuccess) {
+                future.get()?.let { displayLine("Map saved as v$it.", ConversationItemType.INFO_LOG) }
+            } else if (future.hasError()) {
+                displayLine("Saving map failed: ${future.errorMessage}", ConversationItemType.ERROR_LOG)
+            }
+        }
+    }
+
     private fun mapSurroundings(qiContext: QiContext): Future<ExplorationMap> {
         // Create a Promise to set the operation state later.
         val promise = Promise<ExplorationMap>().apply {
@@ -283,17 +334,6 @@ class MapExtensionTutorialActivity : TutorialActivity(), RobotLifecycleCallbacks
         }
     }
 
-    private fun mapToBitmap(explorationMap: ExplorationMap): Bitmap {
-        // Get the ByteBuffer containing the map graphical representation.
-        val byteBuffer = explorationMap.topGraphicalRepresentation.image.data.apply { rewind() }
-        // Get the buffer size.
-        val size = byteBuffer.remaining()
-        // Transform the buffer to a ByteArray.
-        val byteArray = ByteArray(size).also { byteBuffer.get(it) }
-        // Transform the ByteArray to a Bitmap.
-        return BitmapFactory.decodeByteArray(byteArray, 0, size)
-    }
-
     private fun displayMap(bitmap: Bitmap) {
         // Set the ImageView bitmap.
         mapImageView.setImageBitmap(bitmap)
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 Softbank Robotics Europe
+ * See COPYING for the license
+ */
+
+package com.softbankrobotics.qisdktutorials.ui.tutorials.motion.extendmap
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import com.aldebaran.qi.sdk.`object`.actuation.ExplorationMap
+import java.nio.ByteBuffer
+import java.util.IdentityHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Render the graphical representation of an [ExplorationMap] off the UI thread.
+ *
+ * A map encoded exactly as the previous one is not rendered again. Otherwise the map is split into
+ * square tiles, compared pixel for pixel with the previous map, and only the tiles that changed
+ * are copied to the output bitmap. Output bitmaps come from a [BitmapPool] and are handed
+ * to [onMapRendered] on the UI thread at most once per display frame; intermediate results are
+ * dropped.
+ *
+ * [onMapRendered] returns whether the bitmap is now displayed. The bitmap displayed before it
+ * is only reused once replaced; a bitmap that was not displayed is reused right away.
+ */
+class MapRenderer(private val onMapRendered: (Bitmap) -> Boolean) {
+
+    companion object {
+        private const val TILE_SIZE = 64
+    }
+
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val bitmapPool = BitmapPool()
+
+    // The latest map not rendered yet, newer updates replace older ones.
+    private val pendingMap = AtomicReference<ExplorationMap?>()
+    private val isRenderScheduled = AtomicBoolean(false)
+    private val isFrameScheduled = AtomicBoolean(false)
+
+    // Rendering state, only accessed on the executor.
+    private var decodedBitmap: Bitmap? = null
+    private var encodedBytes = ByteArray(0)
+    private var encodedSize = -1
+    private var previousEncodedBytes = ByteArray(0)
+    private var mapWidth = 0
+    private var mapHeight = 0
+    private var pixels = IntArray(0)
+    private var previousPixels = IntArray(0)
+    private var tileVersions = IntArray(0)
+
+    // Tile versions held by each output bitmap, guarded by the renderer.
+    // Dropped when the pool recycles the bitmap instead of keeping it.
+    private val bufferTileVersions = IdentityHashMap<Bitmap, IntArray>()
+
+    // Output bitmaps, guarded by the renderer.
+    private var readyBitmap: Bitmap? = null
+    private var displayedBitmap: Bitmap? = null
+    private var isReleased = false
+
+    /**
+     * The number of tiles re-rendered by the last update.
+     */
+    @Volatile
+    var lastDirtyTileCount = 0
+        private set
+
+    /**
+     * Request the rendering of a map. Can be called from any thread.
+     * @param explorationMap the map to render
+     */
+    fun submit(explorationMap: ExplorationMap) {
+        pendingMap.set(explorationMap)
+        if (!isRenderScheduled.getAndSet(true)) {
+            executor.execute { renderPendingMap() }
+        }
+    }
+
+    /**
+     * Stop rendering and release the bitmaps.
+     */
+    fun release() {
+        pendingMap.set(null)
+        val outputs = synchronized(this) {
+            if (isReleased) {
+                return
+            }
+            isReleased = true
+            bufferTileVersions.clear()
+            listOfNotNull(readyBitmap, displayedBitmap).also {
+                readyBitmap = null
+                displayedBitmap = null
+            }
+        }
+        outputs.forEach { it.recycle() }
+        // The decoded bitmap belongs to the executor: recycle it after the render in progress.
+        executor.execute {
+            decodedBitmap?.recycle()
+            decodedBitmap = null
+        }
+        executor.shutdown()
+        bitmapPool.clear()
+    }
+
+    private fun renderPendingMap() {
+        isRenderScheduled.set(false)
+        val explorationMap = pendingMap.getAndSet(null) ?: return
+
+        // The robot sent the same map again: what is displayed is up to date.
+        if (!readEncoded(explorationMap)) {
+            lastDirtyTileCount = 0
+            return
+        }
+        val decoded = decode() ?: return
+        val output = bitmapPool.acquire(decoded.width, decoded.height)
+
+        lastDirtyTileCount = updateTiles(decoded, output)
+
+        synchronized(this) {
+            if (isReleased) {
+                output.recycle()
+                return
+            }
+            // A rendered bitmap that was never displayed is superseded by this one.
+            readyBitmap?.let { recycleOutput(it) }
+            readyBitmap = output
+        }
+        scheduleFrame()
+    }
+
+    /**
+     * Copy the encoded map graphical representation.
+     * @return false if it is the same as the previous one
+     */
+    private fun readEncoded(explorationMap: ExplorationMap): Boolean {
+        // Get the ByteBuffer containing the map graphical representation.
+        val byteBuffer = explorationMap.topGraphicalRepresentation.image.data.apply { rewind() }
+        val size = byteBuffer.remaining()
+
+        // Keep the previous encoding to compare with.
+        val previous = encodedBytes
+        val previousSize = encodedSize
+        encodedBytes = previousEncodedBytes
+        previousEncodedBytes = previous
+        if (encodedBytes.size < size) {
+            encodedBytes = ByteArray(size)
+        }
+        byteBuffer.get(encodedBytes, 0, size)
+        encodedSize = size
+
+        return size != previousSize || ByteBuffer.wrap(encodedBytes, 0, size) != ByteBuffer.wrap(previous, 0, size)
+    }
+
+    private fun decode(): Bitmap? {
+        val size = encodedSize
+        // Decode into the previous bitmap when the size allows it.
+        val options = BitmapFactory.Options().apply {
+            inMutable = true
+            inBitmap = decodedBitmap
+        }
+        val bitmap = try {
+            BitmapFactory.decodeByteArray(encodedBytes, 0, size, options)
+        } catch (e: IllegalArgumentException) {
+            // The map grew beyond the reusable bitmap.
+            options.inBitmap = null
+            BitmapFactory.decodeByteArray(encodedBytes, 0, size, options)
+        } ?: return null
+
+        if (bitmap !== decodedBitmap) {
+            decodedBitmap?.recycle()
+            decodedBitmap = bitmap
+        }
+        return bitmap
+    }
+
+    private fun updateTiles(source: Bitmap, output: Bitmap): Int {
+        val columns = (source.width + TILE_SIZE - 1) / TILE_SIZE
+        val rows = (source.height + TILE_SIZE - 1) / TILE_SIZE
+        val tileCount = columns * rows
+
+        // The map size changed: every tile is new.
+        if (source.width != mapWidth || source.height != mapHeight) {
+            mapWidth = source.width
+            mapHeight = source.height
+            pixels = IntArray(mapWidth * mapHeight)
+            previousPixels = IntArray(mapWidth * mapHeight)
+            tileVersions = IntArray(tileCount) { 1 }
+            synchronized(this) {
+                bufferTileVersions.clear()
+            }
+        }
+
+        // Read the whole map at once, keeping the previous one to compare the tiles with.
+        val previous = pixels
+        pixels = previousPixels
+        previousPixels = previous
+        source.getPixels(pixels, 0, mapWidth, 0, 0, mapWidth, mapHeight)
+
+        // The output bitmap is only used by this thread until it is rendered.
+        val outputVersions = synchronized(this) {
+            bufferTileVersions.getOrPut(output) { IntArray(tileCount) }
+        }
+        var dirtyTiles = 0
+
+        for (row in 0 until rows) {
+            for (column in 0 until columns) {
+                val tile = row * columns + column
+                val x = column * TILE_SIZE
+                val y = row * TILE_SIZE
+                val width = minOf(TILE_SIZE, source.width - x)
+                val height = minOf(TILE_SIZE, source.height - y)
+
+                val offset = y * mapWidth + x
+
+                // Detect the tiles whose content changed.
+                if (!isTileUnchanged(offset, width, height)) {
+                    tileVersions[tile]++
+                }
+
+                // Only copy the tiles this output bitmap does not have yet.
+                if (outputVersions[tile] != tileVersions[tile]) {
+                    output.setPixels(pixels, offset, mapWidth, x, y, width, height)
+                    outputVersions[tile] = tileVersions[tile]
+                    dirtyTiles++
+                }
+            }
+        }
+        return dirtyTiles
+    }
+
+    private fun isTileUnchanged(offset: Int, width: Int, height: Int): Boolean {
+        for (row in 0 until height) {
+            val start = offset + row * mapWidth
+            for (i in start until start + width) {
+                if (pixels[i] != previousPixels[i]) {
+                    return false
+                }
+            }
+        }
+        return true
+    }
+
+    // Called with the renderer lock held.
+    private fun recycleOutput(bitmap: Bitmap) {
+        if (!bitmapPool.release(bitmap)) {
+            bufferTileVersions.remove(bitmap)
+        }
+    }
+
+    private fun scheduleFrame() {
+        if (isFrameScheduled.getAndSet(true)) {
+            return
+        }
+        mainHandler.post {
+            Choreographer.getInstance().postFrameCallback {
+                isFrameScheduled.set(false)
+                val bitmap = synchronized(this) {
+                    val ready = readyBitmap ?: return@postFrameCallback
+                    readyBitmap = null
+                    ready
+                }
+                val isDisplayed = onMapRendered(bitmap)
+                synchronized(this) {
+                    when {
+                        isReleased -> bitmap.recycle()
+                        // The previously displayed bitmap can be reused now that the view shows this one.
+                        isDisplayed -> {
+                            displayedBitmap?.let { recycleOutput(it) }
+                            displayedBitmap = bitmap
+                        }
+                        // The view still shows the previous bitmap.
+                        else -> recycleOutput(bitmap)
+                    }
+                }
+            }
+        }
+    }
+}